@@ -21,6 +21,13 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
     private final Map<ByteBuffer, byte[]> mSessionKeyCache;
 
     private OperatorHelper mOperatorHelper;
+    private ContentProviderSelector mContentProviderSelector;
+
+    /** Selects the provider used for the symmetric data decryptor, per algorithm. */
+    public interface ContentProviderSelector
+    {
+        String getProviderName(int encAlgorithm, boolean withIntegrityPacket);
+    }
 
     public CachingDataDecryptorFactory(String providerName,
             final Map<ByteBuffer,byte[]> sessionKeyCache)
@@ -39,6 +46,12 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
 
     }
 
+    public CachingDataDecryptorFactory setContentProviderSelector(ContentProviderSelector selector)
+    {
+        mContentProviderSelector = selector;
+        return this;
+    }
+
     public boolean hasCachedSessionData(PGPPublicKeyEncryptedData encData) throws PGPException {
         ByteBuffer bi = ByteBuffer.wrap(encData.getSessionKey()[0]);
         return mSessionKeyCache.containsKey(bi);
@@ -67,6 +80,11 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
     @Override
     public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm, byte[] key)
             throws PGPException {
+        if (mContentProviderSelector != null) {
+            String providerName = mContentProviderSelector.getProviderName(encAlgorithm, withIntegrityPacket);
+            return new OperatorHelper(new NamedJcaJceHelper(providerName))
+                    .createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+        }
         if (mWrappedDecryptor != null) {
             return mWrappedDecryptor.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
         }
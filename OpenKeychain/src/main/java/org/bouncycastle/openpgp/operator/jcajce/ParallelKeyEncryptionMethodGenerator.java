@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Bouncy Castle License (MIT license). See LICENSE file for details.
+ */
+
+package org.bouncycastle.openpgp.operator.jcajce;
+
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.ContainedPacket;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Wraps the session key for a number of recipients concurrently.
+ *
+ * PGPEncryptedDataGenerator calls generate() for each of its methods in sequence,
+ * which for many recipients means a lot of sequential public key operations. This
+ * class is added as a single method instead, runs the wrapped generators on an
+ * executor, and returns all resulting packets in their original order as a single
+ * ContainedPacket.
+ */
+public class ParallelKeyEncryptionMethodGenerator extends PGPKeyEncryptionMethodGenerator
+{
+    private final List<PGPKeyEncryptionMethodGenerator> mGenerators;
+    private final ExecutorService mExecutor;
+
+    public ParallelKeyEncryptionMethodGenerator(List<PGPKeyEncryptionMethodGenerator> generators,
+            ExecutorService executor)
+    {
+        mGenerators = generators;
+        mExecutor = executor;
+    }
+
+    @Override
+    public ContainedPacket generate(final int encAlgorithm, final byte[] sessionInfo)
+            throws PGPException
+    {
+        List<Future<ContainedPacket>> futures = new ArrayList<>(mGenerators.size());
+        for (final PGPKeyEncryptionMethodGenerator generator : mGenerators) {
+            futures.add(mExecutor.submit(new Callable<ContainedPacket>() {
+                @Override
+                public ContainedPacket call() throws PGPException {
+                    // each generator gets its own copy, so none of them can interfere with another
+                    return generator.generate(encAlgorithm, sessionInfo.clone());
+                }
+            }));
+        }
+
+        final List<ContainedPacket> packets = new ArrayList<>(futures.size());
+        try {
+            for (Future<ContainedPacket> future : futures) {
+                packets.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new PGPException("interrupted while wrapping session key", e);
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof PGPException) {
+                throw (PGPException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PGPException("error wrapping session key", (Exception) cause);
+        }
+
+        return new ContainedPacket()
+        {
+            @Override
+            public void encode(BCPGOutputStream pOut) throws IOException
+            {
+                for (ContainedPacket packet : packets) {
+                    packet.encode(pOut);
+                }
+            }
+        };
+    }
+
+    private static void cancelAll(List<Future<ContainedPacket>> futures)
+    {
+        for (Future<ContainedPacket> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+}
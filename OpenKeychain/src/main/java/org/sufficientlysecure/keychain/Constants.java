@@ -118,6 +118,9 @@ public final class Constants {
         // keyserver sync settings
         public static final String SYNC_CONTACTS = "syncContacts";
         public static final String SYNC_KEYSERVER = "syncKeyserver";
+        // contact sync state, not shown in settings
+        public static final String CONTACT_SYNC_SEQUENCE = "contactSyncSequence";
+        public static final String CONTACT_SYNC_FULL_TIME = "contactSyncFullTime";
         // other settings
         public static final String EXPERIMENTAL_ENABLE_WORD_CONFIRM = "experimentalEnableWordConfirm";
         public static final String EXPERIMENTAL_ENABLE_LINKED_IDENTITIES = "experimentalEnableLinkedIdentities";
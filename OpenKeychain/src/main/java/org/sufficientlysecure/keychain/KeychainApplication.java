@@ -22,7 +22,6 @@ import android.accounts.AccountManager;
 import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -31,19 +30,22 @@ import android.support.annotation.Nullable;
 import android.widget.Toast;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.pgp.JcaProviderSelector;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.provider.KeychainProvider;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
+import org.sufficientlysecure.keychain.util.BitmapCache;
+import org.sufficientlysecure.keychain.util.ContactHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.TlsHelper;
 
 import java.security.Security;
-import java.util.HashMap;
 
 
 public class KeychainApplication extends Application {
@@ -56,25 +58,36 @@ public class KeychainApplication extends Application {
     public void onCreate() {
         super.onCreate();
 
-        /*
-         * Sets our own Bouncy Castle library as preferred security provider
-         *
-         * because Android's default provider config has BC at position 3,
-         * we need to remove it and insert BC again at position 1 (above OpenSSLProvider!)
-         *
-         * (insertProviderAt() position starts from 1)
-         */
-        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
-        Security.insertProviderAt(new BouncyCastleProvider(), 1);
-
-        /*
-         * apply RNG fixes
-         *
-         * among other things, executes Security.insertProviderAt(new
-         * LinuxPRNGSecureRandomProvider(), 1) for Android <= SDK 17
-         */
-        PRNGFixes.apply();
-        Log.d(Constants.TAG, "Bouncy Castle set and PRNG Fixes applied!");
+        StartupOrchestrator startup = new StartupOrchestrator();
+
+        // crypto is needed by every entry point, and has to be set up before anything else
+        startup.runNow("security providers", new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * Sets our own Bouncy Castle library as preferred security provider
+                 *
+                 * because Android's default provider config has BC at position 3,
+                 * we need to remove it and insert BC again at position 1 (above OpenSSLProvider!)
+                 *
+                 * (insertProviderAt() position starts from 1)
+                 */
+                Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
+                Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+                /*
+                 * apply RNG fixes
+                 *
+                 * among other things, executes Security.insertProviderAt(new
+                 * LinuxPRNGSecureRandomProvider(), 1) for Android <= SDK 17
+                 */
+                PRNGFixes.apply();
+                Log.d(Constants.TAG, "Bouncy Castle set and PRNG Fixes applied!");
+
+                // benchmark available providers in the background, bouncy castle is used until this is done
+                JcaProviderSelector.calibrateAsync();
+            }
+        });
 
         /*
         if (Constants.DEBUG) {
@@ -86,39 +99,85 @@ public class KeychainApplication extends Application {
         }
         */
 
-        // Create OpenKeychain directory on sdcard if not existing
-        if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-            if (!Constants.Path.APP_DIR.exists() && !Constants.Path.APP_DIR.mkdirs()) {
-                // ignore this for now, it's not crucial
-                // that the directory doesn't exist at this point
-            }
-        }
-
-        brandGlowEffect(getApplicationContext(),
-                FormattingUtils.getColorFromAttr(getApplicationContext(), R.attr.colorPrimary));
-
-        // Add OpenKeychain account to Android to link contacts with keys and keyserver sync
-        createAccountIfNecessary(this);
+        // pinned certificates are only read from assets once a keyserver is contacted
+        TlsHelper.addPinnedCertificate("hkps.pool.sks-keyservers.net", getAssets(), "hkps.pool.sks-keyservers.net.CA.cer");
+        TlsHelper.addPinnedCertificate("pgp.mit.edu", getAssets(), "pgp.mit.edu.cer");
+        TlsHelper.addPinnedCertificate("api.keybase.io", getAssets(), "api.keybase.io.CA.cer");
 
-        // if first time, enable keyserver and contact sync
-        if (Preferences.getPreferences(this).isFirstTime()) {
-            KeyserverSyncAdapterService.enableKeyserverSync(this);
-            ContactSyncAdapterService.enableContactsSync(this);
+        // the remote api and sync adapters run in processes of their own, and don't need the rest
+        String processName = StartupOrchestrator.getProcessName();
+        if (processName != null && processName.contains(":")) {
+            startup.logTimings(processName);
+            return;
         }
 
-        // Update keyserver list as needed
-        Preferences.getPreferences(this).upgradePreferences(this);
+        startup.runNow("ui", new Runnable() {
+            @Override
+            public void run() {
+                brandGlowEffect(getApplicationContext(),
+                        FormattingUtils.getColorFromAttr(getApplicationContext(), R.attr.colorPrimary));
 
-        TlsHelper.addPinnedCertificate("hkps.pool.sks-keyservers.net", getAssets(), "hkps.pool.sks-keyservers.net.CA.cer");
-        TlsHelper.addPinnedCertificate("pgp.mit.edu", getAssets(), "pgp.mit.edu.cer");
-        TlsHelper.addPinnedCertificate("api.keybase.io", getAssets(), "api.keybase.io.CA.cer");
+                // Update keyserver list as needed
+                Preferences.getPreferences(KeychainApplication.this).upgradePreferences(KeychainApplication.this);
+            }
+        });
+
+        // read this right away, before the first activity has a chance to change it
+        final boolean firstTime = Preferences.getPreferences(this).isFirstTime();
+        startup.runInBackground("accounts", new Runnable() {
+            @Override
+            public void run() {
+                // Add OpenKeychain account to Android to link contacts with keys and keyserver sync
+                createAccountIfNecessary(KeychainApplication.this);
+
+                // if first time, enable keyserver and contact sync
+                if (firstTime) {
+                    KeyserverSyncAdapterService.enableKeyserverSync(KeychainApplication.this);
+                    ContactSyncAdapterService.enableContactsSync(KeychainApplication.this);
+                }
+            }
+        });
+
+        startup.runInBackground("files", new Runnable() {
+            @Override
+            public void run() {
+                // Create OpenKeychain directory on sdcard if not existing
+                if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+                    if (!Constants.Path.APP_DIR.exists() && !Constants.Path.APP_DIR.mkdirs()) {
+                        // ignore this for now, it's not crucial
+                        // that the directory doesn't exist at this point
+                    }
+                }
 
-        TemporaryFileProvider.cleanUp(this);
+                TemporaryFileProvider.cleanUp(KeychainApplication.this);
+            }
+        });
 
         if (!checkConsolidateRecovery()) {
-            // force DB upgrade, https://github.com/open-keychain/open-keychain/issues/1334
-            new KeychainDatabase(this).getReadableDatabase().close();
+            startup.runInBackground("database", new Runnable() {
+                @Override
+                public void run() {
+                    // force DB upgrade, https://github.com/open-keychain/open-keychain/issues/1334
+                    upgradeDatabase();
+                }
+            });
         }
+
+        startup.logTimings("main process");
+    }
+
+    /**
+     * Opens the database to trigger upgrades. This goes through the instance of our own
+     * KeychainProvider if possible, which KeychainExternalProvider shares, so concurrent
+     * queries of both simply wait for the upgrade.
+     */
+    private void upgradeDatabase() {
+        KeychainDatabase database = KeychainProvider.getLocalDb(getContentResolver());
+        if (database != null) {
+            database.getReadableDatabase();
+            return;
+        }
+        new KeychainDatabase(this).getReadableDatabase().close();
     }
 
     /**
@@ -148,15 +207,14 @@ public class KeychainApplication extends Application {
         }
     }
 
-    public static HashMap<String,Bitmap> qrCodeCache = new HashMap<>();
+    public static final BitmapCache<String> qrCodeCache = new BitmapCache<>(16);
 
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
 
-        if (level >= TRIM_MEMORY_UI_HIDDEN) {
-            qrCodeCache.clear();
-        }
+        qrCodeCache.onTrimMemory(level);
+        ContactHelper.trimPhotoCache(level);
     }
 
     /**
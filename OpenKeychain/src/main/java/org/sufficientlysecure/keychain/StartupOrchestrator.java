@@ -0,0 +1,110 @@
+package org.sufficientlysecure.keychain;
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Runs the phases of application startup, and records how long each of them took.
+ * <p/>
+ * KeychainApplication.onCreate() runs on the main thread of every process before anything
+ * else, including cold starts of the remote api for mail clients. Phases which the entry
+ * point needs right away are run synchronously, everything else is handed to a single
+ * background thread at low priority, where phases run in the order they were added.
+ */
+class StartupOrchestrator {
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final Map<String, Long> mTimings = new LinkedHashMap<>();
+    private ExecutorService mBackgroundExecutor;
+
+    /** Runs a phase on the calling thread. */
+    void runNow(String name, Runnable phase) {
+        runTimed(name, phase);
+    }
+
+    /** Runs a phase on the background thread, after all phases added before. */
+    void runInBackground(final String name, final Runnable phase) {
+        if (mBackgroundExecutor == null) {
+            // a single thread, which terminates when idle, so it costs nothing after startup
+            mBackgroundExecutor = new ThreadPoolExecutor(0, 1, 5L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    runTimed(name, phase);
+                } catch (RuntimeException e) {
+                    // nobody is waiting for this phase, so don't take down the application
+                    Log.e(Constants.TAG, "startup phase " + name + " failed", e);
+                }
+            }
+        });
+    }
+
+    /** Logs the timings of all phases finished so far. */
+    void logTimings(String entryPoint) {
+        synchronized (mTimings) {
+            Log.d(Constants.TAG, "startup of " + entryPoint + " took "
+                    + (SystemClock.elapsedRealtime() - mStartTime) + "ms on the main thread, phases: "
+                    + mTimings);
+        }
+    }
+
+    private void runTimed(String name, Runnable phase) {
+        long start = SystemClock.elapsedRealtime();
+        phase.run();
+        long time = SystemClock.elapsedRealtime() - start;
+        synchronized (mTimings) {
+            mTimings.put(name, time);
+        }
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            Log.d(Constants.TAG, "startup phase " + name + " finished in background after " + time + "ms");
+        }
+    }
+
+    /**
+     * Returns the name of the current process, e.g. "org.sufficientlysecure.keychain:remote_api".
+     * This is read from /proc, since asking the ActivityManager is an ipc call.
+     */
+    static String getProcessName() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/" + Process.myPid() + "/cmdline");
+            byte[] buf = new byte[256];
+            int length = in.read(buf);
+            int end = 0;
+            while (end < length && buf[end] != 0) {
+                end++;
+            }
+            return new String(buf, 0, end, "UTF-8");
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not read process name", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nvm
+                }
+            }
+        }
+    }
+
+}
@@ -79,6 +79,9 @@ public class HkpKeyserver extends Keyserver {
     private Proxy mProxy;
     private boolean mSecure;
 
+    /** Client for uploads, created on first use so that several uploads share its connections. */
+    private OkHttpClient mAddClient;
+
     /**
      * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
      * <ul>
@@ -298,6 +301,16 @@ public class HkpKeyserver extends Keyserver {
             throw new QueryFailedException("Querying server(s) for '" + mHost + "' failed.");
         }
 
+        return parseIndex(data, query);
+    }
+
+    /**
+     * Parses a machine readable index, as returned for op=index&options=mr, into one entry per
+     * key. Keys which can't be parsed are skipped.
+     */
+    public ArrayList<ImportKeysListEntry> parseIndex(String data, String query) {
+        ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+
         final Matcher matcher = PUB_KEY_LINE.matcher(data);
         while (matcher.find()) {
             final ImportKeysListEntry entry = new ImportKeysListEntry();
@@ -422,7 +435,7 @@ public class HkpKeyserver extends Keyserver {
                     .post(body)
                     .build();
 
-            Response response = getClient(url, mProxy).newCall(request).execute();
+            Response response = getAddClient(url).newCall(request).execute();
 
             Log.d(Constants.TAG, "response code: " + response.code());
             Log.d(Constants.TAG, "answer: " + response.body().string());
@@ -437,6 +450,13 @@ public class HkpKeyserver extends Keyserver {
         }
     }
 
+    private synchronized OkHttpClient getAddClient(URL url) throws IOException {
+        if (mAddClient == null) {
+            mAddClient = getClient(url, mProxy);
+        }
+        return mAddClient;
+    }
+
     @Override
     public String toString() {
         return getUrlPrefix() + mHost + ":" + mPort;
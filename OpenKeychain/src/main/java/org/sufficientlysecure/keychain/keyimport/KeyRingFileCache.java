@@ -0,0 +1,382 @@
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import android.content.Context;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+
+
+/**
+ * A ParcelableFileCache for keyrings, which stores their fields directly instead of going
+ * through a Parcel for every single keyring.
+ * <p/>
+ * The file starts with a header of magic number, flags and number of entries. Each entry is
+ * prefixed with its length, followed by a bit mask of the fields present and the fields
+ * themselves, each again prefixed with its length. Uncompressed files are read through a
+ * memory mapped MappedReader, which also allows random access to the entries. Compressed
+ * files are deflated after the header, and can only be read in order. Files in the old
+ * Parcel based format are still read by ParcelableFileCache.
+ */
+public class KeyRingFileCache extends ParcelableFileCache<ParcelableKeyRing> {
+
+    private static final int MAGIC = 0x4b524331; // "KRC1"
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int HEADER_SIZE = 9;
+
+    private static final int FIELD_COUNT = 5;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final boolean mCompressed;
+
+    public KeyRingFileCache(Context context, String filename) {
+        this(context, filename, false);
+    }
+
+    /**
+     * @param compressed if the entries should be deflated, which makes the file smaller at the
+     *                   expense of cpu time, and rules out random access
+     */
+    public KeyRingFileCache(Context context, String filename, boolean compressed) {
+        super(context, filename);
+        mCompressed = compressed;
+    }
+
+    @Override
+    public void writeCache(int numEntries, Iterator<ParcelableKeyRing> it) throws IOException {
+
+        FileOutputStream fileOut = new FileOutputStream(getCacheFile());
+        Deflater deflater = null;
+        DataOutputStream out = null;
+        try {
+            // the header is never compressed, it tells the reader how to go on
+            DataOutputStream header = new DataOutputStream(fileOut);
+            header.writeInt(MAGIC);
+            header.writeByte(mCompressed ? FLAG_COMPRESSED : 0);
+            header.writeInt(numEntries);
+
+            OutputStream body = new BufferedOutputStream(fileOut, BUFFER_SIZE);
+            if (mCompressed) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                body = new DeflaterOutputStream(body, deflater, BUFFER_SIZE);
+            }
+            out = new DataOutputStream(body);
+
+            while (it.hasNext()) {
+                writeEntry(out, it.next());
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            } else {
+                fileOut.close();
+            }
+            // a Deflater passed to DeflaterOutputStream is not released by close()
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+    }
+
+    @Override
+    public IteratorWithSize<ParcelableKeyRing> readCache(boolean deleteAfterRead) throws IOException {
+
+        File file = getCacheFile();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "keyring cache file not existing", e);
+            throw new IOException(e);
+        }
+
+        int magic;
+        int flags;
+        int numEntries;
+        try {
+            magic = in.readInt();
+            flags = in.readByte();
+            numEntries = in.readInt();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        if (magic != MAGIC) {
+            // written by an older version, before this format existed
+            in.close();
+            return super.readCache(deleteAfterRead);
+        }
+
+        if ((flags & FLAG_COMPRESSED) == 0) {
+            in.close();
+            return openMapped(deleteAfterRead);
+        }
+
+        InputStream body = new InflaterInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        return new StreamReader(new DataInputStream(body), numEntries, deleteAfterRead ? file : null);
+
+    }
+
+    /**
+     * Maps an uncompressed cache file into memory. Since the mapping stays valid after the
+     * file is deleted, deleteAfterRead deletes it right away.
+     */
+    public MappedReader openMapped(boolean deleteAfterRead) throws IOException {
+
+        File file = getCacheFile();
+        FileInputStream fileIn = new FileInputStream(file);
+        MappedReader reader;
+        try {
+            FileChannel channel = fileIn.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || (buffer.get(4) & FLAG_COMPRESSED) != 0) {
+                throw new IOException("not an uncompressed keyring cache file!");
+            }
+            reader = new MappedReader(buffer);
+        } finally {
+            fileIn.close();
+        }
+
+        if (deleteAfterRead) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        return reader;
+
+    }
+
+    private static void writeEntry(DataOutputStream out, ParcelableKeyRing ring) throws IOException {
+        byte[][] fields = {
+                ring.mBytes,
+                encode(ring.mExpectedFingerprint),
+                encode(ring.mKeyIdHex),
+                encode(ring.mKeybaseName),
+                encode(ring.mFbUsername)
+        };
+
+        int mask = 0;
+        int length = 1;
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if (fields[i] != null) {
+                mask |= 1 << i;
+                length += 4 + fields[i].length;
+            }
+        }
+
+        out.writeInt(length);
+        out.writeByte(mask);
+        for (byte[] field : fields) {
+            if (field != null) {
+                out.writeInt(field.length);
+                out.write(field);
+            }
+        }
+    }
+
+    /** Reads an entry, without its length prefix, from the buffer's current position. */
+    private static ParcelableKeyRing readEntry(ByteBuffer buffer) {
+        int mask = buffer.get();
+        byte[][] fields = new byte[FIELD_COUNT][];
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if ((mask & (1 << i)) != 0) {
+                fields[i] = new byte[buffer.getInt()];
+                buffer.get(fields[i]);
+            }
+        }
+        return new ParcelableKeyRing(fields[0],
+                decode(fields[1]), decode(fields[2]), decode(fields[3]), decode(fields[4]));
+    }
+
+    private static byte[] encode(String field) {
+        return field != null ? field.getBytes(UTF8) : null;
+    }
+
+    private static String decode(byte[] field) {
+        return field != null ? new String(field, UTF8) : null;
+    }
+
+    /** Reads a memory mapped cache file, in order or by index. */
+    public static class MappedReader implements IteratorWithSize<ParcelableKeyRing> {
+
+        private final ByteBuffer mBuffer;
+        private final int[] mOffsets;
+        private int mNext = 0;
+
+        MappedReader(ByteBuffer buffer) {
+            mBuffer = buffer;
+
+            // only the length prefixes are read here, entries are decoded on access
+            int numEntries = buffer.getInt(5);
+            int[] offsets = new int[numEntries];
+            int position = HEADER_SIZE;
+            int found = 0;
+            while (found < numEntries && position + 4 <= buffer.limit()) {
+                int end = position + 4 + buffer.getInt(position);
+                if (end > buffer.limit()) {
+                    break;
+                }
+                offsets[found++] = position;
+                position = end;
+            }
+            if (found < numEntries) {
+                Log.e(Constants.TAG, "keyring cache file is truncated, found " + found
+                        + " of " + numEntries + " entries");
+                int[] truncated = new int[found];
+                System.arraycopy(offsets, 0, truncated, 0, found);
+                offsets = truncated;
+            }
+            mOffsets = offsets;
+        }
+
+        @Override
+        public int getSize() {
+            return mOffsets.length;
+        }
+
+        /** Returns the entry at the given index, independent of the iteration. */
+        public ParcelableKeyRing get(int index) {
+            ByteBuffer entry = mBuffer.duplicate();
+            entry.position(mOffsets[index] + 4);
+            return readEntry(entry);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mOffsets.length;
+        }
+
+        @Override
+        public ParcelableKeyRing next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return get(mNext++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /** Reads a compressed cache file in order. */
+    private static class StreamReader implements IteratorWithSize<ParcelableKeyRing> {
+
+        private final DataInputStream mIn;
+        private final int mNumEntries;
+        private final File mDeleteAfterRead;
+
+        private ParcelableKeyRing mRing = null;
+        private int mRead = 0;
+        private boolean mClosed = false;
+        private byte[] mBuf = new byte[BUFFER_SIZE];
+
+        StreamReader(DataInputStream in, int numEntries, File deleteAfterRead) {
+            mIn = in;
+            mNumEntries = numEntries;
+            mDeleteAfterRead = deleteAfterRead;
+        }
+
+        @Override
+        public int getSize() {
+            return mNumEntries;
+        }
+
+        private void readNext() {
+            if (mRing != null || mClosed) {
+                return;
+            }
+            if (mRead >= mNumEntries) {
+                close();
+                return;
+            }
+
+            try {
+                int length = mIn.readInt();
+                if (mBuf.length < length) {
+                    mBuf = new byte[Math.max(length, mBuf.length * 2)];
+                }
+                mIn.readFully(mBuf, 0, length);
+                mRing = readEntry(ByteBuffer.wrap(mBuf, 0, length));
+                mRead += 1;
+            } catch (IOException e) {
+                // includes EOFException, if fewer entries than announced were written
+                Log.e(Constants.TAG, "Encountered IOException during cache read!", e);
+                close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            readNext();
+            return mRing != null;
+        }
+
+        @Override
+        public ParcelableKeyRing next() {
+            readNext();
+            if (mRing == null) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return mRing;
+            } finally {
+                mRing = null;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            close();
+            super.finalize();
+        }
+
+        private void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // nvm
+            }
+            if (mDeleteAfterRead != null) {
+                //noinspection ResultOfMethodCallIgnored
+                mDeleteAfterRead.delete();
+            }
+        }
+
+    }
+
+}
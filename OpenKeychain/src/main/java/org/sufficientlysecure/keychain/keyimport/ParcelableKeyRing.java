@@ -67,6 +67,16 @@ public class ParcelableKeyRing implements Parcelable {
         mFbUsername = fbUsername;
     }
 
+    /** Used by KeyRingFileCache, which stores all fields as they are. */
+    ParcelableKeyRing(byte[] bytes, String expectedFingerprint, String keyIdHex,
+                      String keybaseName, String fbUsername) {
+        mBytes = bytes;
+        mExpectedFingerprint = expectedFingerprint;
+        mKeyIdHex = keyIdHex;
+        mKeybaseName = keybaseName;
+        mFbUsername = fbUsername;
+    }
+
     private ParcelableKeyRing(Parcel source) {
         mBytes = source.createByteArray();
 
@@ -19,7 +19,6 @@
 package org.sufficientlysecure.keychain.operations;
 
 
-import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -51,6 +50,7 @@ import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.KeyRingBlobStore;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -58,8 +58,10 @@ import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.PooledBufferedOutputStream;
 
 
 /**
@@ -78,12 +80,16 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             KeyRings.MASTER_KEY_ID,
             KeyRings.PUBKEY_DATA,
             KeyRings.PRIVKEY_DATA,
-            KeyRings.HAS_ANY_SECRET
+            KeyRings.HAS_ANY_SECRET,
+            KeyRings.PUBKEY_DATA_HASH,
+            KeyRings.PRIVKEY_DATA_HASH
     };
     private static final int INDEX_MASTER_KEY_ID = 0;
     private static final int INDEX_PUBKEY_DATA = 1;
     private static final int INDEX_SECKEY_DATA = 2;
     private static final int INDEX_HAS_ANY_SECRET = 3;
+    private static final int INDEX_PUBKEY_DATA_HASH = 4;
+    private static final int INDEX_SECKEY_DATA_HASH = 5;
 
     public BackupOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
@@ -117,8 +123,9 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
 
             { // export key data, and possibly return if we don't encrypt
 
-                DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
-                        mContext.getContentResolver().openOutputStream(backupOutputUri)));
+                // the pooled buffer is recycled when exportKeysToStream closes the stream
+                DataOutputStream outStream = new DataOutputStream(new PooledBufferedOutputStream(
+                        mContext.getContentResolver().openOutputStream(backupOutputUri), BufferPool.LARGE));
 
                 boolean backupSuccess = exportKeysToStream(
                         log, backupInput.mMasterKeyIds, backupInput.mExportSecret, outStream);
@@ -157,9 +164,15 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             InputData inputData = new InputData(inStream, exportedDataSize, filename);
 
             OutputStream outStream = mContext.getContentResolver().openOutputStream(backupInput.mOutputUri);
-            outStream = new BufferedOutputStream(outStream);
-
-            PgpSignEncryptResult encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
+            PooledBufferedOutputStream pooledOutStream = new PooledBufferedOutputStream(outStream, BufferPool.LARGE);
+
+            PgpSignEncryptResult encryptResult;
+            try {
+                encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, pooledOutStream);
+            } finally {
+                // the stream is only closed by the operation if it was successful
+                pooledOutStream.release();
+            }
             if (!encryptResult.success()) {
                 log.addByMerge(encryptResult, 1);
                 // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
@@ -247,7 +260,8 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
 
         try {
             arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = cursor.getBlob(INDEX_PUBKEY_DATA);
+            byte[] data = new KeyRingBlobStore(mContext).readKeyRingData(
+                    cursor, INDEX_PUBKEY_DATA, INDEX_PUBKEY_DATA_HASH);
             CanonicalizedKeyRing ring = UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
             ring.encode(arOutStream);
 
@@ -268,7 +282,8 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
 
         try {
             arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = cursor.getBlob(INDEX_SECKEY_DATA);
+            byte[] data = new KeyRingBlobStore(mContext).readKeyRingData(
+                    cursor, INDEX_SECKEY_DATA, INDEX_SECKEY_DATA_HASH);
             CanonicalizedKeyRing ring = UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
             ring.encode(arOutStream);
 
@@ -19,6 +19,14 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -62,6 +70,8 @@ import org.sufficientlysecure.keychain.util.Passphrase;
  */
 public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
 
+    public static final int MAX_THREADS = 4;
+
     public CertifyOperation(Context context, ProviderHelper providerHelper, Progressable progressable, AtomicBoolean
             cancelled) {
         super(context, providerHelper, progressable, cancelled);
@@ -147,31 +157,47 @@ public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
         NfcSignOperationsBuilder allRequiredInput = new NfcSignOperationsBuilder(
                 cryptoInput.getSignatureTime(), masterKeyId, masterKeyId);
 
-        // Work through all requested certifications
-        for (CertifyAction action : parcel.mCertifyActions) {
-
-            // Check if we were cancelled
-            if (checkCancelled()) {
-                log.add(LogType.MSG_OPERATION_CANCELLED, 0);
-                return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+        // Load and certify all requested keys in parallel, the unlocked key is only read from
+        ExecutorService certifyExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        try {
+            ArrayList<Future<CertifyActionResult>> pendingResults = new ArrayList<>();
+            for (CertifyAction action : parcel.mCertifyActions) {
+                pendingResults.add(certifyExecutor.submit(
+                        new CertifyActionCallable(certificationKey, masterKeyId, action, cryptoInput)));
             }
 
-            try {
+            // Work through all requested certifications, in their original order
+            for (Future<CertifyActionResult> pendingResult : pendingResults) {
 
-                if (action.mMasterKeyId == parcel.mMasterKeyId) {
-                    log.add(LogType.MSG_CRT_ERROR_SELF, 2);
-                    certifyError += 1;
-                    continue;
+                // Check if we were cancelled
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                }
+
+                CertifyActionResult actionResult;
+                try {
+                    actionResult = pendingResult.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                } catch (ExecutionException e) {
+                    // certifyAction does not throw, so this can only be a programming error
+                    throw new RuntimeException(e.getCause());
                 }
 
-                CanonicalizedPublicKeyRing publicRing =
-                        mProviderHelper.getCanonicalizedPublicKeyRing(action.mMasterKeyId);
+                // cancelled before it even started
+                if (actionResult == null) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                }
 
-                PgpCertifyOperation op = new PgpCertifyOperation();
-                PgpCertifyResult result = op.certify(certificationKey, publicRing,
-                        log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+                log.addAll(actionResult.mLog.toList());
+                PgpCertifyResult result = actionResult.mResult;
 
-                if (!result.success()) {
+                if (result == null || !result.success()) {
                     certifyError += 1;
                     continue;
                 }
@@ -183,11 +209,9 @@ public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
 
                 certifiedKeys.add(result.getCertifiedRing());
 
-            } catch (NotFoundException e) {
-                certifyError += 1;
-                log.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
             }
-
+        } finally {
+            certifyExecutor.shutdownNow();
         }
 
         if (!allRequiredInput.isEmpty()) {
@@ -203,14 +227,19 @@ public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
             return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
         }
 
-        // these variables are used inside the following loop, but they need to be created only once
+        // Write all certified keys into the database, in a single transaction if possible
+        List<SaveKeyringResult> saveResults = mProviderHelper.savePublicKeyRings(certifiedKeys);
+
+        // this is used inside the following loop, but it needs to be created only once. it keeps
+        // its keyserver between uploads, so all of them go through the same http client.
         UploadOperation uploadOperation = null;
         if (parcel.keyServerUri != null) {
             uploadOperation = new UploadOperation(mContext, mProviderHelper, mProgressable, mCancelled);
         }
 
-        // Write all certified keys into the database
-        for (UncachedKeyRing certifiedKey : certifiedKeys) {
+        for (int i = 0; i < certifiedKeys.size(); i++) {
+            UncachedKeyRing certifiedKey = certifiedKeys.get(i);
+            SaveKeyringResult result = saveResults.get(i);
 
             // Check if we were cancelled
             if (checkCancelled()) {
@@ -221,9 +250,6 @@ public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
 
             log.add(LogType.MSG_CRT_SAVE, 2,
                     KeyFormattingUtils.convertKeyIdToHex(certifiedKey.getMasterKeyId()));
-            // store the signed key in our local cache
-            mProviderHelper.clearLog();
-            SaveKeyringResult result = mProviderHelper.savePublicKeyRing(certifiedKey);
 
             if (uploadOperation != null) {
                 UploadKeyringParcel uploadInput =
@@ -266,4 +292,61 @@ public class CertifyOperation extends BaseOperation<CertifyActionsParcel> {
 
     }
 
+
+    /** Certifies a single key, logging into its own log so it can run on any thread. */
+    private CertifyActionResult certifyAction(CanonicalizedSecretKey certificationKey, long masterKeyId,
+            CertifyAction action, CryptoInputParcel cryptoInput) {
+
+        if (checkCancelled()) {
+            return null;
+        }
+
+        CertifyActionResult actionResult = new CertifyActionResult();
+        OperationLog log = actionResult.mLog;
+
+        if (action.mMasterKeyId == masterKeyId) {
+            log.add(LogType.MSG_CRT_ERROR_SELF, 2);
+            return actionResult;
+        }
+
+        try {
+            CanonicalizedPublicKeyRing publicRing =
+                    mProviderHelper.getCanonicalizedPublicKeyRing(action.mMasterKeyId);
+
+            PgpCertifyOperation op = new PgpCertifyOperation();
+            actionResult.mResult = op.certify(certificationKey, publicRing,
+                    log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+        } catch (NotFoundException e) {
+            log.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
+        }
+
+        return actionResult;
+    }
+
+    private class CertifyActionCallable implements Callable<CertifyActionResult> {
+        private final CanonicalizedSecretKey mCertificationKey;
+        private final long mMasterKeyId;
+        private final CertifyAction mAction;
+        private final CryptoInputParcel mCryptoInput;
+
+        CertifyActionCallable(CanonicalizedSecretKey certificationKey, long masterKeyId,
+                CertifyAction action, CryptoInputParcel cryptoInput) {
+            mCertificationKey = certificationKey;
+            mMasterKeyId = masterKeyId;
+            mAction = action;
+            mCryptoInput = cryptoInput;
+        }
+
+        @Override
+        public CertifyActionResult call() {
+            return certifyAction(mCertificationKey, mMasterKeyId, mAction, mCryptoInput);
+        }
+    }
+
+    /** The log of a single certification, and its result or null if it failed early. */
+    private static class CertifyActionResult {
+        final OperationLog mLog = new OperationLog();
+        PgpCertifyResult mResult;
+    }
+
 }
@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.operations;
 
+import java.util.Set;
+
 import android.content.Context;
 import android.support.annotation.NonNull;
 
@@ -26,7 +28,6 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.Progressable;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.DeleteKeyringParcel;
@@ -76,20 +77,19 @@ public class DeleteOperation extends BaseOperation<DeleteKeyringParcel> {
 
         boolean cancelled = false;
         int success = 0, fail = 0;
-        for (long masterKeyId : masterKeyIds) {
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
-            }
-            int count = mProviderHelper.getContentResolver().delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null
-            );
-            if (count > 0) {
-                log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                success += 1;
-            } else {
-                log.add(LogType.MSG_DEL_KEY_FAIL, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                fail += 1;
+        if (checkCancelled()) {
+            cancelled = true;
+        } else {
+            // all keys are deleted at once, with a single notification for all of them
+            Set<Long> deleted = mProviderHelper.deletePublicKeyRings(masterKeyIds);
+            for (long masterKeyId : masterKeyIds) {
+                if (deleted.remove(masterKeyId)) {
+                    log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                    success += 1;
+                } else {
+                    log.add(LogType.MSG_DEL_KEY_FAIL, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                    fail += 1;
+                }
             }
         }
 
@@ -41,6 +41,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.FacebookKeyserver;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
@@ -201,10 +202,10 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                             if (entry.mExpectedFingerprint != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
                                         entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint).getBytes();
+                                data = fetchTraced(keyServer, "0x" + entry.mExpectedFingerprint);
                             } else {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex).getBytes();
+                                data = fetchTraced(keyServer, entry.mKeyIdHex);
                             }
                             key = UncachedKeyRing.decodeFromData(data);
                             if (key != null) {
@@ -227,7 +228,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
                         try {
                             log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName).getBytes();
+                            byte[] data = fetchTraced(keybaseServer, entry.mKeybaseName);
                             UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
 
                             if (keybaseKey != null) {
@@ -265,7 +266,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
                         try {
                             log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
-                            byte[] data = facebookServer.get(entry.mFbUsername).getBytes();
+                            byte[] data = fetchTraced(facebookServer, entry.mFbUsername);
                             UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
 
                             if (facebookKey != null) {
@@ -311,6 +312,8 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 SaveKeyringResult result;
                 // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
                 // and https://github.com/open-keychain/open-keychain/issues/1480
+                // note that this is about the shared log and the order of saves, write-ahead
+                // logging only lets readers through while we write, never a second writer
                 synchronized (mProviderHelper) {
                     mProviderHelper.clearLog();
                     if (key.isSecret()) {
@@ -421,6 +424,16 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 importedMasterKeyIdsArray);
     }
 
+    private static byte[] fetchTraced(Keyserver keyserver, String query)
+            throws Keyserver.QueryFailedException {
+        TraceSpan span = Tracer.begin(Tracer.KEYSERVER_FETCH);
+        try {
+            return keyserver.get(query).getBytes();
+        } finally {
+            Tracer.end(span);
+        }
+    }
+
     @NonNull
     @Override
     public ImportKeyResult execute(ImportKeyringParcel importInput, CryptoInputParcel cryptoInput) {
@@ -430,8 +443,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         ImportKeyResult result;
 
         if (keyList == null) {// import from file, do serially
-            ParcelableFileCache<ParcelableKeyRing> cache = new ParcelableFileCache<>(mContext,
-                    "key_import.pcl");
+            KeyRingFileCache cache = new KeyRingFileCache(mContext, "key_import.pcl");
 
             result = serialKeyRingImport(cache, null, null);
         } else {
@@ -517,7 +529,13 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
      * Used to accumulate the results of individual key imports
      */
     public static class KeyImportAccumulator {
+        /** Number of successful key imports which are logged in full, the rest is folded. */
+        public static final int DEFAULT_MAX_DETAILED_KEYS = 100;
+
         private OperationResult.OperationLog mImportLog = new OperationResult.OperationLog();
+        private final int mMaxDetailedKeys;
+        private int mDetailedKeys = 0;
+        private OperationResult.LogFolder mLogFolder;
         Progressable mProgressable;
         private int mTotalKeys;
         private int mImportedKeys = 0;
@@ -538,7 +556,18 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
          *                             is imported
          */
         public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
+            this(totalKeys, externalProgressable, DEFAULT_MAX_DETAILED_KEYS);
+        }
+
+        /**
+         * @param maxDetailedKeys      number of successful key imports to log in full. The logs
+         *                             of all further successful imports without warnings are
+         *                             folded into a single summary entry.
+         */
+        public KeyImportAccumulator(int totalKeys, Progressable externalProgressable,
+                                    int maxDetailedKeys) {
             mTotalKeys = totalKeys;
+            mMaxDetailedKeys = maxDetailedKeys;
             mProgressable = externalProgressable;
             if (mProgressable != null) {
                 mProgressable.setProgress(0, totalKeys);
@@ -558,7 +587,19 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
             boolean notCancelledOrFirstCancelled = !result.cancelled() || !mHasCancelledResult;
             if (notCancelledOrFirstCancelled) {
-                mImportLog.addAll(result.getLog().toList()); //accumulates log
+                boolean uneventful = result.success() && !result.cancelled()
+                        && !result.getLog().containsWarnings();
+                if (uneventful && mDetailedKeys >= mMaxDetailedKeys) {
+                    if (mLogFolder == null) {
+                        mLogFolder = new OperationResult.LogFolder();
+                    }
+                    mLogFolder.fold(result.getLog());
+                } else {
+                    mImportLog.addAll(result.getLog().toList()); //accumulates log
+                    if (uneventful) {
+                        mDetailedKeys++;
+                    }
+                }
                 if (result.cancelled()) {
                     mHasCancelledResult = true;
                 }
@@ -584,6 +625,11 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
          */
         public ImportKeyResult getConsolidatedResult() {
 
+            if (mLogFolder != null) {
+                mImportLog.add(mLogFolder.finish(LogType.MSG_IMPORT_FOLDED, 0, mLogFolder.getFoldedCount()));
+                mLogFolder = null;
+            }
+
             // adding required information to mResultType
             // special case,no keys requested for import
             if (mBadKeys == 0 && mNewKeys == 0 && mUpdatedKeys == 0
@@ -104,12 +104,32 @@ public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
             decryptInput.setInputUri(input.getInputUri());
 
-            currentInputUri = TemporaryFileProvider.createFile(mContext);
-            decryptInput.setOutputUri(currentInputUri);
+            currentInputUri = null;
+            if (decryptInput.isDecryptMetadataOnly()) {
+                // metadata pass first: if the data length is unknown, this spills the whole
+                // plaintext into a temporary file, which is used directly
+                decryptResult = op.execute(decryptInput, cryptoInput);
+                if (decryptResult.isPending()) {
+                    return new InputDataResult(log, decryptResult);
+                }
+                currentInputUri = decryptResult.getSpillUri();
+                if (decryptResult.success() && currentInputUri == null) {
+                    // only metadata was read from the packet headers, decrypt for real. the
+                    // session key was cached in cryptoInput during the first pass.
+                    log.addByMerge(decryptResult, 1);
+                    decryptResult = null;
+                    decryptInput.setDecryptMetadataOnly(false);
+                }
+            }
 
-            decryptResult = op.execute(decryptInput, cryptoInput);
-            if (decryptResult.isPending()) {
-                return new InputDataResult(log, decryptResult);
+            if (decryptResult == null) {
+                currentInputUri = TemporaryFileProvider.createFile(mContext);
+                decryptInput.setOutputUri(currentInputUri);
+
+                decryptResult = op.execute(decryptInput, cryptoInput);
+                if (decryptResult.isPending()) {
+                    return new InputDataResult(log, decryptResult);
+                }
             }
             log.addByMerge(decryptResult, 1);
 
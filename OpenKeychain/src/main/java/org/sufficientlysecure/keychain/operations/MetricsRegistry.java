@@ -0,0 +1,100 @@
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Aggregates counters and timing histograms of all operations in this process.
+ * <p/>
+ * Histograms use fixed buckets of powers of two milliseconds, so recording is cheap and the
+ * memory used doesn't grow with the number of values. Nothing is persisted, dump() is meant
+ * to be called from the debug menu.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry sInstance = new MetricsRegistry();
+
+    public static MetricsRegistry getInstance() {
+        return sInstance;
+    }
+
+    private final TreeMap<String, Long> mCounters = new TreeMap<>();
+    private final TreeMap<String, Histogram> mHistograms = new TreeMap<>();
+
+    private MetricsRegistry() {
+    }
+
+    public synchronized void increment(String name) {
+        Long count = mCounters.get(name);
+        mCounters.put(name, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void recordTime(String name, long millis) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        histogram.record(millis);
+    }
+
+    public synchronized void reset() {
+        mCounters.clear();
+        mHistograms.clear();
+    }
+
+    /** Returns all counters and histograms in human readable form, one per line. */
+    public synchronized String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> counter : mCounters.entrySet()) {
+            builder.append(counter.getKey()).append(": ").append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> histogram : mHistograms.entrySet()) {
+            builder.append(histogram.getKey()).append(": ").append(histogram.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static class Histogram {
+        // bucket i holds values below 2^i ms, the last one everything else
+        private static final int BUCKETS = 18;
+
+        private final long[] mBuckets = new long[BUCKETS];
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mSum += millis;
+            mMax = Math.max(mMax, millis);
+        }
+
+        /** Returns the upper bound of the bucket which contains the given percentile. */
+        long getPercentile(int percentile) {
+            long threshold = (mCount * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= threshold) {
+                    return i < BUCKETS - 1 ? (1L << i) : mMax;
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + mCount + ", avg " + (mCount > 0 ? mSum / mCount : 0) + "ms, p50 <"
+                    + getPercentile(50) + "ms, p95 <" + getPercentile(95) + "ms, max " + mMax + "ms";
+        }
+    }
+
+}
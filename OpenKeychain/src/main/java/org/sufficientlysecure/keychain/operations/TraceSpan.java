@@ -0,0 +1,147 @@
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.ArrayList;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * A timed section of an operation, with the sections nested within it.
+ * <p/>
+ * Spans are created and ended through Tracer. The root span of an operation is attached to
+ * its OperationResult, so whoever receives the result can see where the time was spent.
+ * <p/>
+ * A span which ends while its parent already has a child of the same name is folded into
+ * that child, which then holds the number of such spans and their total duration. Operations
+ * which repeat a section once per key, like imports, would otherwise grow the trace without
+ * bound, and it is parceled along with the result.
+ */
+public class TraceSpan implements Parcelable {
+
+    public final String mName;
+    /** Start time in milliseconds, relative to the start of the root span. */
+    public final long mStartTime;
+    /** Duration in milliseconds, or -1 if the span was never ended. */
+    long mDuration = -1;
+    /** Number of spans folded into this one, including itself. */
+    int mCount = 1;
+    final ArrayList<TraceSpan> mChildren = new ArrayList<>();
+
+    // only used while the span is open, not parceled
+    final TraceSpan mParent;
+    final long mStartNanos;
+
+    TraceSpan(String name, TraceSpan parent) {
+        mName = name;
+        mParent = parent;
+        mStartNanos = System.nanoTime();
+        mStartTime = parent != null ? parent.mStartTime + (mStartNanos - parent.mStartNanos) / 1000000 : 0;
+    }
+
+    private TraceSpan(Parcel source) {
+        mName = source.readString();
+        mStartTime = source.readLong();
+        mDuration = source.readLong();
+        mCount = source.readInt();
+        source.readTypedList(mChildren, CREATOR);
+        mParent = null;
+        mStartNanos = 0;
+    }
+
+    void finish() {
+        mDuration = (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    /** Folds an ended child into an earlier child of the same name, if there is one. */
+    void foldChild(TraceSpan child) {
+        for (TraceSpan sibling : mChildren) {
+            if (sibling != child && sibling.mName.equals(child.mName)) {
+                mChildren.remove(child);
+                sibling.fold(child);
+                return;
+            }
+        }
+    }
+
+    private void fold(TraceSpan other) {
+        mCount += other.mCount;
+        mDuration += other.mDuration;
+        for (TraceSpan otherChild : other.mChildren) {
+            TraceSpan child = null;
+            for (TraceSpan candidate : mChildren) {
+                if (candidate.mName.equals(otherChild.mName)) {
+                    child = candidate;
+                    break;
+                }
+            }
+            if (child != null) {
+                child.fold(otherChild);
+            } else {
+                mChildren.add(otherChild);
+            }
+        }
+    }
+
+    /** Returns the total duration of this span and all spans folded into it. */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public ArrayList<TraceSpan> getChildren() {
+        return mChildren;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mName);
+        dest.writeLong(mStartTime);
+        dest.writeLong(mDuration);
+        dest.writeInt(mCount);
+        dest.writeTypedList(mChildren);
+    }
+
+    public static final Creator<TraceSpan> CREATOR = new Creator<TraceSpan>() {
+        public TraceSpan createFromParcel(final Parcel source) {
+            return new TraceSpan(source);
+        }
+
+        public TraceSpan[] newArray(final int size) {
+            return new TraceSpan[size];
+        }
+    };
+
+    /** Returns an indented tree of this span and its children, one line each. */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, 0);
+        return builder.toString();
+    }
+
+    private void appendTo(StringBuilder builder, int indent) {
+        for (int i = 0; i < indent; i++) {
+            builder.append("  ");
+        }
+        builder.append(mName).append(" @").append(mStartTime).append("ms: ")
+                .append(mDuration).append("ms");
+        if (mCount > 1) {
+            builder.append(" (").append(mCount).append(" times)");
+        }
+        builder.append('\n');
+        for (TraceSpan child : mChildren) {
+            child.appendTo(builder, indent + 1);
+        }
+    }
+
+}
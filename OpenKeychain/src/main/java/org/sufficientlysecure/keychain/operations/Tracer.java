@@ -0,0 +1,52 @@
+package org.sufficientlysecure.keychain.operations;
+
+
+/**
+ * Creates nested TraceSpans for the sections of an operation.
+ * <p/>
+ * Spans are tracked per thread: a span begun while another one is open on the same thread
+ * becomes its child, or is folded into an earlier child of the same name when it ends. Every
+ * call to begin() must be matched by a call to end(), in a finally block. The duration of
+ * every ended span is also recorded in the MetricsRegistry under its name, so spans of
+ * operations which are not traced as a whole, or which run on worker threads of their own,
+ * still show up there.
+ */
+public class Tracer {
+
+    public static final String KEY_LOOKUP = "key lookup";
+    public static final String UNLOCK = "unlock";
+    public static final String PKESK_DECRYPT = "pkesk decrypt";
+    public static final String PAYLOAD_STREAMING = "payload streaming";
+    public static final String SIGNATURE_VERIFY = "signature verify";
+    public static final String DATABASE_SAVE = "database save";
+    public static final String KEYSERVER_FETCH = "keyserver fetch";
+
+    private static final ThreadLocal<TraceSpan> sCurrentSpan = new ThreadLocal<>();
+
+    private Tracer() {
+    }
+
+    /** Begins a span, as child of the span currently open on this thread, if any. */
+    public static TraceSpan begin(String name) {
+        TraceSpan parent = sCurrentSpan.get();
+        TraceSpan span = new TraceSpan(name, parent);
+        if (parent != null) {
+            parent.mChildren.add(span);
+        }
+        sCurrentSpan.set(span);
+        return span;
+    }
+
+    /** Ends a span, and makes its parent the current span of this thread again. */
+    public static void end(TraceSpan span) {
+        span.finish();
+        MetricsRegistry.getInstance().recordTime(span.mName, span.getDuration());
+        if (span.mParent != null) {
+            span.mParent.foldChild(span);
+            sCurrentSpan.set(span.mParent);
+        } else {
+            sCurrentSpan.remove();
+        }
+    }
+
+}
@@ -56,9 +56,16 @@ import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
 /**
  * An operation class which implements the upload of a single key to a key server.
+ * <p/>
+ * When the same instance is used to upload several keys to the same key server, its
+ * HkpKeyserver is reused so that the uploads share one http client and its connections.
  */
 public class UploadOperation extends BaseOperation<UploadKeyringParcel> {
 
+    private HkpKeyserver mHkpKeyserver;
+    private String mHkpKeyserverUri;
+    private Proxy mHkpKeyserverProxy;
+
     public UploadOperation(Context context, ProviderHelper providerHelper,
             Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
@@ -103,11 +110,8 @@ public class UploadOperation extends BaseOperation<UploadKeyringParcel> {
 
         }
 
-        HkpKeyserver hkpKeyserver;
-        {
-            hkpKeyserver = new HkpKeyserver(uploadInput.mKeyserver, proxy);
-            log.add(LogType.MSG_UPLOAD_SERVER, 1, hkpKeyserver.toString());
-        }
+        HkpKeyserver hkpKeyserver = getHkpKeyserver(uploadInput.mKeyserver, proxy);
+        log.add(LogType.MSG_UPLOAD_SERVER, 1, hkpKeyserver.toString());
 
         CanonicalizedPublicKeyRing keyring = getPublicKeyringFromInput(log, uploadInput);
         if (keyring == null) {
@@ -117,6 +121,15 @@ public class UploadOperation extends BaseOperation<UploadKeyringParcel> {
         return uploadKeyRingToServer(log, hkpKeyserver, keyring);
     }
 
+    private HkpKeyserver getHkpKeyserver(String keyserver, Proxy proxy) {
+        if (mHkpKeyserver == null || !keyserver.equals(mHkpKeyserverUri) || !proxy.equals(mHkpKeyserverProxy)) {
+            mHkpKeyserver = new HkpKeyserver(keyserver, proxy);
+            mHkpKeyserverUri = keyserver;
+            mHkpKeyserverProxy = proxy;
+        }
+        return mHkpKeyserver;
+    }
+
     @Nullable
     private CanonicalizedPublicKeyRing getPublicKeyringFromInput(OperationLog log, UploadKeyringParcel uploadInput) {
 
@@ -18,6 +18,7 @@
 
 package org.sufficientlysecure.keychain.operations.results;
 
+import android.net.Uri;
 import android.os.Parcel;
 
 import org.openintents.openpgp.OpenPgpDecryptionResult;
@@ -39,6 +40,8 @@ public class DecryptVerifyResult extends InputPendingResult {
 
     byte[] mOutputBytes;
 
+    Uri mSpillUri;
+
     public long mOperationTime;
 
     public DecryptVerifyResult(int result, OperationLog log) {
@@ -56,6 +59,7 @@ public class DecryptVerifyResult extends InputPendingResult {
         mDecryptionResult = source.readParcelable(OpenPgpDecryptionResult.class.getClassLoader());
         mDecryptionMetadata = source.readParcelable(OpenPgpMetadata.class.getClassLoader());
         mCachedCryptoInputParcel = source.readParcelable(CryptoInputParcel.class.getClassLoader());
+        mSpillUri = source.readParcelable(Uri.class.getClassLoader());
     }
 
 
@@ -103,6 +107,17 @@ public class DecryptVerifyResult extends InputPendingResult {
         return mOutputBytes;
     }
 
+    /** Returns the temporary file holding the plaintext if a metadata only decryption
+     * was spilled, or null otherwise.
+     */
+    public Uri getSpillUri() {
+        return mSpillUri;
+    }
+
+    public void setSpillUri(Uri spillUri) {
+        mSpillUri = spillUri;
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -113,6 +128,7 @@ public class DecryptVerifyResult extends InputPendingResult {
         dest.writeParcelable(mDecryptionResult, flags);
         dest.writeParcelable(mDecryptionMetadata, flags);
         dest.writeParcelable(mCachedCryptoInputParcel, flags);
+        dest.writeParcelable(mSpillUri, flags);
     }
 
     public static final Creator<DecryptVerifyResult> CREATOR = new Creator<DecryptVerifyResult>() {
@@ -27,6 +27,7 @@ import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.operations.TraceSpan;
 import org.sufficientlysecure.keychain.ui.LogDisplayActivity;
 import org.sufficientlysecure.keychain.ui.LogDisplayFragment;
 import org.sufficientlysecure.keychain.ui.util.Notify;
@@ -81,6 +82,9 @@ public abstract class OperationResult implements Parcelable {
     /// A list of log entries tied to the operation result.
     protected OperationLog mLog;
 
+    /// Timings of the sections of the operation, if it was traced.
+    private TraceSpan mTrace;
+
     public OperationResult(int result, OperationLog log) {
         mResult = result;
         mLog = log;
@@ -90,6 +94,11 @@ public abstract class OperationResult implements Parcelable {
         mResult = source.readInt();
         // get log out of cache based on UUID from source
         mLog = logCache.readFromParcelAndGetFromCache(source);
+        if (mLog == null) {
+            // the log was evicted from the cache before it was read back
+            mLog = new OperationLog();
+        }
+        mTrace = source.readParcelable(TraceSpan.class.getClassLoader());
     }
 
     public int getResult() {
@@ -104,6 +113,15 @@ public abstract class OperationResult implements Parcelable {
         return (mResult & RESULT_CANCELLED) == RESULT_CANCELLED;
     }
 
+    /** Returns where the operation spent its time, or null if it wasn't traced. */
+    public TraceSpan getTrace() {
+        return mTrace;
+    }
+
+    public void setTrace(TraceSpan trace) {
+        mTrace = trace;
+    }
+
     public OperationLog getLog() {
         SubLogEntryParcel singleSubLog = mLog.getSubResultIfSingle();
         if (singleSubLog != null) {
@@ -118,25 +136,44 @@ public abstract class OperationResult implements Parcelable {
         public final LogType mType;
         public final Object[] mParameters;
         public final int mIndent;
+        /** How many times this entry was logged in a row, see OperationLog.add() */
+        public final int mRepeat;
+
+        // LogType.values() returns a new copy of the array on every call
+        private static final LogType[] LOG_TYPES = LogType.values();
+
+        private static final int PARAMETER_INT = 0;
+        private static final int PARAMETER_LONG = 1;
+        private static final int PARAMETER_STRING = 2;
+        private static final int PARAMETER_VALUE = 3;
 
         public LogEntryParcel(LogType type, int indent, Object... parameters) {
             mType = type;
             mParameters = parameters;
             mIndent = indent;
-            Log.v(Constants.TAG, "log: " + this);
+            mRepeat = 1;
+            if (Constants.DEBUG) {
+                Log.v(Constants.TAG, "log: " + this);
+            }
         }
 
         /** Clones this LogEntryParcel, adding extra indent. Note that the parameter array is NOT cloned! */
         public LogEntryParcel (LogEntryParcel original, int extraIndent) {
+            this(original, extraIndent, original.mRepeat);
+        }
+
+        private LogEntryParcel(LogEntryParcel original, int extraIndent, int repeat) {
             mType = original.mType;
             mParameters = original.mParameters;
             mIndent = original.mIndent +extraIndent;
+            mRepeat = repeat;
         }
 
         public LogEntryParcel(Parcel source) {
-            mType = LogType.values()[source.readInt()];
-            mParameters = (Object[]) source.readSerializable();
+            mType = LOG_TYPES[source.readInt()];
+            mParameters = readParameters(source);
             mIndent = source.readInt();
+            mRepeat = source.readInt();
         }
 
         @Override
@@ -146,19 +183,80 @@ public abstract class OperationResult implements Parcelable {
 
         @Override
         public void writeToParcel(Parcel dest, int flags) {
+            writeEntryToParcel(dest, 0);
+        }
+
+        /** Writes this entry as a plain LogEntryParcel, adding extra indent. */
+        void writeEntryToParcel(Parcel dest, int extraIndent) {
             dest.writeInt(0);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
-            dest.writeInt(mIndent);
+            writeParameters(dest, mParameters);
+            dest.writeInt(mIndent +extraIndent);
+            dest.writeInt(mRepeat);
+        }
+
+        /**
+         * Writes the parameters with a tag per parameter instead of serializing the array.
+         * Almost all parameters are ints, longs or Strings, which this stores as they are.
+         */
+        static void writeParameters(Parcel dest, Object[] parameters) {
+            if (parameters == null) {
+                dest.writeInt(-1);
+                return;
+            }
+            dest.writeInt(parameters.length);
+            for (Object parameter : parameters) {
+                if (parameter instanceof Integer) {
+                    dest.writeInt(PARAMETER_INT);
+                    dest.writeInt((Integer) parameter);
+                } else if (parameter instanceof Long) {
+                    dest.writeInt(PARAMETER_LONG);
+                    dest.writeLong((Long) parameter);
+                } else if (parameter instanceof String) {
+                    dest.writeInt(PARAMETER_STRING);
+                    dest.writeString((String) parameter);
+                } else {
+                    dest.writeInt(PARAMETER_VALUE);
+                    dest.writeValue(parameter);
+                }
+            }
+        }
+
+        static Object[] readParameters(Parcel source) {
+            int length = source.readInt();
+            if (length < 0) {
+                return null;
+            }
+            Object[] parameters = new Object[length];
+            for (int i = 0; i < length; i++) {
+                switch (source.readInt()) {
+                    case PARAMETER_INT:
+                        parameters[i] = source.readInt();
+                        break;
+                    case PARAMETER_LONG:
+                        parameters[i] = source.readLong();
+                        break;
+                    case PARAMETER_STRING:
+                        parameters[i] = source.readString();
+                        break;
+                    default:
+                        parameters[i] = source.readValue(LogEntryParcel.class.getClassLoader());
+                        break;
+                }
+            }
+            return parameters;
         }
 
         public static final Creator<LogEntryParcel> CREATOR = new Creator<LogEntryParcel>() {
             public LogEntryParcel createFromParcel(final Parcel source) {
-                // Actually create LogEntryParcel or SubLogEntryParcel depending on type indicator
-                if (source.readInt() == 0) {
-                    return new LogEntryParcel(source);
-                } else {
-                    return new SubLogEntryParcel(source);
+                // Actually create LogEntryParcel or one of its subclasses depending on type indicator
+                switch (source.readInt()) {
+                    case 0:
+                        return new LogEntryParcel(source);
+                    case 1:
+                        return new SubLogEntryParcel(source);
+                    default:
+                        return new FoldedLogEntryParcel(source);
                 }
             }
 
@@ -174,9 +272,25 @@ public abstract class OperationResult implements Parcelable {
                     ", mType=" + mType +
                     ", mParameters=" + Arrays.toString(mParameters) +
                     ", mIndent=" + mIndent +
+                    ", mRepeat=" + mRepeat +
                     '}';
         }
 
+        /** Returns the message of this entry, formatted for display. */
+        public String getMessage(Resources resources) {
+            String message;
+            // special case: first parameter may be a quantity
+            if (mParameters != null && mParameters.length > 0 && mParameters[0] instanceof Integer) {
+                message = resources.getQuantityString(mType.getMsgId(), (Integer) mParameters[0], mParameters);
+            } else {
+                message = resources.getString(mType.getMsgId(), mParameters);
+            }
+            if (mRepeat > 1) {
+                message = resources.getString(R.string.msg_repeated, message, mRepeat);
+            }
+            return message;
+        }
+
         StringBuilder getPrintableLogEntry(Resources resources, int indent) {
 
             StringBuilder result = new StringBuilder();
@@ -186,13 +300,7 @@ public abstract class OperationResult implements Parcelable {
             }
             result.append(INDENTATION_WHITESPACE, 0, padding);
             result.append(LOG_LEVEL_NAME[mType.mLevel.ordinal()]).append(' ');
-
-            // special case: first parameter may be a quantity
-            if (mParameters != null && mParameters.length > 0 && mParameters[0] instanceof Integer) {
-                result.append(resources.getQuantityString(mType.getMsgId(), (Integer) mParameters[0], mParameters));
-            } else {
-                result.append(resources.getString(mType.getMsgId(), mParameters));
-            }
+            result.append(getMessage(resources));
 
             return result;
         }
@@ -206,8 +314,6 @@ public abstract class OperationResult implements Parcelable {
         public SubLogEntryParcel(@NonNull OperationResult subResult, LogType type, int indent, Object... parameters) {
             super(type, indent, parameters);
             mSubResult = subResult;
-
-            Log.v(Constants.TAG, "log: " + this);
         }
 
         public SubLogEntryParcel(Parcel source) {
@@ -228,8 +334,9 @@ public abstract class OperationResult implements Parcelable {
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(1);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
+            writeParameters(dest, mParameters);
             dest.writeInt(mIndent);
+            dest.writeInt(mRepeat);
             dest.writeParcelable(mSubResult, 0);
         }
 
@@ -258,26 +365,135 @@ public abstract class OperationResult implements Parcelable {
 
     }
 
-    public Showable createNotify(final Activity activity) {
+    /**
+     * A summary entry which stands in for a large number of folded entries, see LogFolder.
+     * The folded entries are only kept in parceled form, and are unpacked on request when
+     * the user actually wants to look at them.
+     */
+    public static class FoldedLogEntryParcel extends LogEntryParcel {
 
-        // Take the last message as string
-        String logText;
+        private final byte[] mFoldedEntries;
+        private OperationLog mFoldedLog;
+
+        FoldedLogEntryParcel(byte[] foldedEntries, LogType type, int indent, Object... parameters) {
+            super(type, indent, parameters);
+            mFoldedEntries = foldedEntries;
+        }
+
+        public FoldedLogEntryParcel(Parcel source) {
+            super(source);
+            mFoldedEntries = source.createByteArray();
+        }
+
+        /** Unpacks the folded entries. This is expensive for large logs, so only call it when needed. */
+        public synchronized OperationLog getFoldedLog() {
+            if (mFoldedLog != null) {
+                return mFoldedLog;
+            }
+
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(mFoldedEntries, 0, mFoldedEntries.length);
+                parcel.setDataPosition(0);
+                int count = parcel.readInt();
+                ArrayList<LogEntryParcel> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    entries.add(LogEntryParcel.CREATOR.createFromParcel(parcel));
+                }
+                mFoldedLog = new OperationLog();
+                mFoldedLog.addAll(entries);
+                return mFoldedLog;
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(2);
+            dest.writeInt(mType.ordinal());
+            writeParameters(dest, mParameters);
+            dest.writeInt(mIndent);
+            dest.writeInt(mRepeat);
+            dest.writeByteArray(mFoldedEntries);
+        }
+
+        @Override
+        void writeEntryToParcel(Parcel dest, int extraIndent) {
+            // nested folds are written as they are, so they stay folded
+            FoldedLogEntryParcel entry = extraIndent == 0 ? this
+                    : new FoldedLogEntryParcel(mFoldedEntries, mType, mIndent +extraIndent, mParameters);
+            entry.writeToParcel(dest, 0);
+        }
+
+    }
+
+    /**
+     * Packs the logs of many similar sub operations into a single FoldedLogEntryParcel.
+     * <p/>
+     * Imports of large keyrings create tens of entries per key, which would otherwise all be
+     * kept in memory as objects until the result is shown, if ever. Folded logs are written
+     * to a Parcel right away, with sub logs flattened, so nothing else has to be kept.
+     */
+    public static class LogFolder {
+
+        private Parcel mParcel = Parcel.obtain();
+        private int mEntryCount;
+        private int mFoldedCount;
+
+        public LogFolder() {
+            // placeholder for the entry count
+            mParcel.writeInt(0);
+        }
+
+        public void fold(OperationLog log) {
+            foldEntries(log, 0);
+            mFoldedCount += 1;
+        }
+
+        private void foldEntries(OperationLog log, int extraIndent) {
+            for (LogEntryParcel entry : log) {
+                if (entry instanceof SubLogEntryParcel) {
+                    // the first entry of the sub log is the same as the SubLogEntryParcel itself
+                    foldEntries(((SubLogEntryParcel) entry).getSubResult().getLog(), entry.mIndent +extraIndent);
+                } else {
+                    entry.writeEntryToParcel(mParcel, extraIndent);
+                    mEntryCount += 1;
+                }
+            }
+        }
+
+        /** Returns the number of logs folded so far. */
+        public int getFoldedCount() {
+            return mFoldedCount;
+        }
+
+        /**
+         * Creates the summary entry for all logs folded so far. The folder can't be used
+         * anymore afterwards.
+         */
+        public FoldedLogEntryParcel finish(LogType type, int indent, Object... parameters) {
+            int end = mParcel.dataPosition();
+            mParcel.setDataPosition(0);
+            mParcel.writeInt(mEntryCount);
+            mParcel.setDataPosition(end);
+            byte[] folded = mParcel.marshall();
+            mParcel.recycle();
+            mParcel = null;
+            return new FoldedLogEntryParcel(folded, type, indent, parameters);
+        }
+
+    }
+
+    public Showable createNotify(final Activity activity) {
 
         LogEntryParcel entryParcel = mLog.getLast();
         if (entryParcel == null) {
             Log.e(Constants.TAG, "Tried to show empty log!");
             return Notify.create(activity, R.string.error_empty_log, Style.ERROR);
         }
-        // special case: first parameter may be a quantity
-        if (entryParcel.mParameters != null && entryParcel.mParameters.length > 0
-                && entryParcel.mParameters[0] instanceof Integer) {
-            logText = activity.getResources().getQuantityString(entryParcel.mType.getMsgId(),
-                    (Integer) entryParcel.mParameters[0],
-                    entryParcel.mParameters);
-        } else {
-            logText = activity.getString(entryParcel.mType.getMsgId(),
-                    entryParcel.mParameters);
-        }
+        // Take the last message as string
+        String logText = entryParcel.getMessage(activity.getResources());
 
         Style style;
 
@@ -336,6 +552,7 @@ public abstract class OperationResult implements Parcelable {
         // import public
         MSG_IP(LogLevel.START, R.string.msg_ip),
         MSG_IP_APPLY_BATCH (LogLevel.DEBUG, R.string.msg_ip_apply_batch),
+        MSG_IP_APPLY_DIRECT (LogLevel.DEBUG, R.string.msg_ip_apply_direct),
         MSG_IP_BAD_TYPE_SECRET (LogLevel.WARN, R.string.msg_ip_bad_type_secret),
         MSG_IP_DELETE_OLD_FAIL (LogLevel.DEBUG, R.string.msg_ip_delete_old_fail),
         MSG_IP_DELETE_OLD_OK (LogLevel.DEBUG, R.string.msg_ip_delete_old_ok),
@@ -346,6 +563,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IP_FINGERPRINT_ERROR (LogLevel.ERROR, R.string.msg_ip_fingerprint_error),
         MSG_IP_FINGERPRINT_OK (LogLevel.INFO, R.string.msg_ip_fingerprint_ok),
         MSG_IP_INSERT_KEYRING (LogLevel.DEBUG, R.string.msg_ip_insert_keyring),
+        MSG_IP_INSERT_BLOB (LogLevel.DEBUG, R.string.msg_ip_insert_blob),
         MSG_IP_INSERT_SUBKEYS (LogLevel.DEBUG, R.string.msg_ip_insert_keys),
         MSG_IP_PREPARE (LogLevel.DEBUG, R.string.msg_ip_prepare),
         MSG_IP_REINSERT_SECRET (LogLevel.DEBUG, R.string.msg_ip_reinsert_secret),
@@ -601,9 +819,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_CRITICAL_IN (LogLevel.DEBUG, R.string.msg_con_critical_in),
         MSG_CON_CRITICAL_OUT (LogLevel.DEBUG, R.string.msg_con_critical_out),
         MSG_CON_DB_CLEAR (LogLevel.DEBUG, R.string.msg_con_db_clear),
+        MSG_CON_DELETE_BLOBS (LogLevel.DEBUG, R.string.msg_con_delete_blobs),
         MSG_CON_DELETE_PUBLIC (LogLevel.DEBUG, R.string.msg_con_delete_public),
         MSG_CON_DELETE_SECRET (LogLevel.DEBUG, R.string.msg_con_delete_secret),
         MSG_CON_ERROR_BAD_STATE (LogLevel.ERROR, R.string.msg_con_error_bad_state),
+        MSG_CON_ERROR_CHECKPOINT (LogLevel.ERROR, R.string.msg_con_error_checkpoint),
         MSG_CON_ERROR_CONCURRENT(LogLevel.ERROR, R.string.msg_con_error_concurrent),
         MSG_CON_ERROR_DB (LogLevel.ERROR, R.string.msg_con_error_db),
         MSG_CON_ERROR_IO_PUBLIC (LogLevel.ERROR, R.string.msg_con_error_io_public),
@@ -612,8 +832,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_ERROR_SECRET (LogLevel.ERROR, R.string.msg_con_error_secret),
         MSG_CON_RECOVER (LogLevel.DEBUG, R.string.msg_con_recover),
         MSG_CON_RECURSIVE (LogLevel.OK, R.string.msg_con_recursive),
+        MSG_CON_RESUME (LogLevel.DEBUG, R.string.msg_con_resume),
+        MSG_CON_REIMPORT_PARALLEL (LogLevel.DEBUG, R.string.msg_con_reimport_parallel),
         MSG_CON_REIMPORT_PUBLIC (LogLevel.DEBUG, R.plurals.msg_con_reimport_public),
         MSG_CON_REIMPORT_PUBLIC_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_public_skip),
+        MSG_CON_REIMPORT_RESUME (LogLevel.DEBUG, R.string.msg_con_reimport_resume),
         MSG_CON_REIMPORT_SECRET (LogLevel.DEBUG, R.plurals.msg_con_reimport_secret),
         MSG_CON_REIMPORT_SECRET_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_secret_skip),
         MSG_CON (LogLevel.START, R.string.msg_con),
@@ -660,6 +883,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_CLEAR_META_MIME (LogLevel.DEBUG, R.string.msg_dc_clear_meta_mime),
         MSG_DC_CLEAR_META_SIZE (LogLevel.DEBUG, R.string.msg_dc_clear_meta_size),
         MSG_DC_CLEAR_META_SIZE_UNKNOWN (LogLevel.DEBUG, R.string.msg_dc_clear_meta_size_unknown),
+        MSG_DC_CLEAR_META_SPILL (LogLevel.DEBUG, R.string.msg_dc_clear_meta_spill),
         MSG_DC_CLEAR_META_TIME (LogLevel.DEBUG, R.string.msg_dc_clear_meta_time),
         MSG_DC_CLEAR (LogLevel.DEBUG, R.string.msg_dc_clear),
         MSG_DC_CLEAR_SIGNATURE_BAD (LogLevel.WARN, R.string.msg_dc_clear_signature_bad),
@@ -721,6 +945,10 @@ public abstract class OperationResult implements Parcelable {
         // pgpsignencrypt
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
+        MSG_PSE_COMPRESSION_DEFAULT (LogLevel.DEBUG, R.string.msg_pse_compression_default),
+        MSG_PSE_COMPRESSION_FAST (LogLevel.DEBUG, R.string.msg_pse_compression_fast),
+        MSG_PSE_COMPRESSION_SKIP_ENTROPY (LogLevel.DEBUG, R.string.msg_pse_compression_skip_entropy),
+        MSG_PSE_COMPRESSION_SKIP_FORMAT (LogLevel.DEBUG, R.string.msg_pse_compression_skip_format),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
         MSG_PSE_ERROR_IO (LogLevel.ERROR, R.string.msg_pse_error_io),
@@ -733,6 +961,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_KEY_OK (LogLevel.OK, R.string.msg_pse_key_ok),
         MSG_PSE_KEY_UNKNOWN (LogLevel.DEBUG, R.string.msg_pse_key_unknown),
         MSG_PSE_KEY_WARN (LogLevel.WARN, R.string.msg_pse_key_warn),
+        MSG_PSE_KEY_WRAP_PARALLEL (LogLevel.DEBUG, R.string.msg_pse_key_wrap_parallel),
         MSG_PSE_OK (LogLevel.OK, R.string.msg_pse_ok),
         MSG_PSE_PENDING_NFC (LogLevel.INFO, R.string.msg_pse_pending_nfc),
         MSG_PSE_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_pse_pending_passphrase),
@@ -776,6 +1005,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_MERGE (LogLevel.DEBUG, R.string.msg_import_merge),
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
         MSG_IMPORT_ERROR (LogLevel.ERROR, R.string.msg_import_error),
+        MSG_IMPORT_FOLDED (LogLevel.OK, R.plurals.msg_import_folded),
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
@@ -940,6 +1170,7 @@ public abstract class OperationResult implements Parcelable {
         dest.writeInt(mResult);
         // cache log and write UUID to dest
         logCache.cacheAndWriteToParcel(mLog, dest);
+        dest.writeParcelable(mTrace, 0);
     }
 
     public static class OperationLog implements Iterable<LogEntryParcel> {
@@ -948,11 +1179,37 @@ public abstract class OperationResult implements Parcelable {
 
         /// Simple convenience method
         public void add(LogType type, int indent, Object... parameters) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            if (!foldIntoLast(type, indent, parameters)) {
+                mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            }
         }
 
         public void add(LogType type, int indent) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            if (!foldIntoLast(type, indent, null)) {
+                mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            }
+        }
+
+        public void add(LogEntryParcel entry) {
+            mParcels.add(entry);
+        }
+
+        /**
+         * Entries which are logged several times in a row, e.g. for each of many subkeys or
+         * certificates, are stored once with a repeat count instead of one entry each.
+         */
+        private boolean foldIntoLast(LogType type, int indent, Object[] parameters) {
+            if (mParcels.isEmpty()) {
+                return false;
+            }
+            int lastIndex = mParcels.size() -1;
+            LogEntryParcel last = mParcels.get(lastIndex);
+            if (last.getClass() != LogEntryParcel.class || last.mType != type || last.mIndent != indent
+                    || !Arrays.equals(last.mParameters, parameters)) {
+                return false;
+            }
+            mParcels.set(lastIndex, new LogEntryParcel(last, 0, last.mRepeat +1));
+            return true;
         }
 
         public void add(OperationResult subResult, int indent) {
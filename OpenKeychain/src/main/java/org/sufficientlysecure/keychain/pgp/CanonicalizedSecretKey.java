@@ -37,6 +37,7 @@ import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.ContentProviderSelector;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
@@ -286,16 +287,25 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             throw new PrivateKeyNotUnlockedException();
         }
 
+        CachingDataDecryptorFactory decryptorFactory;
         if (mPrivateKeyState == PRIVATE_KEY_STATE_DIVERT_TO_CARD) {
-            return new CachingDataDecryptorFactory(
+            decryptorFactory = new CachingDataDecryptorFactory(
                     Constants.BOUNCY_CASTLE_PROVIDER_NAME,
                     cryptoInput.getCryptoData());
         } else {
-            return new CachingDataDecryptorFactory(
+            decryptorFactory = new CachingDataDecryptorFactory(
                     new JcePublicKeyDataDecryptorFactoryBuilder()
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mPrivateKey),
                     cryptoInput.getCryptoData());
         }
+
+        // the session key is recovered with bouncy castle, but bulk decryption uses the fastest provider
+        return decryptorFactory.setContentProviderSelector(new ContentProviderSelector() {
+            @Override
+            public String getProviderName(int encAlgorithm, boolean withIntegrityPacket) {
+                return JcaProviderSelector.getCipherProvider(encAlgorithm, withIntegrityPacket);
+            }
+        });
     }
 
     // For use only in card export; returns the secret key in Chinese Remainder Theorem format.
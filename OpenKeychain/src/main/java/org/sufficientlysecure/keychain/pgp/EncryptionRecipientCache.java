@@ -0,0 +1,77 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.ContentObserver;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+
+/** Caches the public key rings of encryption recipients between sign/encrypt operations.
+ *
+ * Entries are keyed by the full set of recipient master key ids, so repeated
+ * operations with the same recipients (e.g. messages to a mailing list) don't
+ * have to load and parse all rings again. Any change to the key ring tables
+ * clears the cache. Since changes may be notified while a ring is being loaded,
+ * put() only accepts entries which were loaded within the same generation.
+ */
+class EncryptionRecipientCache {
+
+    private static final int MAX_ENTRIES = 8;
+
+    private static EncryptionRecipientCache sInstance;
+
+    private final LinkedHashMap<Set<Long>, HashMap<Long, CanonicalizedPublicKeyRing>> mCache =
+            new LinkedHashMap<Set<Long>, HashMap<Long, CanonicalizedPublicKeyRing>>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private int mGeneration = 0;
+
+    static synchronized EncryptionRecipientCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EncryptionRecipientCache();
+            // a null handler means onChange is called on a binder thread
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    KeyRings.CONTENT_URI, true, new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            sInstance.invalidate();
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns a copy of the cached rings for this set of recipients, or null. */
+    synchronized HashMap<Long, CanonicalizedPublicKeyRing> get(Set<Long> recipientIds) {
+        HashMap<Long, CanonicalizedPublicKeyRing> rings = mCache.get(recipientIds);
+        return rings == null ? null : new HashMap<>(rings);
+    }
+
+    synchronized void put(Set<Long> recipientIds, HashMap<Long, CanonicalizedPublicKeyRing> rings,
+            int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mCache.put(recipientIds, new HashMap<>(rings));
+    }
+
+    synchronized void invalidate() {
+        mGeneration += 1;
+        mCache.clear();
+    }
+
+}
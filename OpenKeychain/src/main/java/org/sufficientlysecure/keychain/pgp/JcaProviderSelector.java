@@ -0,0 +1,250 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/** Selects the fastest JCA provider per cryptographic primitive.
+ *
+ * All operations default to our bundled Bouncy Castle provider, which is pure
+ * java. Platform providers (e.g. AndroidOpenSSL) are often much faster for bulk
+ * primitives because they use AES or SHA instructions of the CPU. Once calibrate()
+ * has run, this class returns the fastest provider for each primitive which
+ * produced results identical to Bouncy Castle's in a short micro-benchmark.
+ *
+ * Only bulk primitives (the symmetric data cipher in CFB mode with integrity
+ * protection, and digests) are selected this way. Public key operations,
+ * signatures, and the OpenPGP CFB mode without MDC always use Bouncy Castle,
+ * as do all primitives before calibration has finished.
+ */
+public class JcaProviderSelector {
+
+    private static final String FALLBACK = Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+
+    private static final int CALIBRATION_BUFFER_SIZE = 1 << 16;
+    private static final int CALIBRATION_WARMUP_ROUNDS = 4;
+    private static final int CALIBRATION_ROUNDS = 16;
+
+    private static final Map<Integer, String> sCipherProviders = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> sDigestProviders = new ConcurrentHashMap<>();
+    private static final Map<String, PGPDigestCalculatorProvider> sDigestCalculatorProviders =
+            new ConcurrentHashMap<>();
+
+    private static volatile boolean sCalibrated = false;
+    private static Thread sCalibrationThread;
+
+    private static final int[] CALIBRATED_CIPHERS = {
+            SymmetricKeyAlgorithmTags.AES_128,
+            SymmetricKeyAlgorithmTags.AES_192,
+            SymmetricKeyAlgorithmTags.AES_256
+    };
+
+    private static final int[] CALIBRATED_DIGESTS = {
+            HashAlgorithmTags.SHA1,
+            HashAlgorithmTags.SHA224,
+            HashAlgorithmTags.SHA256,
+            HashAlgorithmTags.SHA384,
+            HashAlgorithmTags.SHA512
+    };
+
+    /** Returns the provider to use for a symmetric data cipher. */
+    public static String getCipherProvider(int symmetricAlgorithm, boolean withIntegrityPacket) {
+        // without integrity packet, the OpenPGP CFB mode is used which is exclusive to Bouncy Castle
+        if (!withIntegrityPacket) {
+            return FALLBACK;
+        }
+        String provider = sCipherProviders.get(symmetricAlgorithm);
+        return provider != null ? provider : FALLBACK;
+    }
+
+    /** Returns the provider to use for a hash algorithm. */
+    public static String getDigestProvider(int hashAlgorithm) {
+        String provider = sDigestProviders.get(hashAlgorithm);
+        return provider != null ? provider : FALLBACK;
+    }
+
+    /** Returns a PGPDigestCalculatorProvider which uses the selected provider for each hash algorithm. */
+    public static PGPDigestCalculatorProvider getDigestCalculatorProvider() {
+        return new PGPDigestCalculatorProvider() {
+            @Override
+            public PGPDigestCalculator get(int algorithm) throws PGPException {
+                return getDigestCalculatorProvider(getDigestProvider(algorithm)).get(algorithm);
+            }
+        };
+    }
+
+    private static PGPDigestCalculatorProvider getDigestCalculatorProvider(String providerName)
+            throws PGPException {
+        PGPDigestCalculatorProvider calculatorProvider = sDigestCalculatorProviders.get(providerName);
+        if (calculatorProvider == null) {
+            calculatorProvider = new JcaPGPDigestCalculatorProviderBuilder().setProvider(providerName).build();
+            sDigestCalculatorProviders.put(providerName, calculatorProvider);
+        }
+        return calculatorProvider;
+    }
+
+    public static boolean isCalibrated() {
+        return sCalibrated;
+    }
+
+    /** Runs calibration on a background thread, if it hasn't been started yet. */
+    public static synchronized void calibrateAsync() {
+        if (sCalibrated || sCalibrationThread != null) {
+            return;
+        }
+        sCalibrationThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                calibrate();
+            }
+        }, "JcaProviderCalibration");
+        sCalibrationThread.start();
+    }
+
+    /** Benchmarks all installed providers for each calibrated primitive, and caches the fastest one. */
+    public static void calibrate() {
+        byte[] data = new byte[CALIBRATION_BUFFER_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        for (int algorithm : CALIBRATED_CIPHERS) {
+            String provider = selectCipherProvider(algorithm, data);
+            sCipherProviders.put(algorithm, provider);
+            Log.d(Constants.TAG, "selected provider " + provider + " for cipher algorithm " + algorithm);
+        }
+
+        for (int algorithm : CALIBRATED_DIGESTS) {
+            String provider = selectDigestProvider(algorithm, data);
+            sDigestProviders.put(algorithm, provider);
+            Log.d(Constants.TAG, "selected provider " + provider + " for hash algorithm " + algorithm);
+        }
+
+        sCalibrated = true;
+    }
+
+    private static String selectCipherProvider(int algorithm, byte[] data) {
+        int keyLength;
+        switch (algorithm) {
+            case SymmetricKeyAlgorithmTags.AES_128: keyLength = 16; break;
+            case SymmetricKeyAlgorithmTags.AES_192: keyLength = 24; break;
+            case SymmetricKeyAlgorithmTags.AES_256: keyLength = 32; break;
+            default: return FALLBACK;
+        }
+
+        // same transformation as used by bouncy castle's OperatorHelper with integrity packet
+        String transformation = "AES/CFB/NoPadding";
+        SecretKeySpec key = new SecretKeySpec(Arrays.copyOf(data, keyLength), "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+
+        byte[] reference;
+        try {
+            reference = runCipher(Cipher.getInstance(transformation, FALLBACK), key, iv, data);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "fallback provider failed calibration, this is a bug!", e);
+            return FALLBACK;
+        }
+
+        String bestProvider = FALLBACK;
+        long bestTime = Long.MAX_VALUE;
+        for (Provider provider : Security.getProviders()) {
+            try {
+                Cipher cipher = Cipher.getInstance(transformation, provider.getName());
+                if (!Arrays.equals(reference, runCipher(cipher, key, iv, data))) {
+                    Log.d(Constants.TAG, "provider " + provider.getName() + " produced wrong output, ignoring");
+                    continue;
+                }
+                for (int i = 0; i < CALIBRATION_WARMUP_ROUNDS; i++) {
+                    runCipher(cipher, key, iv, data);
+                }
+                long startTime = System.nanoTime();
+                for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+                    runCipher(cipher, key, iv, data);
+                }
+                long time = System.nanoTime() - startTime;
+                if (time < bestTime) {
+                    bestTime = time;
+                    bestProvider = provider.getName();
+                }
+            } catch (Exception e) {
+                // provider doesn't support this transformation
+            }
+        }
+
+        return bestProvider;
+    }
+
+    private static byte[] runCipher(Cipher cipher, SecretKeySpec key, IvParameterSpec iv, byte[] data)
+            throws Exception {
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        return cipher.doFinal(data);
+    }
+
+    private static String selectDigestProvider(int algorithm, byte[] data) {
+        String digestName;
+        switch (algorithm) {
+            case HashAlgorithmTags.SHA1: digestName = "SHA-1"; break;
+            case HashAlgorithmTags.SHA224: digestName = "SHA-224"; break;
+            case HashAlgorithmTags.SHA256: digestName = "SHA-256"; break;
+            case HashAlgorithmTags.SHA384: digestName = "SHA-384"; break;
+            case HashAlgorithmTags.SHA512: digestName = "SHA-512"; break;
+            default: return FALLBACK;
+        }
+
+        byte[] reference;
+        try {
+            reference = MessageDigest.getInstance(digestName, FALLBACK).digest(data);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "fallback provider failed calibration, this is a bug!", e);
+            return FALLBACK;
+        }
+
+        String bestProvider = FALLBACK;
+        long bestTime = Long.MAX_VALUE;
+        for (Provider provider : Security.getProviders()) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance(digestName, provider.getName());
+                if (!Arrays.equals(reference, digest.digest(data))) {
+                    Log.d(Constants.TAG, "provider " + provider.getName() + " produced wrong output, ignoring");
+                    continue;
+                }
+                for (int i = 0; i < CALIBRATION_WARMUP_ROUNDS; i++) {
+                    digest.digest(data);
+                }
+                long startTime = System.nanoTime();
+                for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+                    digest.digest(data);
+                }
+                long time = System.nanoTime() - startTime;
+                if (time < bestTime) {
+                    bestTime = time;
+                    bestProvider = provider.getName();
+                }
+            } catch (Exception e) {
+                // provider doesn't support this digest
+            }
+        }
+
+        return bestProvider;
+    }
+
+}
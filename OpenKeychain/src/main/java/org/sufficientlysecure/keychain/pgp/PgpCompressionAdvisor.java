@@ -0,0 +1,146 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.zip.Deflater;
+
+import org.sufficientlysecure.keychain.util.CharsetVerifier;
+
+
+/** Decides whether data is worth compressing, based on its first block.
+ *
+ * Already compressed formats (images, video, archives, ...) can't shrink any
+ * further, so deflating them only costs CPU time. This class checks the first
+ * bytes of the data for magic bytes of known compressed formats, similar to
+ * the file type detection after decryption, and otherwise estimates the byte
+ * entropy of the block. Text is always compressed normally.
+ */
+public class PgpCompressionAdvisor {
+
+    /** Number of bytes which are inspected at the start of the data. */
+    public static final int SNIFF_SIZE = 1 << 12;
+
+    /** Above this entropy (in bits per byte), data is considered incompressible. */
+    static final double ENTROPY_SKIP_THRESHOLD = 7.5;
+    /** Above this entropy (in bits per byte), only fast compression is used. */
+    static final double ENTROPY_FAST_THRESHOLD = 6.0;
+
+    public enum CompressionMode {
+        SKIP, FAST, DEFAULT
+    }
+
+    private static final byte[][] MAGIC_BYTES = {
+            { (byte) 0xff, (byte) 0xd8, (byte) 0xff }, // jpeg
+            { (byte) 0x89, 'P', 'N', 'G' }, // png
+            { 'G', 'I', 'F', '8' }, // gif
+            { 'P', 'K', 0x03, 0x04 }, // zip, also jar, apk, docx, odt, ...
+            { 0x1f, (byte) 0x8b }, // gzip
+            { 'B', 'Z', 'h' }, // bzip2
+            { (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 }, // xz
+            { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c }, // 7z
+            { 'R', 'a', 'r', '!' }, // rar
+            { 'O', 'g', 'g', 'S' }, // ogg
+            { 'I', 'D', '3' }, // mp3
+            { 0x1a, 0x45, (byte) 0xdf, (byte) 0xa3 }, // matroska, webm
+            { 'f', 'L', 'a', 'C' }, // flac
+    };
+
+    private static final String[] MAGIC_NAMES = {
+            "jpeg", "png", "gif", "zip", "gzip", "bzip2", "xz", "7z", "rar", "ogg", "mp3", "matroska", "flac"
+    };
+
+    private final CompressionMode mMode;
+    private final String mDetectedFormat;
+    private final double mEntropy;
+
+    private PgpCompressionAdvisor(CompressionMode mode, String detectedFormat, double entropy) {
+        mMode = mode;
+        mDetectedFormat = detectedFormat;
+        mEntropy = entropy;
+    }
+
+    public static PgpCompressionAdvisor evaluate(byte[] firstBlock, int length) {
+        String format = detectCompressedFormat(firstBlock, length);
+        if (format != null) {
+            return new PgpCompressionAdvisor(CompressionMode.SKIP, format, 0);
+        }
+
+        CharsetVerifier charsetVerifier = new CharsetVerifier(firstBlock, "application/octet-stream", null);
+        charsetVerifier.readBytesFromBuffer(0, length);
+        if (charsetVerifier.isProbablyText()) {
+            return new PgpCompressionAdvisor(CompressionMode.DEFAULT, null, 0);
+        }
+
+        double entropy = estimateEntropy(firstBlock, length);
+        if (entropy > ENTROPY_SKIP_THRESHOLD) {
+            return new PgpCompressionAdvisor(CompressionMode.SKIP, null, entropy);
+        }
+        if (entropy > ENTROPY_FAST_THRESHOLD) {
+            return new PgpCompressionAdvisor(CompressionMode.FAST, null, entropy);
+        }
+        return new PgpCompressionAdvisor(CompressionMode.DEFAULT, null, entropy);
+    }
+
+    public CompressionMode getMode() {
+        return mMode;
+    }
+
+    /** Returns the name of the compressed format which was detected by magic bytes, or null. */
+    public String getDetectedFormat() {
+        return mDetectedFormat;
+    }
+
+    public double getEntropy() {
+        return mEntropy;
+    }
+
+    /** Returns the Deflater level to use for ZIP and ZLIB compression. */
+    public int getDeflaterLevel() {
+        return mMode == CompressionMode.FAST ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+    }
+
+    static String detectCompressedFormat(byte[] data, int length) {
+        for (int i = 0; i < MAGIC_BYTES.length; i++) {
+            if (matchesPrefix(data, length, 0, MAGIC_BYTES[i])) {
+                return MAGIC_NAMES[i];
+            }
+        }
+        // iso base media files (mp4, m4a, mov, 3gp, heic) have "ftyp" at offset 4
+        if (matchesPrefix(data, length, 4, new byte[] { 'f', 't', 'y', 'p' })) {
+            return "mp4";
+        }
+        return null;
+    }
+
+    private static boolean matchesPrefix(byte[] data, int length, int offset, byte[] prefix) {
+        if (length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the shannon entropy of the byte distribution, in bits per byte. */
+    static double estimateEntropy(byte[] data, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xff] += 1;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) {
+                continue;
+            }
+            double p = (double) count / length;
+            entropy -= p * Math.log(p);
+        }
+        return entropy / Math.log(2);
+    }
+
+}
@@ -34,6 +34,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
     private boolean mAllowSymmetricDecryption;
     private HashSet<Long> mAllowedKeyIds;
     private boolean mDecryptMetadataOnly;
+    private boolean mDecryptMetadataSpill;
     private byte[] mDetachedSignature;
     private String mRequiredSignerFingerprint;
 
@@ -58,6 +59,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         mAllowSymmetricDecryption = source.readInt() != 0;
         mAllowedKeyIds  = (HashSet<Long>) source.readSerializable();
         mDecryptMetadataOnly = source.readInt() != 0;
+        mDecryptMetadataSpill = source.readInt() != 0;
         mDetachedSignature = source.createByteArray();
         mRequiredSignerFingerprint = source.readString();
     }
@@ -76,6 +78,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         dest.writeInt(mAllowSymmetricDecryption ? 1 : 0);
         dest.writeSerializable(mAllowedKeyIds);
         dest.writeInt(mDecryptMetadataOnly ? 1 : 0);
+        dest.writeInt(mDecryptMetadataSpill ? 1 : 0);
         dest.writeByteArray(mDetachedSignature);
         dest.writeString(mRequiredSignerFingerprint);
     }
@@ -120,7 +123,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         return this;
     }
 
-    boolean isDecryptMetadataOnly() {
+    public boolean isDecryptMetadataOnly() {
         return mDecryptMetadataOnly;
     }
 
@@ -129,6 +132,20 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         return this;
     }
 
+    boolean isDecryptMetadataSpill() {
+        return mDecryptMetadataSpill;
+    }
+
+    /** If metadata only is requested but the data length can't be read from the packet
+     * headers, decrypt fully into a temporary file instead of decrypting just to find the
+     * length. The plaintext is then available from DecryptVerifyResult.getSpillUri(), so
+     * it doesn't need to be decrypted a second time.
+     */
+    public PgpDecryptVerifyInputParcel setDecryptMetadataSpill(boolean decryptMetadataSpill) {
+        mDecryptMetadataSpill = decryptMetadataSpill;
+        return this;
+    }
+
     byte[] getDetachedSignature() {
         return mDetachedSignature;
     }
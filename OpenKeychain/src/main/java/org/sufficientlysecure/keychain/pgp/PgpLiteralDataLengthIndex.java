@@ -0,0 +1,175 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bouncycastle.bcpg.PacketTags;
+
+
+/** Determines the length of literal data from packet length headers, without
+ * reading the packet body.
+ *
+ * A PGPLiteralData object only knows its length once the whole stream has been
+ * read, which for encrypted data means decrypting everything. If the literal
+ * data packet has a definite length however (RFC 4880, Section 4.2), the data
+ * length can be computed from the header alone. This class peeks at the packet
+ * headers at the start of a stream, skipping over one-pass signature, signature
+ * and marker packets, and resets the stream afterwards so it can be handed to a
+ * PGPObjectFactory as usual.
+ *
+ * Partial body lengths and indeterminate (old format) lengths can not be
+ * indexed, in which case null is returned and the caller has to fall back to
+ * reading the stream.
+ */
+public class PgpLiteralDataLengthIndex {
+
+    /** Maximum number of bytes that are peeked at before giving up. */
+    static final int PEEK_LIMIT = 8192;
+
+    private final BufferedInputStream mIn;
+    private int mPosition;
+
+    private PgpLiteralDataLengthIndex(BufferedInputStream in) {
+        mIn = in;
+    }
+
+    /** Wraps a stream so it can be passed to findLiteralDataLength, and afterwards to a PGPObjectFactory. */
+    public static BufferedInputStream wrap(InputStream in) {
+        if (in instanceof BufferedInputStream) {
+            return (BufferedInputStream) in;
+        }
+        return new BufferedInputStream(in, PEEK_LIMIT);
+    }
+
+    /** Returns the length of the literal data contained in the stream, or null if it
+     * can't be determined from the packet headers. The stream position is left unchanged.
+     */
+    public static Long findLiteralDataLength(BufferedInputStream in) throws IOException {
+        in.mark(PEEK_LIMIT);
+        try {
+            return new PgpLiteralDataLengthIndex(in).findLength();
+        } finally {
+            in.reset();
+        }
+    }
+
+    private Long findLength() throws IOException {
+        while (true) {
+            int hdr = read();
+            if (hdr < 0 || (hdr & 0x80) == 0) {
+                return null;
+            }
+
+            int tag;
+            long bodyLength;
+            if ((hdr & 0x40) != 0) {
+                tag = hdr & 0x3f;
+                bodyLength = readNewLength();
+            } else {
+                tag = (hdr & 0x3f) >> 2;
+                bodyLength = readOldLength(hdr & 0x03);
+            }
+
+            if (bodyLength < 0) {
+                return null;
+            }
+
+            switch (tag) {
+                case PacketTags.LITERAL_DATA: {
+                    // format, filename length, filename, modification date
+                    if (read() < 0) {
+                        return null;
+                    }
+                    int nameLength = read();
+                    if (nameLength < 0) {
+                        return null;
+                    }
+                    long dataLength = bodyLength - 6 - nameLength;
+                    return dataLength >= 0 ? dataLength : null;
+                }
+                case PacketTags.MARKER:
+                case PacketTags.ONE_PASS_SIGNATURE:
+                case PacketTags.SIGNATURE: {
+                    if (!skip(bodyLength)) {
+                        return null;
+                    }
+                    continue;
+                }
+                default: {
+                    // anything else (compressed data, encrypted data, ...) isn't indexed at this level
+                    return null;
+                }
+            }
+        }
+    }
+
+    /** Returns the body length, or -1 for partial body lengths. */
+    private long readNewLength() throws IOException {
+        int b0 = read();
+        if (b0 < 0) {
+            return -1;
+        }
+        if (b0 < 192) {
+            return b0;
+        }
+        if (b0 <= 223) {
+            int b1 = read();
+            return b1 < 0 ? -1 : ((b0 - 192) << 8) + b1 + 192;
+        }
+        if (b0 == 255) {
+            return readUnsigned(4);
+        }
+        // partial body length
+        return -1;
+    }
+
+    /** Returns the body length, or -1 for indeterminate lengths. */
+    private long readOldLength(int lengthType) throws IOException {
+        switch (lengthType) {
+            case 0:
+                return readUnsigned(1);
+            case 1:
+                return readUnsigned(2);
+            case 2:
+                return readUnsigned(4);
+            default:
+                return -1;
+        }
+    }
+
+    private long readUnsigned(int bytes) throws IOException {
+        long result = 0;
+        for (int i = 0; i < bytes; i++) {
+            int b = read();
+            if (b < 0) {
+                return -1;
+            }
+            result = (result << 8) | b;
+        }
+        return result;
+    }
+
+    private boolean skip(long length) throws IOException {
+        // never read past the mark limit, or the stream can't be reset
+        if (mPosition + length >= PEEK_LIMIT) {
+            return false;
+        }
+        for (long i = 0; i < length; i++) {
+            if (read() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (mPosition >= PEEK_LIMIT) {
+            return -1;
+        }
+        mPosition += 1;
+        return mIn.read();
+    }
+
+}
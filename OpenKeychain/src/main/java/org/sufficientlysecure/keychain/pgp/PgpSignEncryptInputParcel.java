@@ -45,6 +45,7 @@ public class PgpSignEncryptInputParcel implements Parcelable {
     protected boolean mHiddenRecipients = false;
     protected boolean mIntegrityProtected = true;
     protected boolean mAddBackupHeader = false;
+    protected boolean mAdaptiveCompression = false;
 
     public PgpSignEncryptInputParcel() {
 
@@ -72,6 +73,7 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         mHiddenRecipients = source.readInt() == 1;
         mIntegrityProtected = source.readInt() == 1;
         mAddBackupHeader = source.readInt() == 1;
+        mAdaptiveCompression = source.readInt() == 1;
     }
 
     @Override
@@ -103,6 +105,7 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         dest.writeInt(mHiddenRecipients ? 1 : 0);
         dest.writeInt(mIntegrityProtected ? 1 : 0);
         dest.writeInt(mAddBackupHeader ? 1 : 0);
+        dest.writeInt(mAdaptiveCompression ? 1 : 0);
     }
 
     public String getCharset() {
@@ -260,6 +263,19 @@ public class PgpSignEncryptInputParcel implements Parcelable {
         return mHiddenRecipients;
     }
 
+    /**
+     * If compression is enabled, skip it or use a faster level for data which looks
+     * like it is already compressed.
+     */
+    public PgpSignEncryptInputParcel setAdaptiveCompression(boolean adaptiveCompression) {
+        this.mAdaptiveCompression = adaptiveCompression;
+        return this;
+    }
+
+    public boolean isAdaptiveCompression() {
+        return mAdaptiveCompression;
+    }
+
     public static final Creator<PgpSignEncryptInputParcel> CREATOR = new Creator<PgpSignEncryptInputParcel>() {
         public PgpSignEncryptInputParcel createFromParcel(final Parcel source) {
             return new PgpSignEncryptInputParcel(source);
@@ -32,13 +32,17 @@ import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.NfcSyncPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.ParallelKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.PGPUtil;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.BaseOperation;
+import org.sufficientlysecure.keychain.operations.TraceSpan;
+import org.sufficientlysecure.keychain.operations.Tracer;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -49,13 +53,14 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.PooledBufferedOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -64,9 +69,16 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -87,6 +99,11 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
     private static byte[] NEW_LINE;
 
+    /** Minimum number of encryption subkeys before session key wrapping is done in parallel. */
+    private static final int PARALLEL_KEY_WRAP_THRESHOLD = 4;
+
+    private static ExecutorService sKeyWrapExecutor;
+
     static {
         try {
             NEW_LINE = "\r\n".getBytes("UTF-8");
@@ -103,6 +120,17 @@ public class PgpSignEncryptOperation extends BaseOperation {
         super(context, providerHelper, progressable);
     }
 
+    private static synchronized ExecutorService getKeyWrapExecutor() {
+        if (sKeyWrapExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sKeyWrapExecutor = executor;
+        }
+        return sKeyWrapExecutor;
+    }
+
     @NonNull
     @Override
     // TODO this is horrible, refactor ASAP!!
@@ -139,26 +167,6 @@ public class PgpSignEncryptOperation extends BaseOperation {
             input.getEncryptionMasterKeyIds()[input.getEncryptionMasterKeyIds().length - 1] = input.getAdditionalEncryptId();
         }
 
-        ArmoredOutputStream armorOut = null;
-        OutputStream out;
-        if (input.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
-            if (input.getVersionHeader() != null) {
-                armorOut.setHeader("Version", input.getVersionHeader());
-            }
-            // if we have a charset, put it in the header
-            if (input.getCharset() != null) {
-                armorOut.setHeader("Charset", input.getCharset());
-            }
-            // add proprietary header to indicate that this is a key backup
-            if (input.isAddBackupHeader()) {
-                armorOut.setHeader("BackupVersion", "2");
-            }
-            out = armorOut;
-        } else {
-            out = outputStream;
-        }
-
         /* Get keys for signature generation for later usage */
         CanonicalizedSecretKey signingKey = null;
         if (enableSignature) {
@@ -168,10 +176,13 @@ public class PgpSignEncryptOperation extends BaseOperation {
             try {
                 long signingMasterKeyId = input.getSignatureMasterKeyId();
                 long signingSubKeyId = input.getSignatureSubKeyId();
-                {
+                TraceSpan lookupSpan = Tracer.begin(Tracer.KEY_LOOKUP);
+                try {
                     CanonicalizedSecretKeyRing signingKeyRing =
                             mProviderHelper.getCanonicalizedSecretKeyRing(signingMasterKeyId);
                     signingKey = signingKeyRing.getSecretKey(input.getSignatureSubKeyId());
+                } finally {
+                    Tracer.end(lookupSpan);
                 }
 
                 // Make sure we are allowed to sign here!
@@ -183,7 +194,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 switch (mProviderHelper.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
                     case DIVERT_TO_CARD:
                     case PASSPHRASE_EMPTY: {
-                        if (!signingKey.unlock(new Passphrase())) {
+                        if (!unlockTraced(signingKey, new Passphrase())) {
                             throw new AssertionError(
                                     "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
                                             + " This is a programming error!");
@@ -207,7 +218,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                                     signingMasterKeyId, signingKey.getKeyId(),
                                     cryptoInput.getSignatureTime()), cryptoInput);
                         }
-                        if (!signingKey.unlock(localPassphrase)) {
+                        if (!unlockTraced(signingKey, localPassphrase)) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
@@ -251,7 +262,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
             }
             JcePGPDataEncryptorBuilder encryptorBuilder =
                     new JcePGPDataEncryptorBuilder(algo)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                            .setProvider(JcaProviderSelector.getCipherProvider(algo, input.isIntegrityProtected()))
                             .setWithIntegrityPacket(input.isIntegrityProtected());
 
             cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
@@ -266,15 +277,38 @@ public class PgpSignEncryptOperation extends BaseOperation {
             } else {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
+                // key rings are cached between operations with the same set of recipients
+                HashSet<Long> recipientIds = new HashSet<>();
+                for (long id : input.getEncryptionMasterKeyIds()) {
+                    recipientIds.add(id);
+                }
+                EncryptionRecipientCache recipientCache = EncryptionRecipientCache.getInstance(mContext);
+                int cacheGeneration = recipientCache.getGeneration();
+                HashMap<Long, CanonicalizedPublicKeyRing> recipientRings = recipientCache.get(recipientIds);
+                boolean cacheHit = recipientRings != null;
+                if (!cacheHit) {
+                    recipientRings = new HashMap<>();
+                }
+
                 // Asymmetric encryption
+                ArrayList<PGPKeyEncryptionMethodGenerator> encryptionGenerators = new ArrayList<>();
                 for (long id : input.getEncryptionMasterKeyIds()) {
                     try {
-                        CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                                KeyRings.buildUnifiedKeyRingUri(id));
+                        CanonicalizedPublicKeyRing keyRing = recipientRings.get(id);
+                        if (keyRing == null) {
+                            TraceSpan lookupSpan = Tracer.begin(Tracer.KEY_LOOKUP);
+                            try {
+                                keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
+                                        KeyRings.buildUnifiedKeyRingUri(id));
+                            } finally {
+                                Tracer.end(lookupSpan);
+                            }
+                            recipientRings.put(id, keyRing);
+                        }
                         Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
                         for (Long subKeyId : encryptSubKeyIds) {
                             CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                            cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
+                            encryptionGenerators.add(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
                             log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
                                     KeyFormattingUtils.convertKeyIdToHex(subKeyId));
                         }
@@ -293,6 +327,22 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         }
                     }
                 }
+
+                if (!cacheHit) {
+                    recipientCache.put(recipientIds, recipientRings, cacheGeneration);
+                }
+
+                // wrapping the session key is a public key operation per subkey, do those in parallel
+                if (encryptionGenerators.size() >= PARALLEL_KEY_WRAP_THRESHOLD) {
+                    log.add(LogType.MSG_PSE_KEY_WRAP_PARALLEL, indent + 1,
+                            Integer.toString(encryptionGenerators.size()));
+                    cPk.addMethod(new ParallelKeyEncryptionMethodGenerator(
+                            encryptionGenerators, getKeyWrapExecutor()));
+                } else {
+                    for (PGPKeyEncryptionMethodGenerator generator : encryptionGenerators) {
+                        cPk.addMethod(generator);
+                    }
+                }
             }
         }
 
@@ -312,6 +362,32 @@ public class PgpSignEncryptOperation extends BaseOperation {
             }
         }
 
+        // buffers taken from the pool are recycled once the operation is done
+        ArrayList<byte[]> pooledBuffers = new ArrayList<>();
+        PooledBufferedOutputStream armorBufferOut = null;
+        PooledBufferedOutputStream detachedArmorBufferOut = null;
+
+        ArmoredOutputStream armorOut = null;
+        OutputStream out;
+        if (input.isEnableAsciiArmorOutput()) {
+            armorBufferOut = new PooledBufferedOutputStream(outputStream, BufferPool.LARGE);
+            armorOut = new ArmoredOutputStream(armorBufferOut);
+            if (input.getVersionHeader() != null) {
+                armorOut.setHeader("Version", input.getVersionHeader());
+            }
+            // if we have a charset, put it in the header
+            if (input.getCharset() != null) {
+                armorOut.setHeader("Charset", input.getCharset());
+            }
+            // add proprietary header to indicate that this is a key backup
+            if (input.isAddBackupHeader()) {
+                armorOut.setHeader("BackupVersion", "2");
+            }
+            out = armorOut;
+        } else {
+            out = outputStream;
+        }
+
         ProgressScaler progressScaler =
                 new ProgressScaler(mProgressable, 8, 95, 100);
         PGPCompressedDataGenerator compressGen = null;
@@ -325,6 +401,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
         long opTime, startTime = System.currentTimeMillis();
 
+        TraceSpan payloadSpan = Tracer.begin(Tracer.PAYLOAD_STREAMING);
         try {
 
             if (enableEncryption) {
@@ -337,17 +414,15 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                encryptionOut = cPk.open(out, obtainBuffer(pooledBuffers));
+
+                BufferedInputStream in = new BufferedInputStream(inputData.getInputStream());
 
                 if (enableCompression) {
+                    compressGen = createCompressedDataGenerator(input, in, log, indent);
+                }
+                if (compressGen != null) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
-
-                    // Use preferred compression algo
-                    int algo = input.getCompressionAlgorithm();
-                    if (algo == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
-                        algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
-                    }
-                    compressGen = new PGPCompressedDataGenerator(algo);
                     bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
                 } else {
                     bcpgOut = new BCPGOutputStream(encryptionOut);
@@ -365,12 +440,11 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     literalDataFormatTag = PGPLiteralData.BINARY;
                 }
                 pOut = literalGen.open(bcpgOut, literalDataFormatTag,
-                        inputData.getOriginalFilename(), new Date(), new byte[1 << 16]);
+                        inputData.getOriginalFilename(), new Date(), obtainBuffer(pooledBuffers));
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                byte[] buffer = obtainBuffer(pooledBuffers);
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -436,7 +510,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 detachedByteOut = new ByteArrayOutputStream();
                 OutputStream detachedOut = detachedByteOut;
                 if (input.isEnableAsciiArmorOutput()) {
-                    detachedArmorOut = new ArmoredOutputStream(new BufferedOutputStream(detachedOut, 1 << 16));
+                    detachedArmorBufferOut = new PooledBufferedOutputStream(detachedOut, BufferPool.LARGE);
+                    detachedArmorOut = new ArmoredOutputStream(detachedArmorBufferOut);
                     if (input.getVersionHeader() != null) {
                         detachedArmorOut.setHeader("Version", input.getVersionHeader());
                     }
@@ -447,7 +522,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = obtainBuffer(pooledBuffers);
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
@@ -467,16 +542,12 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 updateProgress(R.string.progress_signing, 8, 100);
                 log.add(LogType.MSG_PSE_SIGNING, indent);
 
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                BufferedInputStream in = new BufferedInputStream(inputData.getInputStream());
 
                 if (enableCompression) {
-                    // Use preferred compression algo
-                    int algo = input.getCompressionAlgorithm();
-                    if (algo == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
-                        algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
-                    }
-
-                    compressGen = new PGPCompressedDataGenerator(algo);
+                    compressGen = createCompressedDataGenerator(input, in, log, indent);
+                }
+                if (compressGen != null) {
                     bcpgOut = new BCPGOutputStream(compressGen.open(out));
                 } else {
                     bcpgOut = new BCPGOutputStream(out);
@@ -487,11 +558,11 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
                 pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY,
                         inputData.getOriginalFilename(), new Date(),
-                        new byte[1 << 16]);
+                        obtainBuffer(pooledBuffers));
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = obtainBuffer(pooledBuffers);
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -567,6 +638,17 @@ public class PgpSignEncryptOperation extends BaseOperation {
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            Tracer.end(payloadSpan);
+            for (byte[] buffer : pooledBuffers) {
+                BufferPool.LARGE.recycle(buffer);
+            }
+            if (armorBufferOut != null) {
+                armorBufferOut.release();
+            }
+            if (detachedArmorBufferOut != null) {
+                detachedArmorBufferOut.release();
+            }
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -593,6 +675,73 @@ public class PgpSignEncryptOperation extends BaseOperation {
         return result;
     }
 
+    private static byte[] obtainBuffer(ArrayList<byte[]> pooledBuffers) {
+        byte[] buffer = BufferPool.LARGE.obtain();
+        pooledBuffers.add(buffer);
+        return buffer;
+    }
+
+    private static boolean unlockTraced(CanonicalizedSecretKey key, Passphrase passphrase)
+            throws PgpGeneralException {
+        TraceSpan span = Tracer.begin(Tracer.UNLOCK);
+        try {
+            return key.unlock(passphrase);
+        } finally {
+            Tracer.end(span);
+        }
+    }
+
+    /**
+     * Returns the compression generator to use, or null if compression should be skipped.
+     *
+     * With adaptive compression, the first block of the input is inspected to decide
+     * whether compression is worth it. The stream position is left unchanged.
+     */
+    private PGPCompressedDataGenerator createCompressedDataGenerator(PgpSignEncryptInputParcel input,
+            BufferedInputStream in, OperationLog log, int indent) throws IOException {
+
+        // Use preferred compression algo
+        int algo = input.getCompressionAlgorithm();
+        if (algo == PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
+            algo = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
+        }
+
+        if (!input.isAdaptiveCompression()) {
+            return new PGPCompressedDataGenerator(algo);
+        }
+
+        byte[] firstBlock = new byte[PgpCompressionAdvisor.SNIFF_SIZE];
+        in.mark(firstBlock.length);
+        int length = 0;
+        int read;
+        while (length < firstBlock.length
+                && (read = in.read(firstBlock, length, firstBlock.length - length)) > 0) {
+            length += read;
+        }
+        in.reset();
+
+        PgpCompressionAdvisor advisor = PgpCompressionAdvisor.evaluate(firstBlock, length);
+        String entropy = String.format("%.2f", advisor.getEntropy());
+        switch (advisor.getMode()) {
+            case SKIP: {
+                if (advisor.getDetectedFormat() != null) {
+                    log.add(LogType.MSG_PSE_COMPRESSION_SKIP_FORMAT, indent, advisor.getDetectedFormat());
+                } else {
+                    log.add(LogType.MSG_PSE_COMPRESSION_SKIP_ENTROPY, indent, entropy);
+                }
+                return null;
+            }
+            case FAST: {
+                log.add(LogType.MSG_PSE_COMPRESSION_FAST, indent, entropy);
+                return new PGPCompressedDataGenerator(algo, advisor.getDeflaterLevel());
+            }
+            default: {
+                log.add(LogType.MSG_PSE_COMPRESSION_DEFAULT, indent);
+                return new PGPCompressedDataGenerator(algo);
+            }
+        }
+    }
+
     /**
      * Remove whitespaces on line endings
      */
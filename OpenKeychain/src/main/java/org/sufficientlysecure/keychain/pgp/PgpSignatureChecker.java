@@ -16,6 +16,8 @@ import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.TraceSpan;
+import org.sufficientlysecure.keychain.operations.Tracer;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
@@ -129,9 +131,7 @@ class PgpSignatureChecker {
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                CanonicalizedPublicKeyRing signingRing = getSigningRing(sigKeyId);
                 CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
                 if ( ! keyCandidate.canSign()) {
                     continue;
@@ -152,9 +152,7 @@ class PgpSignatureChecker {
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                CanonicalizedPublicKeyRing signingRing = getSigningRing(sigKeyId);
                 CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
                 if ( ! keyCandidate.canSign()) {
                     continue;
@@ -169,6 +167,17 @@ class PgpSignatureChecker {
         }
     }
 
+    private CanonicalizedPublicKeyRing getSigningRing(long sigKeyId) throws ProviderHelper.NotFoundException {
+        TraceSpan span = Tracer.begin(Tracer.KEY_LOOKUP);
+        try {
+            return mProviderHelper.getCanonicalizedPublicKeyRing(
+                    KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
+            );
+        } finally {
+            Tracer.end(span);
+        }
+    }
+
     public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
 
         InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
@@ -203,7 +212,13 @@ class PgpSignatureChecker {
         log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
         // Verify signature
-        boolean validSignature = signature.verify();
+        boolean validSignature;
+        TraceSpan span = Tracer.begin(Tracer.SIGNATURE_VERIFY);
+        try {
+            validSignature = signature.verify();
+        } finally {
+            Tracer.end(span);
+        }
         if (validSignature) {
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
         } else {
@@ -237,7 +252,13 @@ class PgpSignatureChecker {
         PGPSignature messageSignature = signatureList.get(signatureList.size() - 1 - signatureIndex);
 
         // Verify signature
-        boolean validSignature = onePassSignature.verify(messageSignature);
+        boolean validSignature;
+        TraceSpan span = Tracer.begin(Tracer.SIGNATURE_VERIFY);
+        try {
+            validSignature = onePassSignature.verify(messageSignature);
+        } finally {
+            Tracer.end(span);
+        }
         if (validSignature) {
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
         } else {
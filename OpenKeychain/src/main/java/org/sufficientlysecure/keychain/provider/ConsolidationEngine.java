@@ -0,0 +1,454 @@
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+/**
+ * Re-imports the cached key rings of a database consolidation.
+ * <p/>
+ * Decoding and canonicalizing a key ring doesn't depend on any other key ring, so this
+ * work is done on a pool of worker threads. All database writes happen on the calling
+ * thread, strictly in the order of the cache file. Each batch of CHECKPOINT_INTERVAL key
+ * rings is written in a single transaction, with observers notified once per batch. This
+ * way, the number of key rings which were already written is a well defined position in
+ * the cache file, which is recorded in a Checkpoint after every batch. If consolidation
+ * is interrupted, it resumes at the last checkpoint instead of wiping the database again.
+ * <p/>
+ * Key rings which can't be prepared by a worker (e.g. public rings with a secret
+ * counterpart, which must be merged with the database) are saved through the regular
+ * ProviderHelper methods instead.
+ */
+class ConsolidationEngine {
+
+    static final int PASS_SECRET = 0;
+    static final int PASS_PUBLIC = 1;
+
+    /** Number of key rings written per transaction, after which the checkpoint is updated. */
+    private static final int CHECKPOINT_INTERVAL = 32;
+    /** Number of key rings which are prepared ahead of the writer, per worker thread. */
+    private static final int PREPARE_AHEAD_PER_THREAD = 4;
+
+    private final Context mContext;
+    private final ProviderHelper mProviderHelper;
+
+    ConsolidationEngine(Context context, ProviderHelper providerHelper) {
+        mContext = context;
+        mProviderHelper = providerHelper;
+    }
+
+    /**
+     * Re-imports all key rings from the iterator, skipping those which are already
+     * committed according to the checkpoint.
+     */
+    ImportKeyResult reimport(int pass, Iterator<ParcelableKeyRing> entries, int num,
+            Checkpoint checkpoint, Progressable progress) throws IOException {
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, num);
+
+        int position = 0;
+        int skip = checkpoint.getCommitted(pass);
+        if (skip > 0) {
+            log.add(LogType.MSG_CON_REIMPORT_RESUME, 1, skip);
+            while (position < skip && entries.hasNext()) {
+                entries.next();
+                position += 1;
+            }
+        }
+
+        // public rings of secret keys are merged in the database, so they can't be prepared
+        final HashSet<Long> secretMasterKeyIds =
+                pass == PASS_PUBLIC ? getSecretMasterKeyIds() : new HashSet<Long>();
+
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        log.add(LogType.MSG_CON_REIMPORT_PARALLEL, 1, numThreads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+
+        int newKeys = 0, badKeys = 0, secret = 0;
+        ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        double progSteps = 100.0 / num;
+
+        ArrayDeque<Future<PreparedKeyRing>> pending = new ArrayDeque<>();
+        ArrayList<PreparedKeyRing> batch = new ArrayList<>(CHECKPOINT_INTERVAL);
+        ArrayList<SaveKeyringResult> batchResults = new ArrayList<>(CHECKPOINT_INTERVAL);
+        boolean batchStarted = false;
+        try {
+            while (true) {
+
+                // keep the workers busy, but don't hold the entire cache in memory
+                while (pending.size() < numThreads * PREPARE_AHEAD_PER_THREAD && entries.hasNext()) {
+                    final ParcelableKeyRing entry = entries.next();
+                    pending.add(executor.submit(new Callable<PreparedKeyRing>() {
+                        @Override
+                        public PreparedKeyRing call() {
+                            return prepareKeyRing(entry, secretMasterKeyIds);
+                        }
+                    }));
+                }
+
+                Future<PreparedKeyRing> next = pending.poll();
+                if (next != null) {
+                    PreparedKeyRing prepared = getUninterruptibly(next);
+
+                    if (batch.isEmpty()) {
+                        batchStarted = mProviderHelper.beginBatch();
+                    }
+                    int keyPosition = position + batch.size();
+                    ProgressScaler keyProgress = new ProgressScaler(progress,
+                            (int) (keyPosition * progSteps), (int) ((keyPosition + 1) * progSteps), 100);
+                    batch.add(prepared);
+                    batchResults.add(writeKeyRing(prepared, keyProgress));
+                }
+
+                if (batch.size() == CHECKPOINT_INTERVAL || (next == null && !batch.isEmpty())) {
+                    if (batchStarted) {
+                        batchStarted = false;
+                        if (!mProviderHelper.endBatch(true)) {
+                            // a failed write rolled back the whole batch, write its key rings one by one
+                            Log.d(Constants.TAG, "batched write failed, writing key rings one by one");
+                            batchResults.clear();
+                            for (PreparedKeyRing prepared : batch) {
+                                batchResults.add(writeKeyRing(prepared, new ProgressScaler()));
+                            }
+                        }
+                    }
+
+                    for (int i = 0; i < batch.size(); i++) {
+                        PreparedKeyRing prepared = batch.get(i);
+                        SaveKeyringResult result = batchResults.get(i);
+                        if (result == null || !result.success()) {
+                            badKeys += 1;
+                        } else {
+                            newKeys += 1;
+                            if (prepared.mSecret) {
+                                secret += 1;
+                            }
+                            importedMasterKeyIds.add(prepared.mMasterKeyId);
+                        }
+                        if (result != null) {
+                            log.add(result, 2);
+                        }
+                    }
+
+                    position += batch.size();
+                    batch.clear();
+                    batchResults.clear();
+                    checkpoint.setCommitted(pass, position);
+                    checkpoint.write(mContext);
+                }
+
+                if (next == null) {
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (batchStarted) {
+                // only reached on exceptions, the checkpoint still points before this batch
+                mProviderHelper.endBatch(false);
+            }
+        }
+
+        checkpoint.setCommitted(pass, position);
+        checkpoint.write(mContext);
+
+        long[] importedMasterKeyIdsArray = new long[importedMasterKeyIds.size()];
+        for (int i = 0; i < importedMasterKeyIds.size(); ++i) {
+            importedMasterKeyIdsArray[i] = importedMasterKeyIds.get(i);
+        }
+
+        int resultType = 0;
+        if (newKeys > 0) {
+            resultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
+        }
+        if (badKeys > 0) {
+            resultType |= ImportKeyResult.RESULT_WITH_ERRORS;
+            if (newKeys == 0) {
+                resultType |= ImportKeyResult.RESULT_ERROR;
+            }
+        }
+        if (log.containsWarnings()) {
+            resultType |= ImportKeyResult.RESULT_WARNINGS;
+        }
+
+        if (newKeys > 0 && badKeys > 0) {
+            log.add(LogType.MSG_IMPORT_PARTIAL, 1);
+        } else if (newKeys > 0 || skip > 0) {
+            log.add(LogType.MSG_IMPORT_SUCCESS, 1);
+        } else {
+            log.add(LogType.MSG_IMPORT_ERROR, 1);
+        }
+
+        return new ImportKeyResult(resultType, log, newKeys, 0, badKeys, secret,
+                importedMasterKeyIdsArray);
+    }
+
+    /** Consolidation must not be cancelled, so interrupts are deferred until the ring is prepared. */
+    private static PreparedKeyRing getUninterruptibly(Future<PreparedKeyRing> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "error preparing key ring", e);
+                    return new PreparedKeyRing();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Runs on a worker thread. Must not touch the database or the ProviderHelper. */
+    private static PreparedKeyRing prepareKeyRing(ParcelableKeyRing entry, HashSet<Long> secretMasterKeyIds) {
+        PreparedKeyRing prepared = new PreparedKeyRing();
+        try {
+            UncachedKeyRing keyRing = UncachedKeyRing.decodeFromData(entry.mBytes);
+            prepared.mUncachedRing = keyRing;
+            prepared.mMasterKeyId = keyRing.getMasterKeyId();
+            prepared.mSecret = keyRing.isSecret();
+
+            if (!prepared.mSecret && secretMasterKeyIds.contains(prepared.mMasterKeyId)) {
+                // needs to be merged with the secret key ring, leave this to the writer
+                return prepared;
+            }
+
+            OperationLog log = new OperationLog();
+            if (prepared.mSecret) {
+                CanonicalizedSecretKeyRing secretRing =
+                        (CanonicalizedSecretKeyRing) keyRing.canonicalize(log, 1);
+                if (secretRing == null) {
+                    return prepared;
+                }
+                log.add(LogType.MSG_IS_PUBRING_GENERATE, 1);
+                CanonicalizedPublicKeyRing publicRing = (CanonicalizedPublicKeyRing)
+                        keyRing.extractPublicKeyRing().canonicalize(log, 1);
+                if (publicRing == null) {
+                    return prepared;
+                }
+                prepared.mSecretRing = secretRing;
+                prepared.mPublicRing = publicRing;
+            } else {
+                CanonicalizedPublicKeyRing publicRing =
+                        (CanonicalizedPublicKeyRing) keyRing.canonicalize(log, 1);
+                if (publicRing == null) {
+                    return prepared;
+                }
+                prepared.mPublicRing = publicRing;
+            }
+            prepared.mCanonicalizeLog = log;
+
+        } catch (Exception e) {
+            // the writer falls back to the regular save methods, which log the error properly
+            Log.e(Constants.TAG, "error preparing key ring", e);
+        }
+        return prepared;
+    }
+
+    private SaveKeyringResult writeKeyRing(PreparedKeyRing prepared, Progressable progress) {
+        if (prepared.mUncachedRing == null) {
+            // could not even be decoded
+            return null;
+        }
+
+        mProviderHelper.clearLog();
+        if (prepared.mPublicRing != null) {
+            return mProviderHelper.saveConsolidatedKeyRing(prepared.mPublicRing, prepared.mSecretRing,
+                    prepared.mCanonicalizeLog, progress);
+        }
+        if (prepared.mSecret) {
+            return mProviderHelper.saveSecretKeyRing(prepared.mUncachedRing, progress);
+        }
+        return mProviderHelper.savePublicKeyRing(prepared.mUncachedRing, progress, null);
+    }
+
+    private HashSet<Long> getSecretMasterKeyIds() {
+        HashSet<Long> result = new HashSet<>();
+        Cursor cursor = mContext.getContentResolver().query(KeyRingData.buildSecretKeyRingUri(),
+                new String[]{ KeyRingData.MASTER_KEY_ID }, null, null, null);
+        if (cursor == null) {
+            return result;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static class PreparedKeyRing {
+        long mMasterKeyId;
+        boolean mSecret;
+        UncachedKeyRing mUncachedRing;
+        CanonicalizedPublicKeyRing mPublicRing;
+        CanonicalizedSecretKeyRing mSecretRing;
+        OperationLog mCanonicalizeLog;
+    }
+
+    /**
+     * Progress of a consolidation, persisted in the cache directory.
+     * <p/>
+     * This also holds the backup of last updated times of keys, which would otherwise
+     * be lost if consolidation is interrupted after the database was wiped.
+     */
+    static class Checkpoint {
+
+        private static final String FILENAME = "consolidate_checkpoint";
+        private static final int VERSION = 1;
+
+        private final int[] mCommitted = new int[2];
+        private final long[] mUpdatedMasterKeyIds;
+        private final long[] mUpdatedTimes;
+
+        Checkpoint(ArrayList<ContentValues> updatedKeysValues) {
+            mUpdatedMasterKeyIds = new long[updatedKeysValues.size()];
+            mUpdatedTimes = new long[updatedKeysValues.size()];
+            for (int i = 0; i < updatedKeysValues.size(); i++) {
+                mUpdatedMasterKeyIds[i] = updatedKeysValues.get(i).getAsLong(UpdatedKeys.MASTER_KEY_ID);
+                mUpdatedTimes[i] = updatedKeysValues.get(i).getAsLong(UpdatedKeys.LAST_UPDATED);
+            }
+        }
+
+        private Checkpoint(long[] updatedMasterKeyIds, long[] updatedTimes) {
+            mUpdatedMasterKeyIds = updatedMasterKeyIds;
+            mUpdatedTimes = updatedTimes;
+        }
+
+        int getCommitted(int pass) {
+            return mCommitted[pass];
+        }
+
+        void setCommitted(int pass, int committed) {
+            mCommitted[pass] = committed;
+        }
+
+        ContentValues[] getUpdatedKeysValues() {
+            ContentValues[] result = new ContentValues[mUpdatedMasterKeyIds.length];
+            for (int i = 0; i < result.length; i++) {
+                ContentValues values = new ContentValues(2);
+                values.put(UpdatedKeys.MASTER_KEY_ID, mUpdatedMasterKeyIds[i]);
+                values.put(UpdatedKeys.LAST_UPDATED, mUpdatedTimes[i]);
+                result[i] = values;
+            }
+            return result;
+        }
+
+        /** Writes the checkpoint to a temporary file first, so it is never left half-written. */
+        void write(Context context) throws IOException {
+            File cacheDir = getCacheDir(context);
+            File tempFile = new File(cacheDir, FILENAME + ".tmp");
+
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(mCommitted[PASS_SECRET]);
+                out.writeInt(mCommitted[PASS_PUBLIC]);
+                out.writeInt(mUpdatedMasterKeyIds.length);
+                for (int i = 0; i < mUpdatedMasterKeyIds.length; i++) {
+                    out.writeLong(mUpdatedMasterKeyIds[i]);
+                    out.writeLong(mUpdatedTimes[i]);
+                }
+                out.flush();
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(new File(cacheDir, FILENAME))) {
+                throw new IOException("could not write consolidation checkpoint");
+            }
+        }
+
+        /** Returns the persisted checkpoint, or null if there is none. */
+        static Checkpoint read(Context context) throws IOException {
+            DataInputStream in;
+            try {
+                in = new DataInputStream(new FileInputStream(new File(getCacheDir(context), FILENAME)));
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+
+            try {
+                if (in.readInt() != VERSION) {
+                    return null;
+                }
+                int committedSecret = in.readInt();
+                int committedPublic = in.readInt();
+                int numUpdated = in.readInt();
+                long[] updatedMasterKeyIds = new long[numUpdated];
+                long[] updatedTimes = new long[numUpdated];
+                for (int i = 0; i < numUpdated; i++) {
+                    updatedMasterKeyIds[i] = in.readLong();
+                    updatedTimes[i] = in.readLong();
+                }
+
+                Checkpoint checkpoint = new Checkpoint(updatedMasterKeyIds, updatedTimes);
+                checkpoint.mCommitted[PASS_SECRET] = committedSecret;
+                checkpoint.mCommitted[PASS_PUBLIC] = committedPublic;
+                return checkpoint;
+            } finally {
+                in.close();
+            }
+        }
+
+        static boolean delete(Context context) throws IOException {
+            return new File(getCacheDir(context), FILENAME).delete();
+        }
+
+        private static File getCacheDir(Context context) throws IOException {
+            File cacheDir = context.getCacheDir();
+            if (cacheDir == null) {
+                // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
+                throw new IOException("cache dir is null!");
+            }
+            return cacheDir;
+        }
+
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Stores large encoded key rings as files, addressed by the SHA-256 hash of their content.
+ * <p/>
+ * Flooded keys can grow to many megabytes, which is more than fits into a CursorWindow and
+ * makes every query that projects key ring data copy huge rows. Key rings larger than
+ * INLINE_LIMIT are therefore written here, and only their hash is stored in the database,
+ * in the KEY_RING_DATA_HASH column instead of KEY_RING_DATA. Smaller key rings, which are
+ * the vast majority, stay inline.
+ * <p/>
+ * Files are only ever created, never modified, so they can be shared between processes
+ * without further locking. Blobs which are no longer referenced are removed by
+ * deleteUnreferenced(), which is called at the end of a consolidation. Since other processes
+ * (e.g. the keyserver sync) may store blobs at the same time, this only deletes blobs which
+ * were last stored before the consolidation started, see put().
+ */
+public class KeyRingBlobStore {
+
+    /** Key rings larger than this are stored as blob, smaller ones inline in the database. */
+    static final int INLINE_LIMIT = 128 * 1024;
+
+    private static final String BLOB_DIR = "keyring_blobs";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** Temporary files older than this are left over from a crash, not in the middle of a write. */
+    private static final long STALE_TEMP_AGE = 24 * 60 * 60 * 1000;
+
+    private final File mDir;
+
+    public KeyRingBlobStore(Context context) {
+        mDir = new File(context.getFilesDir(), BLOB_DIR);
+    }
+
+    static boolean shouldStore(byte[] data) {
+        return data.length > INLINE_LIMIT;
+    }
+
+    /**
+     * Stores data in the blob store, if it isn't there already.
+     *
+     * @return the hash the data can be retrieved with
+     */
+    String put(byte[] data) throws IOException {
+        String hash = hash(data);
+
+        File file = new File(mDir, hash);
+        if (file.exists() && file.length() == data.length) {
+            // the row referencing this blob may not be committed before deleteUnreferenced()
+            // looks for references, the new modification time keeps it from being deleted
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                Log.e(Constants.TAG, "could not update modification time of blob " + hash);
+            }
+            return hash;
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("could not create blob directory!");
+        }
+
+        // write to a temporary file first, so a blob is either complete or not there at all
+        File tempFile = File.createTempFile(hash, TEMP_SUFFIX, mDir);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // noinspection ResultOfMethodCallIgnored - not much we can do here
+            tempFile.delete();
+            throw new IOException("could not move blob into place!");
+        }
+
+        return hash;
+    }
+
+    /** Reads a whole blob into memory, using a memory mapping to copy it in one go. */
+    public byte[] read(String hash) throws IOException {
+        FileInputStream in = new FileInputStream(getFile(hash));
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("blob too large!");
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, size);
+            byte[] data = new byte[(int) size];
+            buffer.get(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the key ring data of the current row of a cursor, which is either inline in
+     * the data column or in the blob store, referenced by the hash column.
+     *
+     * @return the key ring data, or null if both columns are null
+     */
+    public byte[] readKeyRingData(Cursor cursor, int dataIndex, int hashIndex) throws IOException {
+        if (!cursor.isNull(dataIndex)) {
+            return cursor.getBlob(dataIndex);
+        }
+        if (!cursor.isNull(hashIndex)) {
+            return read(cursor.getString(hashIndex));
+        }
+        return null;
+    }
+
+    /**
+     * Deletes all blobs which are not referenced anymore, as well as leftover temporary
+     * files.
+     * <p/>
+     * Other processes may store blobs concurrently, whose rows aren't committed yet when the
+     * referenced hashes are collected. Only blobs which were last stored before storedBefore
+     * are deleted, which must be a time before the referenced hashes were queried. Temporary
+     * files are only deleted once they are older than STALE_TEMP_AGE, since they may belong
+     * to a write in progress.
+     *
+     * @return the number of deleted files
+     */
+    int deleteUnreferenced(Set<String> referencedHashes, long storedBefore) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int deleted = 0;
+        for (File file : files) {
+            if (referencedHashes.contains(file.getName())) {
+                continue;
+            }
+            long maxModified = file.getName().endsWith(TEMP_SUFFIX)
+                    ? storedBefore - STALE_TEMP_AGE : storedBefore;
+            if (file.lastModified() >= maxModified) {
+                continue;
+            }
+            if (file.delete()) {
+                deleted += 1;
+            } else {
+                Log.e(Constants.TAG, "could not delete unreferenced blob " + file.getName());
+            }
+        }
+        return deleted;
+    }
+
+    private File getFile(String hash) throws IOException {
+        // hashes come from our own database, but better safe than sorry
+        if (hash.length() != 64 || !hash.matches("[0-9a-f]+")) {
+            throw new IOException("invalid blob hash!");
+        }
+        return new File(mDir, hash);
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.toHexString(digest.digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+    }
+
+}
@@ -0,0 +1,279 @@
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearchColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmailsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.provider.KeyRingRows.CertRow;
+import org.sufficientlysecure.keychain.provider.KeyRingRows.KeyRow;
+import org.sufficientlysecure.keychain.provider.KeyRingRows.UserPacketRow;
+
+
+/**
+ * Writes key rings directly into the database, bypassing the KeychainProvider.
+ * <p/>
+ * Going through a ContentResolver costs uri matching, ContentValues boxing and a change
+ * notification for every single row, which for keys with thousands of certificates is
+ * most of the time spent saving them. This class uses compiled statements instead, and
+ * replaces a key ring within a single transaction. Notifying observers is left to the
+ * caller, which should do it once per key ring, or once per batch of key rings.
+ * <p/>
+ * This only works in the process the KeychainProvider runs in, see
+ * ProviderHelper.getLocalDatabase(). Instances are not thread safe.
+ */
+class KeyRingDatabaseWriter {
+
+    private final SQLiteDatabase mDb;
+
+    private final SQLiteStatement mDeleteKeyRing;
+    private final SQLiteStatement mInsertKeyRing;
+    private final SQLiteStatement mInsertKey;
+    private final SQLiteStatement mInsertUserPacket;
+    private final SQLiteStatement mInsertCert;
+    private final SQLiteStatement mInsertUpdatedKey;
+    private final SQLiteStatement mInsertSearchIndex;
+    private final SQLiteStatement mInsertUserEmail;
+    private final SQLiteStatement mInsertSecretKeyRing;
+    private final SQLiteStatement mUpdateHasSecret;
+    private final SQLiteStatement mUpdateHasSecretKey;
+
+    KeyRingDatabaseWriter(SQLiteDatabase db) {
+        mDb = db;
+
+        mDeleteKeyRing = db.compileStatement("DELETE FROM " + Tables.KEY_RINGS_PUBLIC
+                + " WHERE " + KeyRingsColumns.MASTER_KEY_ID + " = ?");
+        mInsertKeyRing = db.compileStatement("INSERT INTO " + Tables.KEY_RINGS_PUBLIC + " ("
+                + KeyRingsColumns.MASTER_KEY_ID + ", "
+                + KeyRingsColumns.KEY_RING_DATA + ", "
+                + KeyRingsColumns.KEY_RING_DATA_HASH
+                + ") VALUES (?, ?, ?)");
+        mInsertKey = db.compileStatement("INSERT INTO " + Tables.KEYS + " ("
+                + KeysColumns.MASTER_KEY_ID + ", "
+                + KeysColumns.RANK + ", "
+                + KeysColumns.KEY_ID + ", "
+                + KeysColumns.KEY_SIZE + ", "
+                + KeysColumns.KEY_CURVE_OID + ", "
+                + KeysColumns.ALGORITHM + ", "
+                + KeysColumns.FINGERPRINT + ", "
+                + KeysColumns.CAN_CERTIFY + ", "
+                + KeysColumns.CAN_SIGN + ", "
+                + KeysColumns.CAN_ENCRYPT + ", "
+                + KeysColumns.CAN_AUTHENTICATE + ", "
+                + KeysColumns.IS_REVOKED + ", "
+                + KeysColumns.CREATION + ", "
+                + KeysColumns.EXPIRY
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        mInsertUserPacket = db.compileStatement("INSERT INTO " + Tables.USER_PACKETS + " ("
+                + UserPacketsColumns.MASTER_KEY_ID + ", "
+                + UserPacketsColumns.TYPE + ", "
+                + UserPacketsColumns.USER_ID + ", "
+                + UserPacketsColumns.ATTRIBUTE_DATA + ", "
+                + UserPacketsColumns.IS_PRIMARY + ", "
+                + UserPacketsColumns.IS_REVOKED + ", "
+                + UserPacketsColumns.RANK
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        // we replace here, keeping only the latest signature (same as KeychainProvider.insert)
+        mInsertCert = db.compileStatement("INSERT OR REPLACE INTO " + Tables.CERTS + " ("
+                + CertsColumns.MASTER_KEY_ID + ", "
+                + CertsColumns.RANK + ", "
+                + CertsColumns.KEY_ID_CERTIFIER + ", "
+                + CertsColumns.TYPE + ", "
+                + CertsColumns.VERIFIED + ", "
+                + CertsColumns.CREATION + ", "
+                + CertsColumns.DATA
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        mInsertUpdatedKey = db.compileStatement("INSERT OR REPLACE INTO " + Tables.UPDATED_KEYS + " ("
+                + UpdatedKeysColumns.MASTER_KEY_ID + ", "
+                + UpdatedKeysColumns.LAST_UPDATED
+                + ") VALUES (?, ?)");
+        // the old entry is removed by a trigger when the key ring is deleted
+        mInsertSearchIndex = db.compileStatement("INSERT INTO " + Tables.KEY_RINGS_SEARCH + " ("
+                + KeyRingsSearchColumns.MASTER_KEY_ID + ", "
+                + KeyRingsSearchColumns.USER_IDS + ", "
+                + KeyRingsSearchColumns.KEY_IDS
+                + ") VALUES (?, ?, ?)");
+        mInsertUserEmail = db.compileStatement("INSERT INTO " + Tables.USER_EMAILS + " ("
+                + UserEmailsColumns.MASTER_KEY_ID + ", "
+                + UserEmailsColumns.EMAIL + ", "
+                + UserEmailsColumns.VERIFIED
+                + ") VALUES (?, ?, ?)");
+        mInsertSecretKeyRing = db.compileStatement("INSERT INTO " + Tables.KEY_RINGS_SECRET + " ("
+                + KeyRingsColumns.MASTER_KEY_ID + ", "
+                + KeyRingsColumns.KEY_RING_DATA + ", "
+                + KeyRingsColumns.KEY_RING_DATA_HASH
+                + ") VALUES (?, ?, ?)");
+        mUpdateHasSecret = db.compileStatement("UPDATE " + Tables.KEYS
+                + " SET " + KeysColumns.HAS_SECRET + " = ?"
+                + " WHERE " + KeysColumns.MASTER_KEY_ID + " = ?");
+        mUpdateHasSecretKey = db.compileStatement("UPDATE " + Tables.KEYS
+                + " SET " + KeysColumns.HAS_SECRET + " = ?"
+                + " WHERE " + KeysColumns.MASTER_KEY_ID + " = ? AND " + KeysColumns.KEY_ID + " = ?");
+    }
+
+    /**
+     * Replaces the public key ring with all its keys, user packets and certs.
+     * <p/>
+     * Deleting the old key ring cascades to all of its rows, including the secret key ring,
+     * which must be saved again by the caller. If any statement fails, the transaction is
+     * rolled back and the old key ring stays in place.
+     *
+     * @return true if an old version of the key ring was replaced
+     */
+    boolean replacePublicKeyRing(KeyRingRows rows) {
+        long masterKeyId = rows.mMasterKeyId;
+
+        mDb.beginTransaction();
+        try {
+            mDeleteKeyRing.bindLong(1, masterKeyId);
+            boolean replaced = mDeleteKeyRing.executeUpdateDelete() > 0;
+
+            mInsertKeyRing.bindLong(1, masterKeyId);
+            bindBlobOrNull(mInsertKeyRing, 2, rows.mKeyRingData);
+            bindStringOrNull(mInsertKeyRing, 3, rows.mKeyRingDataHash);
+            mInsertKeyRing.executeInsert();
+
+            for (KeyRow key : rows.mKeys) {
+                mInsertKey.bindLong(1, masterKeyId);
+                mInsertKey.bindLong(2, key.mRank);
+                mInsertKey.bindLong(3, key.mKeyId);
+                bindLongOrNull(mInsertKey, 4, key.mKeySize == null ? null : (long) key.mKeySize);
+                bindStringOrNull(mInsertKey, 5, key.mKeyCurveOid);
+                mInsertKey.bindLong(6, key.mAlgorithm);
+                bindBlobOrNull(mInsertKey, 7, key.mFingerprint);
+                mInsertKey.bindLong(8, key.mCanCertify ? 1 : 0);
+                mInsertKey.bindLong(9, key.mCanSign ? 1 : 0);
+                mInsertKey.bindLong(10, key.mCanEncrypt ? 1 : 0);
+                mInsertKey.bindLong(11, key.mCanAuthenticate ? 1 : 0);
+                mInsertKey.bindLong(12, key.mIsRevoked ? 1 : 0);
+                mInsertKey.bindLong(13, key.mCreation);
+                bindLongOrNull(mInsertKey, 14, key.mExpiry);
+                mInsertKey.executeInsert();
+            }
+
+            for (UserPacketRow userPacket : rows.mUserPackets) {
+                mInsertUserPacket.bindLong(1, masterKeyId);
+                bindLongOrNull(mInsertUserPacket, 2,
+                        userPacket.mType == null ? null : (long) userPacket.mType);
+                bindStringOrNull(mInsertUserPacket, 3, userPacket.mUserId);
+                bindBlobOrNull(mInsertUserPacket, 4, userPacket.mAttributeData);
+                mInsertUserPacket.bindLong(5, userPacket.mIsPrimary ? 1 : 0);
+                mInsertUserPacket.bindLong(6, userPacket.mIsRevoked ? 1 : 0);
+                mInsertUserPacket.bindLong(7, userPacket.mRank);
+                mInsertUserPacket.executeInsert();
+            }
+
+            for (CertRow cert : rows.mCerts) {
+                mInsertCert.bindLong(1, masterKeyId);
+                mInsertCert.bindLong(2, cert.mRank);
+                mInsertCert.bindLong(3, cert.mKeyIdCertifier);
+                mInsertCert.bindLong(4, cert.mType);
+                mInsertCert.bindLong(5, cert.mVerified);
+                mInsertCert.bindLong(6, cert.mCreation);
+                bindBlobOrNull(mInsertCert, 7, cert.mData);
+                mInsertCert.executeInsert();
+            }
+
+            mInsertSearchIndex.bindLong(1, masterKeyId);
+            mInsertSearchIndex.bindString(2, rows.getSearchUserIds());
+            mInsertSearchIndex.bindString(3, rows.getSearchKeyIds());
+            mInsertSearchIndex.executeInsert();
+
+            for (Map.Entry<String, Integer> email : rows.getUserEmails().entrySet()) {
+                mInsertUserEmail.bindLong(1, masterKeyId);
+                mInsertUserEmail.bindString(2, email.getKey());
+                mInsertUserEmail.bindLong(3, email.getValue());
+                mInsertUserEmail.executeInsert();
+            }
+
+            if (rows.mLastUpdated != null) {
+                mInsertUpdatedKey.bindLong(1, masterKeyId);
+                mInsertUpdatedKey.bindLong(2, rows.mLastUpdated);
+                mInsertUpdatedKey.executeInsert();
+            }
+
+            mDb.setTransactionSuccessful();
+            return replaced;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts the secret key ring for a public key ring which was just replaced, see
+     * replacePublicKeyRing().
+     */
+    void insertSecretKeyRing(long masterKeyId, byte[] keyRingData, String keyRingDataHash) {
+        mInsertSecretKeyRing.bindLong(1, masterKeyId);
+        bindBlobOrNull(mInsertSecretKeyRing, 2, keyRingData);
+        bindStringOrNull(mInsertSecretKeyRing, 3, keyRingDataHash);
+        mInsertSecretKeyRing.executeInsert();
+    }
+
+    /** Sets the has_secret column of all keys of the key ring. */
+    void updateHasSecret(long masterKeyId, int hasSecret) {
+        mUpdateHasSecret.bindLong(1, hasSecret);
+        mUpdateHasSecret.bindLong(2, masterKeyId);
+        mUpdateHasSecret.executeUpdateDelete();
+    }
+
+    /**
+     * Sets the has_secret column of a single key of the key ring.
+     *
+     * @return true if the key exists
+     */
+    boolean updateHasSecret(long masterKeyId, long keyId, int hasSecret) {
+        mUpdateHasSecretKey.bindLong(1, hasSecret);
+        mUpdateHasSecretKey.bindLong(2, masterKeyId);
+        mUpdateHasSecretKey.bindLong(3, keyId);
+        return mUpdateHasSecretKey.executeUpdateDelete() == 1;
+    }
+
+    void close() {
+        mDeleteKeyRing.close();
+        mInsertKeyRing.close();
+        mInsertKey.close();
+        mInsertUserPacket.close();
+        mInsertCert.close();
+        mInsertUpdatedKey.close();
+        mInsertSearchIndex.close();
+        mInsertUserEmail.close();
+        mInsertSecretKeyRing.close();
+        mUpdateHasSecret.close();
+        mUpdateHasSecretKey.close();
+    }
+
+    private static void bindLongOrNull(SQLiteStatement statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindBlobOrNull(SQLiteStatement statement, int index, byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, value);
+        }
+    }
+
+}
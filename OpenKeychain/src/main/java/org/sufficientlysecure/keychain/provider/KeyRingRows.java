@@ -0,0 +1,239 @@
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmails;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+
+
+/**
+ * All database rows of a single public key ring.
+ * <p/>
+ * These are collected by ProviderHelper while processing a key ring, and then either
+ * written directly by a KeyRingDatabaseWriter, or converted into a list of
+ * ContentProviderOperations if the KeychainProvider runs in a different process.
+ */
+class KeyRingRows {
+
+    static class KeyRow {
+        int mRank;
+        long mKeyId;
+        Integer mKeySize;
+        String mKeyCurveOid;
+        int mAlgorithm;
+        byte[] mFingerprint;
+        boolean mCanCertify, mCanSign, mCanEncrypt, mCanAuthenticate;
+        boolean mIsRevoked;
+        long mCreation;
+        Long mExpiry;
+    }
+
+    static class UserPacketRow {
+        int mRank;
+        Integer mType;
+        String mUserId;
+        byte[] mAttributeData;
+        boolean mIsPrimary;
+        boolean mIsRevoked;
+    }
+
+    static class CertRow {
+        int mRank;
+        long mKeyIdCertifier;
+        int mType;
+        int mVerified;
+        long mCreation;
+        byte[] mData;
+    }
+
+    final long mMasterKeyId;
+    /** Encoded key ring, or null if it is in the KeyRingBlobStore under mKeyRingDataHash. */
+    byte[] mKeyRingData;
+    String mKeyRingDataHash;
+
+    final ArrayList<KeyRow> mKeys = new ArrayList<>();
+    final ArrayList<UserPacketRow> mUserPackets = new ArrayList<>();
+    final ArrayList<CertRow> mCerts = new ArrayList<>();
+
+    /** Last updated time to carry over from the previous version of this key ring, if any. */
+    Long mLastUpdated;
+
+    KeyRingRows(long masterKeyId) {
+        mMasterKeyId = masterKeyId;
+    }
+
+    /** Returns the total number of rows, for logging. */
+    int size() {
+        return 2 + mKeys.size() + mUserPackets.size() + mCerts.size() + getUserEmails().size()
+                + (mLastUpdated != null ? 1 : 0);
+    }
+
+    /**
+     * Returns the email addresses of all user ids, mapped to the best (lowest) verification
+     * of any certificate on a user id with that address, for the email status lookup.
+     */
+    Map<String, Integer> getUserEmails() {
+        HashMap<Integer, String> emailsByRank = new HashMap<>();
+        for (UserPacketRow userPacket : mUserPackets) {
+            String email = getEmailFromUserId(userPacket.mUserId);
+            if (email != null) {
+                emailsByRank.put(userPacket.mRank, email);
+            }
+        }
+
+        HashMap<String, Integer> emails = new HashMap<>();
+        for (CertRow cert : mCerts) {
+            String email = emailsByRank.get(cert.mRank);
+            // verified == 0 has no self-cert, which is basically an error case
+            if (email == null || cert.mVerified <= 0) {
+                continue;
+            }
+            Integer verified = emails.get(email);
+            if (verified == null || cert.mVerified < verified) {
+                emails.put(email, cert.mVerified);
+            }
+        }
+        return emails;
+    }
+
+    /** Returns the lower case email address at the end of a user id, as in "Name <email>". */
+    static String getEmailFromUserId(String userId) {
+        if (userId == null || !userId.endsWith(">")) {
+            return null;
+        }
+        int start = userId.lastIndexOf('<');
+        if (start < 0 || start + 1 >= userId.length() - 1) {
+            return null;
+        }
+        return userId.substring(start + 1, userId.length() - 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    /** Returns all user ids, one per line, for the search index. */
+    String getSearchUserIds() {
+        StringBuilder builder = new StringBuilder();
+        for (UserPacketRow userPacket : mUserPackets) {
+            if (userPacket.mUserId != null) {
+                builder.append(userPacket.mUserId).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /** Returns fingerprints, long and short key ids of all keys in hex, for the search index. */
+    String getSearchKeyIds() {
+        StringBuilder builder = new StringBuilder();
+        for (KeyRow key : mKeys) {
+            String keyId = String.format(Locale.ENGLISH, "%016x", key.mKeyId);
+            builder.append(keyId).append(' ').append(keyId.substring(8)).append(' ');
+            if (key.mFingerprint != null) {
+                builder.append(KeyFormattingUtils.convertFingerprintToHex(key.mFingerprint)).append(' ');
+            }
+        }
+        return builder.toString();
+    }
+
+    /** Builds the equivalent list of ContentProviderOperations, for use through a ContentResolver. */
+    ArrayList<ContentProviderOperation> buildOperations() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(size());
+
+        {
+            ContentValues values = new ContentValues();
+            values.put(KeyRingData.MASTER_KEY_ID, mMasterKeyId);
+            values.put(KeyRingData.KEY_RING_DATA, mKeyRingData);
+            values.put(KeyRingData.KEY_RING_DATA_HASH, mKeyRingDataHash);
+            operations.add(ContentProviderOperation.newInsert(
+                    KeyRingData.buildPublicKeyRingUri(mMasterKeyId)).withValues(values).build());
+        }
+
+        for (KeyRow key : mKeys) {
+            ContentValues values = new ContentValues();
+            values.put(Keys.MASTER_KEY_ID, mMasterKeyId);
+            values.put(Keys.RANK, key.mRank);
+            values.put(Keys.KEY_ID, key.mKeyId);
+            values.put(Keys.KEY_SIZE, key.mKeySize);
+            values.put(Keys.KEY_CURVE_OID, key.mKeyCurveOid);
+            values.put(Keys.ALGORITHM, key.mAlgorithm);
+            values.put(Keys.FINGERPRINT, key.mFingerprint);
+            values.put(Keys.CAN_CERTIFY, key.mCanCertify);
+            values.put(Keys.CAN_ENCRYPT, key.mCanEncrypt);
+            values.put(Keys.CAN_SIGN, key.mCanSign);
+            values.put(Keys.CAN_AUTHENTICATE, key.mCanAuthenticate);
+            values.put(Keys.IS_REVOKED, key.mIsRevoked);
+            values.put(Keys.CREATION, key.mCreation);
+            if (key.mExpiry != null) {
+                values.put(Keys.EXPIRY, key.mExpiry);
+            }
+            operations.add(ContentProviderOperation.newInsert(
+                    Keys.buildKeysUri(mMasterKeyId)).withValues(values).build());
+        }
+
+        for (UserPacketRow userPacket : mUserPackets) {
+            ContentValues values = new ContentValues();
+            values.put(UserPackets.MASTER_KEY_ID, mMasterKeyId);
+            values.put(UserPackets.TYPE, userPacket.mType);
+            values.put(UserPackets.USER_ID, userPacket.mUserId);
+            values.put(UserPackets.ATTRIBUTE_DATA, userPacket.mAttributeData);
+            values.put(UserPackets.IS_PRIMARY, userPacket.mIsPrimary);
+            values.put(UserPackets.IS_REVOKED, userPacket.mIsRevoked);
+            values.put(UserPackets.RANK, userPacket.mRank);
+            operations.add(ContentProviderOperation.newInsert(
+                    UserPackets.buildUserIdsUri(mMasterKeyId)).withValues(values).build());
+        }
+
+        // certs reference their user packet, so they must be inserted after all user packets
+        for (CertRow cert : mCerts) {
+            ContentValues values = new ContentValues();
+            values.put(Certs.MASTER_KEY_ID, mMasterKeyId);
+            values.put(Certs.RANK, cert.mRank);
+            values.put(Certs.KEY_ID_CERTIFIER, cert.mKeyIdCertifier);
+            values.put(Certs.TYPE, cert.mType);
+            values.put(Certs.CREATION, cert.mCreation);
+            values.put(Certs.VERIFIED, cert.mVerified);
+            values.put(Certs.DATA, cert.mData);
+            operations.add(ContentProviderOperation.newInsert(
+                    Certs.buildCertsUri(mMasterKeyId)).withValues(values).build());
+        }
+
+        {
+            ContentValues values = new ContentValues();
+            values.put(KeyRingsSearch.MASTER_KEY_ID, mMasterKeyId);
+            values.put(KeyRingsSearch.USER_IDS, getSearchUserIds());
+            values.put(KeyRingsSearch.KEY_IDS, getSearchKeyIds());
+            operations.add(ContentProviderOperation.newInsert(
+                    KeyRingsSearch.buildSearchIndexUri(mMasterKeyId)).withValues(values).build());
+        }
+
+        for (Map.Entry<String, Integer> email : getUserEmails().entrySet()) {
+            ContentValues values = new ContentValues(3);
+            values.put(UserEmails.MASTER_KEY_ID, mMasterKeyId);
+            values.put(UserEmails.EMAIL, email.getKey());
+            values.put(UserEmails.VERIFIED, email.getValue());
+            operations.add(ContentProviderOperation.newInsert(
+                    UserEmails.buildUserEmailsUri(mMasterKeyId)).withValues(values).build());
+        }
+
+        if (mLastUpdated != null) {
+            // this operation must happen after the new key is inserted
+            ContentValues values = new ContentValues(2);
+            values.put(UpdatedKeys.MASTER_KEY_ID, mMasterKeyId);
+            values.put(UpdatedKeys.LAST_UPDATED, mLastUpdated);
+            operations.add(ContentProviderOperation.newInsert(UpdatedKeys.CONTENT_URI).withValues(values).build());
+        }
+
+        return operations;
+    }
+
+}
@@ -28,6 +28,7 @@ public class KeychainContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String KEY_RING_DATA_HASH = "key_ring_data_hash"; // hash in KeyRingBlobStore, if data is null
     }
 
     interface KeysColumns {
@@ -76,6 +77,24 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface KeyRingsSearchColumns {
+        String MASTER_KEY_ID = "docid"; // row id of the fts table
+        String USER_IDS = "user_ids"; // all user ids of the key ring
+        String KEY_IDS = "key_ids"; // fingerprints, long and short key ids of all keys, in hex
+    }
+
+    interface UserEmailsColumns {
+        String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
+        String EMAIL = "email"; // lower case, taken from the end of a user id
+        String VERIFIED = "verified"; // best verification of all user ids with this email
+    }
+
+    interface KeyRingChangesColumns {
+        String SEQUENCE = "seq"; // increases with every change
+        String MASTER_KEY_ID = "master_key_id"; // not a foreign key, deleted key rings stay in here
+        String CHANGE_TYPE = "change_type";
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_CERTIFICATE = "package_signature";
@@ -104,12 +123,16 @@ public class KeychainContract {
 
     public static final String BASE_UPDATED_KEYS = "updated_keys";
 
+    public static final String BASE_KEY_RING_CHANGES = "keyring_changes";
+
     public static final String PATH_UNIFIED = "unified";
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
     public static final String PATH_BY_USER_ID = "user_id";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_EMAILS = "emails";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
@@ -135,6 +158,10 @@ public class KeychainContract {
         public static final String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
+        public static final String PUBKEY_DATA_HASH = "pubkey_data_hash";
+        public static final String PRIVKEY_DATA_HASH = "privkey_data_hash";
+        // only set for search uris, higher is better
+        public static final String SEARCH_RANK = "search_rank";
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -180,6 +207,15 @@ public class KeychainContract {
                     .appendPath(PATH_BY_USER_ID).appendPath(query).build();
         }
 
+        /**
+         * Full text search over all user ids and key ids. Each word of the query is matched
+         * as a prefix, and all of them must match. Results can be ordered by SEARCH_RANK.
+         */
+        public static Uri buildUnifiedKeyRingsSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_SEARCH).appendPath(query).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindBySubkeyUri(long subkey) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
@@ -222,6 +258,24 @@ public class KeychainContract {
 
     }
 
+    public static class KeyRingsSearch implements KeyRingsSearchColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static Uri buildSearchIndexUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_SEARCH).build();
+        }
+    }
+
+    public static class UserEmails implements UserEmailsColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static Uri buildUserEmailsUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_EMAILS).build();
+        }
+    }
+
     public static class Keys implements KeysColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -258,6 +312,33 @@ public class KeychainContract {
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
     }
 
+    /**
+     * Feed of changes to key rings, to update a list of keys without reloading all of it.
+     * <p/>
+     * Querying buildChangesSinceUri(n) returns the latest change of every key ring which
+     * changed after sequence n, ordered by sequence. An UPDATE may also be returned for a key
+     * ring which was deleted in the meantime, so it should be handled by querying the key
+     * ring again. If n is older than the changes that are still kept, a single RESET row is
+     * returned instead, and the whole list must be reloaded. Either way, the largest
+     * returned SEQUENCE is the n to use for the next query.
+     */
+    public static class KeyRingChanges implements KeyRingChangesColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RING_CHANGES).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.keyring_changes";
+
+        public static final int CHANGE_INSERT = 1;
+        public static final int CHANGE_UPDATE = 2;
+        public static final int CHANGE_DELETE = 3;
+        public static final int CHANGE_RESET = 4;
+
+        public static Uri buildChangesSinceUri(long sequence) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(sequence)).build();
+        }
+    }
+
     public static class UserPackets implements UserPacketsColumns, BaseColumns {
         public static final String VERIFIED = "verified";
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
@@ -18,11 +18,15 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -32,9 +36,13 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccounts
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingChanges;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingChangesColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearchColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmailsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.util.Log;
@@ -43,6 +51,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
 
 /**
  * SQLite Datatypes (from http://www.sqlite.org/datatype3.html)
@@ -54,7 +63,17 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 14;
+    private static final int DATABASE_VERSION = 18;
+    /**
+     * Size the write-ahead log is truncated to after a checkpoint. A consolidation rewrites
+     * the whole database, we don't want to keep a log of that size around afterwards.
+     */
+    private static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024;
+    /**
+     * Number of entries kept in the key ring change log. Clients which are further behind
+     * than this get a reset, and have to reload everything.
+     */
+    private static final int KEY_RING_CHANGES_LIMIT = 10000;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -65,6 +84,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String UPDATED_KEYS = "updated_keys";
         String USER_PACKETS = "user_packets";
         String CERTS = "certs";
+        String KEY_RINGS_SEARCH = "keyrings_search";
+        String USER_EMAILS = "user_emails";
+        String KEY_RING_CHANGES = "keyring_changes";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
@@ -73,13 +95,15 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.KEY_RING_DATA_HASH + " TEXT"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
             "CREATE TABLE IF NOT EXISTS keyrings_secret ("
                     + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
                     + KeyRingsColumns.KEY_RING_DATA + " BLOB, "
+                    + KeyRingsColumns.KEY_RING_DATA_HASH + " TEXT, "
                     + "FOREIGN KEY(" + KeyRingsColumns.MASTER_KEY_ID + ") "
                         + "REFERENCES keyrings_public(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
@@ -154,6 +178,116 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
 
+    private static final String CREATE_KEYRINGS_SEARCH =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.KEY_RINGS_SEARCH + " USING fts4("
+                + KeyRingsSearchColumns.USER_IDS + ", "
+                + KeyRingsSearchColumns.KEY_IDS
+            + ")";
+
+    // the search index is written by ProviderHelper, but a virtual table can't have a
+    // foreign key, so deletes have to be taken care of here
+    private static final String CREATE_KEYRINGS_SEARCH_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS keyrings_search_delete"
+                + " AFTER DELETE ON " + Tables.KEY_RINGS_PUBLIC
+                + " BEGIN"
+                    + " DELETE FROM " + Tables.KEY_RINGS_SEARCH
+                        + " WHERE " + KeyRingsSearchColumns.MASTER_KEY_ID
+                            + " = old." + KeyRingsColumns.MASTER_KEY_ID + ";"
+                + " END";
+
+    // written by ProviderHelper with the user packets, the email first in the primary key
+    // so that its index serves lookups by email
+    private static final String CREATE_USER_EMAILS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.USER_EMAILS + " ("
+                + UserEmailsColumns.MASTER_KEY_ID + " INTEGER, "
+                + UserEmailsColumns.EMAIL + " TEXT NOT NULL, "
+                + UserEmailsColumns.VERIFIED + " INTEGER, "
+
+                + "PRIMARY KEY(" + UserEmailsColumns.EMAIL + ", " + UserEmailsColumns.MASTER_KEY_ID + "), "
+                + "FOREIGN KEY(" + UserEmailsColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_KEYRING_CHANGES =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RING_CHANGES + " ("
+                + KeyRingChangesColumns.SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + KeyRingChangesColumns.MASTER_KEY_ID + " INTEGER NOT NULL, "
+                + KeyRingChangesColumns.CHANGE_TYPE + " INTEGER NOT NULL"
+            + ")";
+
+    // checks if the latest entry of the change log is an insert of the given key ring
+    private static String isLatestKeyRingInsert(String masterKeyId) {
+        return "EXISTS (SELECT 1 FROM " + Tables.KEY_RING_CHANGES
+                + " WHERE " + KeyRingChangesColumns.SEQUENCE + " = (SELECT MAX("
+                        + KeyRingChangesColumns.SEQUENCE + ") FROM " + Tables.KEY_RING_CHANGES + ")"
+                + " AND " + KeyRingChangesColumns.MASTER_KEY_ID + " = " + masterKeyId
+                + " AND " + KeyRingChangesColumns.CHANGE_TYPE + " = " + KeyRingChanges.CHANGE_INSERT + ")";
+    }
+
+    /*
+     * The change log is written by triggers, so it covers all ways of writing key rings:
+     * through the provider, with the KeyRingDatabaseWriter, and the cascading deletes.
+     *
+     * Saving a public key ring deletes the old version and inserts the new one. If the
+     * delete is the latest entry in the log, it is replaced by an UPDATE when the key ring
+     * is inserted again, with a new sequence number so clients which already saw the
+     * delete pick it up.
+     */
+    private static final String[] CREATE_KEYRING_CHANGES_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS keyring_changes_public_insert"
+                + " AFTER INSERT ON " + Tables.KEY_RINGS_PUBLIC
+                + " BEGIN"
+                    + " DELETE FROM " + Tables.KEY_RING_CHANGES
+                        + " WHERE " + KeyRingChangesColumns.SEQUENCE + " = (SELECT MAX("
+                                + KeyRingChangesColumns.SEQUENCE + ") FROM " + Tables.KEY_RING_CHANGES + ")"
+                        + " AND " + KeyRingChangesColumns.MASTER_KEY_ID + " = new." + KeyRingsColumns.MASTER_KEY_ID
+                        + " AND " + KeyRingChangesColumns.CHANGE_TYPE + " = " + KeyRingChanges.CHANGE_DELETE + ";"
+                    // changes() counts the rows deleted by the statement above
+                    + " INSERT INTO " + Tables.KEY_RING_CHANGES + " ("
+                        + KeyRingChangesColumns.MASTER_KEY_ID + ", " + KeyRingChangesColumns.CHANGE_TYPE
+                        + ") VALUES (new." + KeyRingsColumns.MASTER_KEY_ID + ", CASE changes()"
+                            + " WHEN 0 THEN " + KeyRingChanges.CHANGE_INSERT
+                            + " ELSE " + KeyRingChanges.CHANGE_UPDATE + " END);"
+                + " END",
+            "CREATE TRIGGER IF NOT EXISTS keyring_changes_public_delete"
+                + " AFTER DELETE ON " + Tables.KEY_RINGS_PUBLIC
+                + " BEGIN"
+                    + " INSERT INTO " + Tables.KEY_RING_CHANGES + " ("
+                        + KeyRingChangesColumns.MASTER_KEY_ID + ", " + KeyRingChangesColumns.CHANGE_TYPE
+                        + ") VALUES (old." + KeyRingsColumns.MASTER_KEY_ID + ", "
+                            + KeyRingChanges.CHANGE_DELETE + ");"
+                + " END",
+            // a new secret key ring is saved right after its public one, keep that an insert
+            "CREATE TRIGGER IF NOT EXISTS keyring_changes_secret_insert"
+                + " AFTER INSERT ON " + Tables.KEY_RINGS_SECRET
+                + " BEGIN"
+                    + " INSERT INTO " + Tables.KEY_RING_CHANGES + " ("
+                        + KeyRingChangesColumns.MASTER_KEY_ID + ", " + KeyRingChangesColumns.CHANGE_TYPE
+                        + ") VALUES (new." + KeyRingsColumns.MASTER_KEY_ID + ", CASE WHEN "
+                            + isLatestKeyRingInsert("new." + KeyRingsColumns.MASTER_KEY_ID)
+                            + " THEN " + KeyRingChanges.CHANGE_INSERT
+                            + " ELSE " + KeyRingChanges.CHANGE_UPDATE + " END);"
+                + " END",
+            // if the public key ring is gone, this is a cascading delete which is logged already
+            "CREATE TRIGGER IF NOT EXISTS keyring_changes_secret_delete"
+                + " AFTER DELETE ON " + Tables.KEY_RINGS_SECRET
+                + " WHEN EXISTS (SELECT 1 FROM " + Tables.KEY_RINGS_PUBLIC
+                        + " WHERE " + KeyRingsColumns.MASTER_KEY_ID + " = old." + KeyRingsColumns.MASTER_KEY_ID + ")"
+                + " BEGIN"
+                    + " INSERT INTO " + Tables.KEY_RING_CHANGES + " ("
+                        + KeyRingChangesColumns.MASTER_KEY_ID + ", " + KeyRingChangesColumns.CHANGE_TYPE
+                        + ") VALUES (old." + KeyRingsColumns.MASTER_KEY_ID + ", "
+                            + KeyRingChanges.CHANGE_UPDATE + ");"
+                + " END",
+            "CREATE TRIGGER IF NOT EXISTS keyring_changes_prune"
+                + " AFTER INSERT ON " + Tables.KEY_RING_CHANGES
+                + " BEGIN"
+                    + " DELETE FROM " + Tables.KEY_RING_CHANGES
+                        + " WHERE " + KeyRingChangesColumns.SEQUENCE
+                            + " <= new." + KeyRingChangesColumns.SEQUENCE + " - " + KEY_RING_CHANGES_LIMIT + ";"
+                + " END",
+    };
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -193,6 +327,13 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
 
+        // Use write-ahead logging, so queries don't block while an import or consolidation
+        // holds a write transaction. Writers are still serialized by sqlite. On older
+        // versions, this is done in onOpen instead.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+
         // make sure this is only done once, on the first instance!
         boolean iAmIt = false;
         synchronized (KeychainDatabase.class) {
@@ -217,6 +358,13 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_USER_PACKETS);
         db.execSQL(CREATE_CERTS);
         db.execSQL(CREATE_UPDATE_KEYS);
+        db.execSQL(CREATE_KEYRINGS_SEARCH);
+        db.execSQL(CREATE_KEYRINGS_SEARCH_DELETE_TRIGGER);
+        db.execSQL(CREATE_USER_EMAILS);
+        db.execSQL(CREATE_KEYRING_CHANGES);
+        for (String trigger : CREATE_KEYRING_CHANGES_TRIGGERS) {
+            db.execSQL(trigger);
+        }
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
@@ -229,13 +377,120 @@ public class KeychainDatabase extends SQLiteOpenHelper {
 
     }
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Enable foreign key constraints. With write-ahead logging there is more than one
+        // connection, so this must be done here where it applies to all of them.
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
         if (!db.isReadOnly()) {
-            // Enable foreign key constraints
-            db.execSQL("PRAGMA foreign_keys=ON;");
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                // Enable foreign key constraints
+                db.execSQL("PRAGMA foreign_keys=ON;");
+                // this converts an existing database on first open, the journal mode is persistent
+                db.enableWriteAheadLogging();
+            }
+            // pragmas which return a result can't be run with execSQL, and the query is only
+            // executed once the cursor is moved
+            Cursor cursor = db.rawQuery("PRAGMA journal_size_limit=" + WAL_SIZE_LIMIT, null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Copies all changes from the write-ahead log into the database file. Sqlite does this
+     * automatically every thousand pages, this is for after large writes like a consolidation,
+     * so the log doesn't stay at its full size.
+     */
+    public void checkpoint() {
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint", null);
+        try {
+            if (cursor.moveToFirst()) {
+                Log.d(Constants.TAG, "wal checkpoint: " + cursor.getInt(1) + " pages in log, "
+                        + cursor.getInt(2) + " checkpointed");
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the latest change of every key ring which changed after the given sequence
+     * number, or a single reset row if changes after it were already pruned from the log.
+     * See KeyRingChanges for how to use these.
+     */
+    public Cursor queryKeyRingChanges(String[] projection, long sinceSequence) {
+        SQLiteDatabase db = getReadableDatabase();
+
+        if (projection == null) {
+            projection = new String[] {
+                    KeyRingChanges.SEQUENCE, KeyRingChanges.MASTER_KEY_ID, KeyRingChanges.CHANGE_TYPE
+            };
+        }
+
+        HashMap<String, String> projectionMap = new HashMap<>();
+        projectionMap.put(KeyRingChanges.SEQUENCE, KeyRingChanges.SEQUENCE);
+        projectionMap.put(KeyRingChanges.MASTER_KEY_ID, KeyRingChanges.MASTER_KEY_ID);
+        projectionMap.put(KeyRingChanges.CHANGE_TYPE, KeyRingChanges.CHANGE_TYPE);
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(Tables.KEY_RING_CHANGES);
+        qb.setProjectionMap(projectionMap);
+        qb.appendWhere(KeyRingChanges.SEQUENCE + " IN (SELECT MAX(" + KeyRingChanges.SEQUENCE + ")"
+                + " FROM " + Tables.KEY_RING_CHANGES
+                + " WHERE " + KeyRingChanges.SEQUENCE + " > " + sinceSequence
+                + " GROUP BY " + KeyRingChanges.MASTER_KEY_ID + ")");
+
+        Cursor cursor = qb.query(db, projection, null, null, null, null, KeyRingChanges.SEQUENCE + " ASC");
+        // the window is filled here, the log can only have been pruned before that
+        cursor.getCount();
+
+        long firstSequence, lastSequence;
+        Cursor bounds = db.rawQuery("SELECT MIN(" + KeyRingChanges.SEQUENCE + "), MAX("
+                + KeyRingChanges.SEQUENCE + ") FROM " + Tables.KEY_RING_CHANGES, null);
+        try {
+            bounds.moveToFirst();
+            firstSequence = bounds.getLong(0);
+            lastSequence = bounds.getLong(1);
+        } finally {
+            bounds.close();
+        }
+
+        // an empty log has bounds of 0, so nothing is missing for a client which starts at 0
+        boolean missedChanges = sinceSequence < firstSequence - 1 || sinceSequence > lastSequence;
+        if (!missedChanges) {
+            return cursor;
+        }
+        cursor.close();
+
+        MatrixCursor reset = new MatrixCursor(projection, 1);
+        MatrixCursor.RowBuilder row = reset.newRow();
+        for (String column : projection) {
+            switch (column) {
+                case KeyRingChanges.SEQUENCE:
+                    row.add(lastSequence);
+                    break;
+                case KeyRingChanges.CHANGE_TYPE:
+                    row.add(KeyRingChanges.CHANGE_RESET);
+                    break;
+                case KeyRingChanges.MASTER_KEY_ID:
+                    row.add(null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid column " + column);
+            }
         }
+        return reset;
     }
 
     @Override
@@ -301,11 +556,30 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             case 13:
                 // do nothing here, just consolidate
             case 14:
-                db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ");");
-                db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
+                // this case is also entered when upgrading from 14, hence IF NOT EXISTS
+                db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_rank ON keys (" + KeysColumns.RANK + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
                         + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
-                db.execSQL("CREATE INDEX verified_certs ON certs ("
+                db.execSQL("CREATE INDEX IF NOT EXISTS verified_certs ON certs ("
                         + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+                // large key rings are moved into the KeyRingBlobStore by the consolidate below
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN "
+                        + KeyRingsColumns.KEY_RING_DATA_HASH + " TEXT");
+                db.execSQL("ALTER TABLE keyrings_secret ADD COLUMN "
+                        + KeyRingsColumns.KEY_RING_DATA_HASH + " TEXT");
+            case 15:
+                // the search index is filled by the consolidate below
+                db.execSQL(CREATE_KEYRINGS_SEARCH);
+                db.execSQL(CREATE_KEYRINGS_SEARCH_DELETE_TRIGGER);
+            case 16:
+                // the consolidate below logs all key rings as inserted
+                db.execSQL(CREATE_KEYRING_CHANGES);
+                for (String trigger : CREATE_KEYRING_CHANGES_TRIGGERS) {
+                    db.execSQL(trigger);
+                }
+            case 17:
+                // the email status table is filled by the consolidate below
+                db.execSQL(CREATE_USER_EMAILS);
 
         }
 
@@ -470,11 +744,25 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             throw new IOException("Cannot write " + out.getName());
         }
         copy(in, out);
+
+        // recent changes may still be in the write-ahead log, which must be copied along
+        File inWal = new File(in.getPath() + "-wal");
+        File outWal = new File(out.getPath() + "-wal");
+        if (inWal.exists()) {
+            copy(inWal, outWal);
+        } else {
+            // noinspection ResultOfMethodCallIgnored - this is a pure debug feature, anyways
+            outWal.delete();
+        }
+        // the shared memory index is rebuilt from the log
+        // noinspection ResultOfMethodCallIgnored - this is a pure debug feature, anyways
+        new File(out.getPath() + "-shm").delete();
     }
 
     // DANGEROUS, use in test code ONLY!
     public void clearDatabase() {
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
+        getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_SEARCH);
         getWritableDatabase().execSQL("delete from " + Tables.API_ACCOUNTS);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
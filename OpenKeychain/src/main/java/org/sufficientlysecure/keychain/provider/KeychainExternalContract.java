@@ -34,6 +34,8 @@ public class KeychainExternalContract {
             .parse("content://" + CONTENT_AUTHORITY_EXTERNAL);
 
     public static final String BASE_EMAIL_STATUS = "email_status";
+    public static final String BASE_KEY_CHANGES = "key_changes";
+    public static final String PATH_BATCH = "batch";
 
     public static class EmailStatus implements BaseColumns {
         public static final String EMAIL_ADDRESS = "email_address";
@@ -44,6 +46,42 @@ public class KeychainExternalContract {
 
         public static final String CONTENT_TYPE
                 = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.email_status";
+
+        /**
+         * Looks up many addresses at once, passed as selectionArgs. Returns a single row with
+         * the best status over all keys for each address that is known, with the address in
+         * lower case. At most MAX_BATCH_SIZE addresses can be looked up with one query.
+         */
+        public static final Uri BATCH_URI = CONTENT_URI.buildUpon()
+                .appendPath(PATH_BATCH).build();
+
+        public static final int MAX_BATCH_SIZE = 500;
+    }
+
+    /**
+     * Changes to keys since a sequence number. Clients which cache email status can check
+     * this for rows first, and only query email status again if there are any. The
+     * semantics are the same as for KeychainContract.KeyRingChanges.
+     */
+    public static class KeyChanges {
+        public static final String SEQUENCE = "seq";
+        public static final String MASTER_KEY_ID = "master_key_id";
+        public static final String CHANGE_TYPE = "change_type";
+
+        public static final int CHANGE_INSERT = 1;
+        public static final int CHANGE_UPDATE = 2;
+        public static final int CHANGE_DELETE = 3;
+        public static final int CHANGE_RESET = 4;
+
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_EXTERNAL.buildUpon()
+                .appendPath(BASE_KEY_CHANGES).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.key_changes";
+
+        public static Uri buildChangesSinceUri(long sequence) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(sequence)).build();
+        }
     }
 
     private KeychainExternalContract() {
@@ -20,6 +20,8 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
@@ -37,19 +39,24 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingChanges;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmails;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 
 public class KeychainProvider extends ContentProvider {
 
@@ -67,6 +74,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
     private static final int KEY_RING_LINKED_IDS = 207;
     private static final int KEY_RING_LINKED_ID_CERTS = 208;
+    private static final int KEY_RING_SEARCH = 209;
+    private static final int KEY_RING_EMAILS = 210;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -77,10 +86,13 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
     private static final int KEY_RINGS_FIND_BY_USER_ID = 402;
+    private static final int KEY_RINGS_FIND_BY_SEARCH = 403;
 
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
 
+    private static final int KEY_RING_CHANGES = 600;
+
     protected UriMatcher mUriMatcher;
 
     /**
@@ -120,6 +132,7 @@ public class KeychainProvider extends ContentProvider {
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/search/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -131,6 +144,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                         + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_USER_ID + "/*",
                 KEY_RINGS_FIND_BY_USER_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                        + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_SEARCH + "/*",
+                KEY_RINGS_FIND_BY_SEARCH);
 
         /**
          * list key_ring specifics
@@ -146,6 +162,8 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/search (insert only)
+         * key_rings/_/emails (insert only)
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -176,6 +194,12 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SEARCH,
+                KEY_RING_SEARCH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_EMAILS,
+                KEY_RING_EMAILS);
 
         /**
          * API apps
@@ -207,6 +231,15 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS, UPDATED_KEYS);
         matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS + "/*", UPDATED_KEYS_SPECIFIC);
 
+        /**
+         * changes to key rings since a sequence number
+         *
+         * <pre>
+         * keyring_changes/_
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RING_CHANGES + "/#", KEY_RING_CHANGES);
+
         return matcher;
     }
 
@@ -221,12 +254,37 @@ public class KeychainProvider extends ContentProvider {
         return true;
     }
 
-    public KeychainDatabase getDb() {
+    public synchronized KeychainDatabase getDb() {
         if(mKeychainDatabase == null)
             mKeychainDatabase = new KeychainDatabase(getContext());
         return mKeychainDatabase;
     }
 
+    /**
+     * Returns the database of the KeychainProvider if it runs in this process, or null if
+     * it can only be reached through a ContentResolver.
+     * <p/>
+     * Everything in the main process should use this one instance, so that concurrent users
+     * wait for each other while the database is opened and upgraded, instead of running the
+     * upgrade twice through separate helpers.
+     */
+    public static KeychainDatabase getLocalDb(ContentResolver contentResolver) {
+        ContentProviderClient client =
+                contentResolver.acquireContentProviderClient(KeychainContract.CONTENT_AUTHORITY);
+        if (client == null) {
+            return null;
+        }
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            if (provider instanceof KeychainProvider) {
+                return ((KeychainProvider) provider).getDb();
+            }
+            return null;
+        } finally {
+            client.release();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -251,6 +309,9 @@ public class KeychainProvider extends ContentProvider {
             case UPDATED_KEYS_SPECIFIC:
                 return UpdatedKeys.CONTENT_ITEM_TYPE;
 
+            case KEY_RING_CHANGES:
+                return KeyRingChanges.CONTENT_TYPE;
+
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
 
@@ -279,10 +340,18 @@ public class KeychainProvider extends ContentProvider {
                         String sortOrder) {
         Log.v(Constants.TAG, "query(uri=" + uri + ", proj=" + Arrays.toString(projection) + ")");
 
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-
         int match = mUriMatcher.match(uri);
 
+        if (match == KEY_RING_CHANGES) {
+            // selection and order are fixed for the change feed
+            Cursor cursor = getDb().queryKeyRingChanges(projection, Long.parseLong(uri.getLastPathSegment()));
+            // all key ring changes are notified on this uri or its descendants
+            cursor.setNotificationUri(getContext().getContentResolver(), KeyRings.CONTENT_URI);
+            return cursor;
+        }
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+
         // all query() parameters, for good measure
         String groupBy = null, having = null;
 
@@ -291,7 +360,11 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
             case KEY_RINGS_FIND_BY_SUBKEY:
-            case KEY_RINGS_FIND_BY_USER_ID: {
+            case KEY_RINGS_FIND_BY_USER_ID:
+            case KEY_RINGS_FIND_BY_SEARCH: {
+                String[] searchTerms = match == KEY_RINGS_FIND_BY_SEARCH
+                        ? getSearchTerms(uri.getLastPathSegment()) : null;
+
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -323,6 +396,12 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.PRIVKEY_DATA,
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PRIVKEY_DATA);
+                projectionMap.put(KeyRings.PUBKEY_DATA_HASH,
+                        Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA_HASH
+                                + " AS " + KeyRings.PUBKEY_DATA_HASH);
+                projectionMap.put(KeyRings.PRIVKEY_DATA_HASH,
+                        Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA_HASH
+                                + " AS " + KeyRings.PRIVKEY_DATA_HASH);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
                 projectionMap.put(KeyRings.HAS_ANY_SECRET,
                         "(" + Tables.KEY_RINGS_SECRET + "." + KeyRings.MASTER_KEY_ID + " IS NOT NULL)" +
@@ -336,6 +415,9 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.IS_EXPIRED,
                         "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
                                 + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                projectionMap.put(KeyRings.SEARCH_RANK, (searchTerms != null
+                        ? getSearchRank(searchTerms, Tables.USER_PACKETS + "." + UserPackets.USER_ID) : "0")
+                                + " AS " + KeyRings.SEARCH_RANK);
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -361,13 +443,14 @@ public class KeychainProvider extends ContentProvider {
                                 + " = " + Certs.VERIFIED_SECRET
                         + ")"
                         // fairly expensive joins following, only do when requested
-                        + (plist.contains(KeyRings.PUBKEY_DATA) ?
+                        + (plist.contains(KeyRings.PUBKEY_DATA) || plist.contains(KeyRings.PUBKEY_DATA_HASH) ?
                             " INNER JOIN " + Tables.KEY_RINGS_PUBLIC + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
                                     + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.PRIVKEY_DATA) || plist.contains(KeyRings.HAS_ANY_SECRET) ?
+                        + (plist.contains(KeyRings.PRIVKEY_DATA) || plist.contains(KeyRings.PRIVKEY_DATA_HASH)
+                                || plist.contains(KeyRings.HAS_ANY_SECRET) ?
                             " LEFT JOIN " + Tables.KEY_RINGS_SECRET + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
@@ -474,10 +557,27 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_FIND_BY_SEARCH: {
+                        if (searchTerms.length == 0) {
+                            qb.appendWhere(" AND 0");
+                            break;
+                        }
+                        // the subquery is evaluated only once, on the fts index
+                        qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT " + KeyRingsSearch.MASTER_KEY_ID
+                                + " FROM " + Tables.KEY_RINGS_SEARCH
+                                + " WHERE " + Tables.KEY_RINGS_SEARCH + " MATCH ");
+                        qb.appendWhereEscapeString(getSearchMatchQuery(searchTerms));
+                        qb.appendWhere(")");
+                        break;
+                    }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
                     sortOrder = Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC";
+                    if (searchTerms != null && plist.contains(KeyRings.SEARCH_RANK)) {
+                        sortOrder = KeyRings.SEARCH_RANK + " DESC, " + sortOrder;
+                    }
                 }
 
                 // uri to watch is all /key_rings/
@@ -568,6 +668,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.KEY_RING_DATA_HASH, KeyRingData.KEY_RING_DATA_HASH);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
@@ -586,6 +687,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_SECRET + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.KEY_RING_DATA_HASH, KeyRingData.KEY_RING_DATA_HASH);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_SECRET);
@@ -808,6 +910,16 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_SEARCH: {
+                    db.insertOrThrow(Tables.KEY_RINGS_SEARCH, null, values);
+                    keyId = values.getAsLong(KeyRingsSearch.MASTER_KEY_ID);
+                    break;
+                }
+                case KEY_RING_EMAILS: {
+                    db.insertOrThrow(Tables.USER_EMAILS, null, values);
+                    keyId = values.getAsLong(UserEmails.MASTER_KEY_ID);
+                    break;
+                }
                 case KEY_RING_CERTS: {
                     // we replace here, keeping only the latest signature
                     // TODO this would be better handled in savePublicKeyRing directly!
@@ -1025,4 +1137,53 @@ public class KeychainProvider extends ContentProvider {
         return ApiAllowedKeys.PACKAGE_NAME + "=" + packageName + andSelection;
     }
 
+    /**
+     * Splits a search query into words the way the fts tokenizer does, so that e.g. an email
+     * address becomes its parts. A 0x prefix is dropped from hex key ids.
+     */
+    static String[] getSearchTerms(String query) {
+        ArrayList<String> terms = new ArrayList<>();
+        for (String term : query.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{N}]+")) {
+            if (term.length() > 2 && term.startsWith("0x") && term.substring(2).matches("[0-9a-f]+")) {
+                term = term.substring(2);
+            }
+            if (term.length() > 0) {
+                terms.add(term);
+            }
+        }
+        return terms.toArray(new String[terms.size()]);
+    }
+
+    /** Builds an fts MATCH expression which matches every term as a prefix. */
+    private static String getSearchMatchQuery(String[] terms) {
+        StringBuilder matchQuery = new StringBuilder();
+        for (String term : terms) {
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append(term).append('*');
+        }
+        return matchQuery.toString();
+    }
+
+    /**
+     * Ranks a result higher if its primary user id contains all terms, and higher still if it
+     * starts with the first one. This is only evaluated for rows already found by the index.
+     */
+    private static String getSearchRank(String[] terms, String userIdColumn) {
+        if (terms.length == 0) {
+            return "0";
+        }
+        StringBuilder containsAll = new StringBuilder();
+        for (String term : terms) {
+            if (containsAll.length() > 0) {
+                containsAll.append(" AND ");
+            }
+            containsAll.append(userIdColumn).append(" LIKE ")
+                    .append(DatabaseUtils.sqlEscapeString("%" + term + "%"));
+        }
+        return "((" + userIdColumn + " LIKE " + DatabaseUtils.sqlEscapeString(terms[0] + "%") + ")"
+                + " + (" + containsAll + "))";
+    }
+
 }
@@ -26,16 +26,19 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
@@ -43,8 +46,10 @@ import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
-import org.sufficientlysecure.keychain.operations.ImportOperation;
+import org.sufficientlysecure.keychain.operations.TraceSpan;
+import org.sufficientlysecure.keychain.operations.Tracer;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
@@ -68,11 +73,10 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
-import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressFixedScaler;
@@ -92,9 +96,18 @@ import org.sufficientlysecure.keychain.util.Utf8Util;
 public class ProviderHelper {
     private final Context mContext;
     private final ContentResolver mContentResolver;
+    private final KeyRingBlobStore mBlobStore;
     private OperationLog mLog;
     private int mIndent;
 
+    /** Database and writer of the current batch, see beginBatch(). */
+    private SQLiteDatabase mBatchDb;
+    private KeyRingDatabaseWriter mBatchWriter;
+    private boolean mBatchFailed;
+
+    /** Number of master key ids per statement for bulk deletes, below SQLite's limit of 999 variables. */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
     public ProviderHelper(Context context) {
         this(context, new OperationLog(), 0);
     }
@@ -106,6 +119,7 @@ public class ProviderHelper {
     public ProviderHelper(Context context, OperationLog log, int indent) {
         mContext = context;
         mContentResolver = context.getContentResolver();
+        mBlobStore = new KeyRingBlobStore(context);
         mLog = log;
         mIndent = indent;
     }
@@ -217,7 +231,7 @@ public class ProviderHelper {
                 // we pick from cache only information that is not easily available from keyrings
                 KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED,
                 // and of course, ring data
-                KeyRings.PUBKEY_DATA
+                KeyRings.PUBKEY_DATA, KeyRings.PUBKEY_DATA_HASH
         }, KeyRings.HAS_ANY_SECRET + " = 1", null, null);
 
         try {
@@ -226,7 +240,13 @@ public class ProviderHelper {
             if (cursor != null && cursor.moveToFirst()) do {
                 long masterKeyId = cursor.getLong(0);
                 int verified = cursor.getInt(2);
-                byte[] blob = cursor.getBlob(3);
+                byte[] blob;
+                try {
+                    blob = mBlobStore.readKeyRingData(cursor, 3, 4);
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "could not read key ring blob", e);
+                    continue;
+                }
                 if (blob != null) {
                     result.put(masterKeyId,
                             new CanonicalizedPublicKeyRing(blob, verified).getPublicKey());
@@ -279,7 +299,8 @@ public class ProviderHelper {
                         // we pick from cache only information that is not easily available from keyrings
                         KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED,
                         // and of course, ring data
-                        secret ? KeyRings.PRIVKEY_DATA : KeyRings.PUBKEY_DATA
+                        secret ? KeyRings.PRIVKEY_DATA : KeyRings.PUBKEY_DATA,
+                        secret ? KeyRings.PRIVKEY_DATA_HASH : KeyRings.PUBKEY_DATA_HASH
                 }, null, null, null
         );
         try {
@@ -287,10 +308,16 @@ public class ProviderHelper {
 
                 boolean hasAnySecret = cursor.getInt(0) > 0;
                 int verified = cursor.getInt(1);
-                byte[] blob = cursor.getBlob(2);
                 if (secret & !hasAnySecret) {
                     throw new NotFoundException("Secret key not available!");
                 }
+                byte[] blob;
+                try {
+                    blob = mBlobStore.readKeyRingData(cursor, 2, 3);
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "could not read key ring blob", e);
+                    throw new NotFoundException("Key ring data not available!");
+                }
                 return secret
                         ? new CanonicalizedSecretKeyRing(blob, true, verified)
                         : new CanonicalizedPublicKeyRing(blob, verified);
@@ -345,35 +372,36 @@ public class ProviderHelper {
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
+        KeyRingRows rows;
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
             // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
+            rows = new KeyRingRows(masterKeyId);
 
             log(LogType.MSG_IP_INSERT_KEYRING);
             { // insert keyring
-                ContentValues values = new ContentValues();
-                values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+                byte[] encoded;
                 try {
-                    values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    encoded = keyRing.getEncoded();
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
                     return SaveKeyringResult.RESULT_ERROR;
                 }
-
-                Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
-                operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                if (KeyRingBlobStore.shouldStore(encoded)) {
+                    log(LogType.MSG_IP_INSERT_BLOB, encoded.length);
+                    rows.mKeyRingDataHash = mBlobStore.put(encoded);
+                } else {
+                    rows.mKeyRingData = encoded;
+                }
             }
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
             progress.setProgress(LogType.MSG_IP_INSERT_SUBKEYS.getMsgId(), 40, 100);
             mIndent += 1;
             { // insert subkeys
-                Uri uri = Keys.buildKeysUri(masterKeyId);
                 int rank = 0;
                 for (CanonicalizedPublicKey key : keyRing.publicKeyIterator()) {
                     long keyId = key.getKeyId();
@@ -382,22 +410,21 @@ public class ProviderHelper {
                     );
                     mIndent += 1;
 
-                    ContentValues values = new ContentValues();
-                    values.put(Keys.MASTER_KEY_ID, masterKeyId);
-                    values.put(Keys.RANK, rank);
+                    KeyRingRows.KeyRow values = new KeyRingRows.KeyRow();
+                    values.mRank = rank;
 
-                    values.put(Keys.KEY_ID, key.getKeyId());
-                    values.put(Keys.KEY_SIZE, key.getBitStrength());
-                    values.put(Keys.KEY_CURVE_OID, key.getCurveOid());
-                    values.put(Keys.ALGORITHM, key.getAlgorithm());
-                    values.put(Keys.FINGERPRINT, key.getFingerprint());
+                    values.mKeyId = key.getKeyId();
+                    values.mKeySize = key.getBitStrength();
+                    values.mKeyCurveOid = key.getCurveOid();
+                    values.mAlgorithm = key.getAlgorithm();
+                    values.mFingerprint = key.getFingerprint();
 
                     boolean c = key.canCertify(), e = key.canEncrypt(), s = key.canSign(), a = key.canAuthenticate();
-                    values.put(Keys.CAN_CERTIFY, c);
-                    values.put(Keys.CAN_ENCRYPT, e);
-                    values.put(Keys.CAN_SIGN, s);
-                    values.put(Keys.CAN_AUTHENTICATE, a);
-                    values.put(Keys.IS_REVOKED, key.isRevoked());
+                    values.mCanCertify = c;
+                    values.mCanEncrypt = e;
+                    values.mCanSign = s;
+                    values.mCanAuthenticate = a;
+                    values.mIsRevoked = key.isRevoked();
 
                     // see above
                     if (masterKeyId == keyId) {
@@ -415,10 +442,10 @@ public class ProviderHelper {
                     }
 
                     Date creation = key.getCreationTime();
-                    values.put(Keys.CREATION, creation.getTime() / 1000);
+                    values.mCreation = creation.getTime() / 1000;
                     Date expiryDate = key.getExpiryTime();
                     if (expiryDate != null) {
-                        values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
+                        values.mExpiry = expiryDate.getTime() / 1000;
                         if (key.isExpired()) {
                             log(keyId == masterKeyId ?
                                             LogType.MSG_IP_MASTER_EXPIRED : LogType.MSG_IP_SUBKEY_EXPIRED,
@@ -430,7 +457,7 @@ public class ProviderHelper {
                         }
                     }
 
-                    operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+                    rows.mKeys.add(values);
                     ++rank;
                     mIndent -= 1;
                 }
@@ -644,11 +671,10 @@ public class ProviderHelper {
             // iterate and put into db
             for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
                 UserPacketItem item = uids.get(userIdRank);
-                operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
+                rows.mUserPackets.add(buildUserPacketRow(item, userIdRank));
 
                 if (item.selfRevocation != null) {
-                    operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfRevocation,
-                            Certs.VERIFIED_SELF));
+                    rows.mCerts.add(buildCertRow(userIdRank, item.selfRevocation, Certs.VERIFIED_SELF));
                     // don't bother with trusted certs if the uid is revoked, anyways
                     continue;
                 }
@@ -657,7 +683,7 @@ public class ProviderHelper {
                     throw new AssertionError("User ids MUST be self-certified at this point!!");
                 }
 
-                operations.add(buildCertOperations(masterKeyId, userIdRank, item.selfCert,
+                rows.mCerts.add(buildCertRow(userIdRank, item.selfCert,
                         selfCertsAreTrusted ? Certs.VERIFIED_SECRET : Certs.VERIFIED_SELF));
 
                 // iterate over signatures
@@ -668,9 +694,8 @@ public class ProviderHelper {
                         // don't further process it
                         continue;
                     }
-                    // otherwise, build database operation
-                    operations.add(buildCertOperations(
-                            masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
+                    // otherwise, build database row
+                    rows.mCerts.add(buildCertRow(userIdRank, sig, Certs.VERIFIED_SECRET));
                 }
             }
 
@@ -683,7 +708,6 @@ public class ProviderHelper {
         }
 
         // before deleting key, retrieve it's last updated time
-        final int INDEX_MASTER_KEY_ID = 0;
         final int INDEX_LAST_UPDATED = 1;
         Cursor lastUpdatedCursor = mContentResolver.query(
                 UpdatedKeys.CONTENT_URI,
@@ -697,21 +721,15 @@ public class ProviderHelper {
         );
         if (lastUpdatedCursor.moveToNext()) {
             // there was an entry to re-insert
-            // this operation must happen after the new key is inserted
-            ContentValues lastUpdatedEntry = new ContentValues(2);
-            lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID,
-                    lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-            lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED,
-                    lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
-            operations.add(
-                    ContentProviderOperation
-                            .newInsert(UpdatedKeys.CONTENT_URI)
-                            .withValues(lastUpdatedEntry)
-                            .build()
-            );
+            rows.mLastUpdated = lastUpdatedCursor.getLong(INDEX_LAST_UPDATED);
         }
         lastUpdatedCursor.close();
 
+        KeychainDatabase localDatabase = getLocalDatabase();
+        if (localDatabase != null) {
+            return writePublicKeyRingDirect(localDatabase, rows, result, progress);
+        }
+
         try {
             // delete old version of this keyRing, which also deletes all keys and userIds on cascade
             int deleted = mContentResolver.delete(
@@ -725,7 +743,7 @@ public class ProviderHelper {
 
             log(LogType.MSG_IP_APPLY_BATCH);
             progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, rows.buildOperations());
 
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
@@ -743,6 +761,102 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Writes the rows of a public key ring with a KeyRingDatabaseWriter, replacing the old
+     * version in a single transaction. Observers are notified once for the whole key ring,
+     * or once for the whole batch if this is part of one.
+     */
+    private int writePublicKeyRingDirect(KeychainDatabase database, KeyRingRows rows, int result,
+            Progressable progress) {
+        log(LogType.MSG_IP_APPLY_DIRECT, rows.size());
+        progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+
+        KeyRingDatabaseWriter writer = mBatchWriter != null
+                ? mBatchWriter : new KeyRingDatabaseWriter(database.getWritableDatabase());
+        try {
+            if (writer.replacePublicKeyRing(rows)) {
+                log(LogType.MSG_IP_DELETE_OLD_OK);
+                result |= SaveKeyringResult.UPDATED;
+            } else {
+                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+            }
+        } catch (SQLiteException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Log.e(Constants.TAG, "SQLiteException during import", e);
+            // the failed nested transaction rolls back the batch as well
+            mBatchFailed = true;
+            return SaveKeyringResult.RESULT_ERROR;
+        } finally {
+            if (writer != mBatchWriter) {
+                writer.close();
+            }
+        }
+
+        if (mBatchWriter == null) {
+            mContentResolver.notifyChange(KeyRings.CONTENT_URI, null);
+        }
+
+        log(LogType.MSG_IP_SUCCESS);
+        progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
+        return result;
+    }
+
+    /**
+     * Starts a batch of saves, which are written in a single transaction with a shared
+     * KeyRingDatabaseWriter. Observers are not notified for the single key rings, but once
+     * by endBatch() if the batch is committed.
+     *
+     * @return false if the KeychainProvider doesn't run in this process, in which case every
+     * key ring is committed and notified on its own
+     */
+    boolean beginBatch() {
+        if (mBatchWriter != null) {
+            throw new IllegalStateException("batch already started!");
+        }
+        KeychainDatabase localDatabase = getLocalDatabase();
+        if (localDatabase == null) {
+            return false;
+        }
+        mBatchDb = localDatabase.getWritableDatabase();
+        mBatchDb.beginTransaction();
+        mBatchWriter = new KeyRingDatabaseWriter(mBatchDb);
+        mBatchFailed = false;
+        return true;
+    }
+
+    /**
+     * Ends the current batch, committing it if successful is true and none of its writes
+     * failed, and notifies observers once if it was committed.
+     *
+     * @return true if the batch was committed
+     */
+    boolean endBatch(boolean successful) {
+        boolean committed = successful && !mBatchFailed;
+        try {
+            mBatchWriter.close();
+            if (committed) {
+                mBatchDb.setTransactionSuccessful();
+            }
+        } finally {
+            mBatchDb.endTransaction();
+            mBatchDb = null;
+            mBatchWriter = null;
+        }
+
+        if (committed) {
+            mContentResolver.notifyChange(KeyRings.CONTENT_URI, null);
+        }
+        return committed;
+    }
+
+    /**
+     * Returns the database of the KeychainProvider if it runs in this process, or null if
+     * it can only be reached through a ContentResolver.
+     */
+    private KeychainDatabase getLocalDatabase() {
+        return KeychainProvider.getLocalDb(mContentResolver);
+    }
+
     private static class UserPacketItem implements Comparable<UserPacketItem> {
         Integer type;
         String userId;
@@ -797,10 +911,14 @@ public class ProviderHelper {
             try {
                 ContentValues values = new ContentValues();
                 values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-                values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                byte[] encoded = keyRing.getEncoded();
+                if (KeyRingBlobStore.shouldStore(encoded)) {
+                    values.put(KeyRingData.KEY_RING_DATA_HASH, mBlobStore.put(encoded));
+                } else {
+                    values.put(KeyRingData.KEY_RING_DATA, encoded);
+                }
                 // insert new version of this keyRing
-                Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
-                if (mContentResolver.insert(uri, values) == null) {
+                if (!insertSecretKeyRing(masterKeyId, values)) {
                     log(LogType.MSG_IS_DB_EXCEPTION);
                     return SaveKeyringResult.RESULT_ERROR;
                 }
@@ -811,12 +929,8 @@ public class ProviderHelper {
             }
 
             {
-                Uri uri = Keys.buildKeysUri(masterKeyId);
-
                 // first, mark all keys as not available
-                ContentValues values = new ContentValues();
-                values.put(Keys.HAS_SECRET, SecretKeyType.GNU_DUMMY.getNum());
-                mContentResolver.update(uri, values, null, null);
+                updateHasSecret(masterKeyId, null, SecretKeyType.GNU_DUMMY);
 
                 // then, mark exactly the keys we have available
                 log(LogType.MSG_IS_IMPORTING_SUBKEYS);
@@ -824,10 +938,7 @@ public class ProviderHelper {
                 for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
                     long id = sub.getKeyId();
                     SecretKeyType mode = sub.getSecretKeyTypeSuperExpensive();
-                    values.put(Keys.HAS_SECRET, mode.getNum());
-                    int upd = mContentResolver.update(uri, values, Keys.KEY_ID + " = ?",
-                            new String[]{Long.toString(id)});
-                    if (upd == 1) {
+                    if (updateHasSecret(masterKeyId, id, mode)) {
                         switch (mode) {
                             case PASSPHRASE:
                                 log(LogType.MSG_IS_SUBKEY_OK,
@@ -876,10 +987,162 @@ public class ProviderHelper {
 
     }
 
+    /** Inserts a secret keyring, using the writer of the current batch if there is one. */
+    private boolean insertSecretKeyRing(long masterKeyId, ContentValues values) {
+        if (mBatchWriter == null) {
+            Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
+            return mContentResolver.insert(uri, values) != null;
+        }
+        try {
+            mBatchWriter.insertSecretKeyRing(masterKeyId, values.getAsByteArray(KeyRingData.KEY_RING_DATA),
+                    values.getAsString(KeyRingData.KEY_RING_DATA_HASH));
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(Constants.TAG, "SQLiteException during import", e);
+            mBatchFailed = true;
+            return false;
+        }
+    }
+
+    /**
+     * Sets the secret key type of a single key, or of all keys of the keyring if keyId is
+     * null, using the writer of the current batch if there is one.
+     *
+     * @return true if any key was updated
+     */
+    private boolean updateHasSecret(long masterKeyId, Long keyId, SecretKeyType mode) {
+        if (mBatchWriter == null) {
+            ContentValues values = new ContentValues();
+            values.put(Keys.HAS_SECRET, mode.getNum());
+            Uri uri = Keys.buildKeysUri(masterKeyId);
+            if (keyId == null) {
+                return mContentResolver.update(uri, values, null, null) > 0;
+            }
+            return mContentResolver.update(uri, values, Keys.KEY_ID + " = ?",
+                    new String[]{Long.toString(keyId)}) == 1;
+        }
+        try {
+            if (keyId == null) {
+                mBatchWriter.updateHasSecret(masterKeyId, mode.getNum());
+                return true;
+            }
+            return mBatchWriter.updateHasSecret(masterKeyId, keyId, mode.getNum());
+        } catch (SQLiteException e) {
+            Log.e(Constants.TAG, "SQLiteException during import", e);
+            mBatchFailed = true;
+            return false;
+        }
+    }
+
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing keyRing) {
         return savePublicKeyRing(keyRing, new ProgressScaler(), null);
     }
 
+    /**
+     * Saves several public keyrings, returning one result per keyring in the same order.
+     * <p/>
+     * If the KeychainProvider runs in this process, all keyrings are written in a single
+     * transaction, and observers are notified once afterwards. Should any of them fail, the
+     * whole transaction is rolled back and the keyrings are saved one by one instead, so the
+     * results are the same as calling savePublicKeyRing() for each of them.
+     */
+    public List<SaveKeyringResult> savePublicKeyRings(List<UncachedKeyRing> keyRings) {
+        if (keyRings.size() > 1 && beginBatch()) {
+            ArrayList<SaveKeyringResult> results = new ArrayList<>(keyRings.size());
+
+            boolean committed;
+            try {
+                for (UncachedKeyRing keyRing : keyRings) {
+                    clearLog();
+                    SaveKeyringResult result = savePublicKeyRing(keyRing);
+                    if (!result.success()) {
+                        break;
+                    }
+                    results.add(result);
+                }
+            } catch (SQLiteException e) {
+                Log.e(Constants.TAG, "SQLiteException during batched save", e);
+                results.clear();
+            } finally {
+                committed = endBatch(results.size() == keyRings.size());
+            }
+
+            if (committed) {
+                return results;
+            }
+            Log.d(Constants.TAG, "batched save failed, saving key rings one by one");
+        }
+
+        ArrayList<SaveKeyringResult> results = new ArrayList<>(keyRings.size());
+        for (UncachedKeyRing keyRing : keyRings) {
+            clearLog();
+            results.add(savePublicKeyRing(keyRing));
+        }
+        return results;
+    }
+
+    /**
+     * Deletes the public keyrings with the given master key ids, together with their secret
+     * keyrings and everything else referencing them.
+     * <p/>
+     * If the KeychainProvider runs in this process, all keyrings are deleted in a single
+     * transaction, using DELETE_CHUNK_SIZE ids per statement, and observers are notified once
+     * afterwards. Otherwise, every keyring is deleted through the ContentResolver.
+     *
+     * @return the master key ids which actually existed and were deleted
+     */
+    public Set<Long> deletePublicKeyRings(long[] masterKeyIds) {
+        HashSet<Long> deleted = new HashSet<>();
+
+        KeychainDatabase localDatabase = getLocalDatabase();
+        if (localDatabase == null) {
+            for (long masterKeyId : masterKeyIds) {
+                if (mContentResolver.delete(KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null) > 0) {
+                    deleted.add(masterKeyId);
+                }
+            }
+            return deleted;
+        }
+
+        SQLiteDatabase db = localDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int start = 0; start < masterKeyIds.length; start += DELETE_CHUNK_SIZE) {
+                int end = Math.min(start + DELETE_CHUNK_SIZE, masterKeyIds.length);
+
+                String[] selectionArgs = new String[end - start];
+                StringBuilder placeholders = new StringBuilder();
+                for (int i = start; i < end; i++) {
+                    selectionArgs[i - start] = Long.toString(masterKeyIds[i]);
+                    placeholders.append(i == start ? "?" : ",?");
+                }
+                String selection = KeyRings.MASTER_KEY_ID + " IN (" + placeholders + ")";
+
+                // find out which ones exist first, so they can be reported individually
+                Cursor cursor = db.query(Tables.KEY_RINGS_PUBLIC, new String[]{ KeyRings.MASTER_KEY_ID },
+                        selection, selectionArgs, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        deleted.add(cursor.getLong(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                // corresponding keys and userIds are deleted by ON DELETE CASCADE
+                db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (!deleted.isEmpty()) {
+            mContentResolver.notifyChange(KeyRings.CONTENT_URI, null);
+        }
+        return deleted;
+    }
+
     /**
      * Save a public keyring into the database.
      * <p/>
@@ -888,6 +1151,7 @@ public class ProviderHelper {
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress, String expectedFingerprint) {
 
+        TraceSpan saveSpan = Tracer.begin(Tracer.DATABASE_SAVE);
         try {
             long masterKeyId = publicRing.getMasterKeyId();
             log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
@@ -987,6 +1251,7 @@ public class ProviderHelper {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
         } finally {
+            Tracer.end(saveSpan);
             mIndent -= 1;
         }
 
@@ -994,6 +1259,7 @@ public class ProviderHelper {
 
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
 
+        TraceSpan saveSpan = Tracer.begin(Tracer.DATABASE_SAVE);
         try {
             long masterKeyId = secretRing.getMasterKeyId();
             log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
@@ -1097,6 +1363,44 @@ public class ProviderHelper {
         } catch (IOException e) {
             log(LogType.MSG_IS_ERROR_IO_EXC);
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+        } finally {
+            Tracer.end(saveSpan);
+            mIndent -= 1;
+        }
+
+    }
+
+    /**
+     * Save a key ring which was already canonicalized by the ConsolidationEngine.
+     * <p/>
+     * Unlike the other save methods, this does not merge with data in the database, since
+     * all key rings are re-imported from scratch during consolidation.
+     */
+    SaveKeyringResult saveConsolidatedKeyRing(CanonicalizedPublicKeyRing canPublicRing,
+            CanonicalizedSecretKeyRing canSecretRing, OperationLog canonicalizeLog, Progressable progress) {
+
+        try {
+            long masterKeyId = canPublicRing.getMasterKeyId();
+            log(canSecretRing != null ? LogType.MSG_IS : LogType.MSG_IP,
+                    KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+            mIndent += 1;
+
+            // canonicalization happened on a worker thread, add its log here
+            mLog.addAll(canonicalizeLog.toList());
+
+            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+            if (canSecretRing == null) {
+                return new SaveKeyringResult(result, mLog, null);
+            }
+            if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            }
+
+            progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+            result = saveCanonicalizedSecretKeyRing(canSecretRing);
+
+            return new SaveKeyringResult(result, mLog, canSecretRing);
+
         } finally {
             mIndent -= 1;
         }
@@ -1125,11 +1429,15 @@ public class ProviderHelper {
 
         try {
 
+            // a checkpoint refers to positions in the old cache files, which are overwritten now
+            ConsolidationEngine.Checkpoint.delete(mContext);
+
             log.add(LogType.MSG_CON_SAVE_SECRET, indent);
             indent += 1;
 
             final Cursor cursor = mContentResolver.query(KeyRingData.buildSecretKeyRingUri(),
-                    new String[]{KeyRingData.KEY_RING_DATA}, null, null, null);
+                    new String[]{KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA_HASH},
+                    null, null, null);
 
             if (cursor == null) {
                 log.add(LogType.MSG_CON_ERROR_DB, indent);
@@ -1138,8 +1446,7 @@ public class ProviderHelper {
 
             // No keys existing might be a legitimate option, we write an empty file in that case
             cursor.moveToFirst();
-            ParcelableFileCache<ParcelableKeyRing> cache =
-                    new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
+            KeyRingFileCache cache = new KeyRingFileCache(mContext, "consolidate_secret.pcl");
             cache.writeCache(cursor.getCount(), new Iterator<ParcelableKeyRing>() {
                 ParcelableKeyRing ring;
 
@@ -1148,12 +1455,16 @@ public class ProviderHelper {
                     if (ring != null) {
                         return true;
                     }
-                    if (cursor.isAfterLast()) {
-                        return false;
+                    while (ring == null && !cursor.isAfterLast()) {
+                        try {
+                            ring = new ParcelableKeyRing(mBlobStore.readKeyRingData(cursor, 0, 1));
+                        } catch (IOException e) {
+                            // the key is unusable anyways, treat it like one which fails to import
+                            Log.e(Constants.TAG, "could not read key ring blob, skipping", e);
+                        }
+                        cursor.moveToNext();
                     }
-                    ring = new ParcelableKeyRing(cursor.getBlob(0));
-                    cursor.moveToNext();
-                    return true;
+                    return ring != null;
                 }
 
                 @Override
@@ -1191,7 +1502,8 @@ public class ProviderHelper {
 
             final Cursor cursor = mContentResolver.query(
                     KeyRingData.buildPublicKeyRingUri(),
-                    new String[]{KeyRingData.KEY_RING_DATA}, null, null, null);
+                    new String[]{KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA_HASH},
+                    null, null, null);
 
             if (cursor == null) {
                 log.add(LogType.MSG_CON_ERROR_DB, indent);
@@ -1200,8 +1512,8 @@ public class ProviderHelper {
 
             // No keys existing might be a legitimate option, we write an empty file in that case
             cursor.moveToFirst();
-            ParcelableFileCache<ParcelableKeyRing> cache =
-                    new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
+            // public keyrings can be many, so trade some cpu time for a smaller file
+            KeyRingFileCache cache = new KeyRingFileCache(mContext, "consolidate_public.pcl", true);
             cache.writeCache(cursor.getCount(), new Iterator<ParcelableKeyRing>() {
                 ParcelableKeyRing ring;
 
@@ -1210,12 +1522,16 @@ public class ProviderHelper {
                     if (ring != null) {
                         return true;
                     }
-                    if (cursor.isAfterLast()) {
-                        return false;
+                    while (ring == null && !cursor.isAfterLast()) {
+                        try {
+                            ring = new ParcelableKeyRing(mBlobStore.readKeyRingData(cursor, 0, 1));
+                        } catch (IOException e) {
+                            // the key is unusable anyways, treat it like one which fails to import
+                            Log.e(Constants.TAG, "could not read key ring blob, skipping", e);
+                        }
+                        cursor.moveToNext();
                     }
-                    ring = new ParcelableKeyRing(cursor.getBlob(0));
-                    cursor.moveToNext();
-                    return true;
+                    return ring != null;
                 }
 
                 @Override
@@ -1268,6 +1584,10 @@ public class ProviderHelper {
             mConsolidateCritical = true;
         }
 
+        // blobs stored after this may belong to uncommitted writes of other processes, so
+        // they are left for the next consolidation
+        long startTime = System.currentTimeMillis();
+
         try {
             Preferences prefs = Preferences.getPreferences(mContext);
 
@@ -1283,35 +1603,62 @@ public class ProviderHelper {
 
             // 2. wipe database (IT'S DANGEROUS)
 
-            // first, backup our list of updated key times
-            ArrayList<ContentValues> updatedKeysValues = new ArrayList<>();
-            final int INDEX_MASTER_KEY_ID = 0;
-            final int INDEX_LAST_UPDATED = 1;
-            Cursor lastUpdatedCursor = mContentResolver.query(
-                    UpdatedKeys.CONTENT_URI,
-                    new String[]{
-                            UpdatedKeys.MASTER_KEY_ID,
-                            UpdatedKeys.LAST_UPDATED
-                    },
-                    null, null, null);
-            while (lastUpdatedCursor.moveToNext()) {
-                ContentValues values = new ContentValues();
-                values.put(UpdatedKeys.MASTER_KEY_ID,
-                        lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
-                values.put(UpdatedKeys.LAST_UPDATED,
-                        lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
-                updatedKeysValues.add(values);
+            // if a previous consolidation was interrupted after the database was wiped, the
+            // checkpoint tells us how far it got. in that case, don't wipe again but resume.
+            ConsolidationEngine.Checkpoint checkpoint;
+            try {
+                checkpoint = ConsolidationEngine.Checkpoint.read(mContext);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error reading consolidation checkpoint", e);
+                checkpoint = null;
             }
-            lastUpdatedCursor.close();
 
-            log.add(LogType.MSG_CON_DB_CLEAR, indent);
-            mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            if (checkpoint != null) {
+                log.add(LogType.MSG_CON_RESUME, indent);
+            } else {
+
+                // first, backup our list of updated key times
+                ArrayList<ContentValues> updatedKeysValues = new ArrayList<>();
+                final int INDEX_MASTER_KEY_ID = 0;
+                final int INDEX_LAST_UPDATED = 1;
+                Cursor lastUpdatedCursor = mContentResolver.query(
+                        UpdatedKeys.CONTENT_URI,
+                        new String[]{
+                                UpdatedKeys.MASTER_KEY_ID,
+                                UpdatedKeys.LAST_UPDATED
+                        },
+                        null, null, null);
+                while (lastUpdatedCursor.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    values.put(UpdatedKeys.MASTER_KEY_ID,
+                            lastUpdatedCursor.getLong(INDEX_MASTER_KEY_ID));
+                    values.put(UpdatedKeys.LAST_UPDATED,
+                            lastUpdatedCursor.getLong(INDEX_LAST_UPDATED));
+                    updatedKeysValues.add(values);
+                }
+                lastUpdatedCursor.close();
 
-            ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
+                // the checkpoint must be persisted before the wipe, it holds the only copy
+                // of the updated key times afterwards
+                checkpoint = new ConsolidationEngine.Checkpoint(updatedKeysValues);
+                try {
+                    checkpoint.write(mContext);
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error writing consolidation checkpoint", e);
+                    log.add(LogType.MSG_CON_ERROR_CHECKPOINT, indent);
+                    return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+                }
+
+                log.add(LogType.MSG_CON_DB_CLEAR, indent);
+                mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            }
+
+            ConsolidationEngine engine = new ConsolidationEngine(mContext, this);
+            KeyRingFileCache cacheSecret, cachePublic;
 
             // Set flag that we have a cached consolidation here
             try {
-                cacheSecret = new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
+                cacheSecret = new KeyRingFileCache(mContext, "consolidate_secret.pcl");
                 IteratorWithSize<ParcelableKeyRing> itSecrets = cacheSecret.readCache(false);
                 int numSecrets = itSecrets.getSize();
 
@@ -1321,9 +1668,9 @@ public class ProviderHelper {
                 // 3. Re-Import secret keyrings from cache
                 if (numSecrets > 0) {
 
-                    ImportKeyResult result = new ImportOperation(mContext, this,
-                            new ProgressFixedScaler(progress, 10, 25, 100, R.string.progress_con_reimport))
-                            .serialKeyRingImport(itSecrets, numSecrets, null, null);
+                    ImportKeyResult result = engine.reimport(ConsolidationEngine.PASS_SECRET,
+                            itSecrets, numSecrets, checkpoint,
+                            new ProgressFixedScaler(progress, 10, 25, 100, R.string.progress_con_reimport));
                     log.add(result, indent);
                 } else {
                     log.add(LogType.MSG_CON_REIMPORT_SECRET_SKIP, indent);
@@ -1339,8 +1686,8 @@ public class ProviderHelper {
 
             try {
 
-                cachePublic = new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
-                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache();
+                cachePublic = new KeyRingFileCache(mContext, "consolidate_public.pcl");
+                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache(false);
                 int numPublics = itPublics.getSize();
 
                 log.add(LogType.MSG_CON_REIMPORT_PUBLIC, indent, numPublics);
@@ -1349,14 +1696,13 @@ public class ProviderHelper {
                 // 4. Re-Import public keyrings from cache
                 if (numPublics > 0) {
 
-                    ImportKeyResult result = new ImportOperation(mContext, this,
-                            new ProgressFixedScaler(progress, 25, 99, 100, R.string.progress_con_reimport))
-                            .serialKeyRingImport(itPublics, numPublics, null, null);
+                    ImportKeyResult result = engine.reimport(ConsolidationEngine.PASS_PUBLIC,
+                            itPublics, numPublics, checkpoint,
+                            new ProgressFixedScaler(progress, 25, 99, 100, R.string.progress_con_reimport));
                     log.add(result, indent);
                     // re-insert our backed up list of updated key times
                     // TODO: can this cause issues in case a public key re-import failed?
-                    mContentResolver.bulkInsert(UpdatedKeys.CONTENT_URI,
-                            updatedKeysValues.toArray(new ContentValues[updatedKeysValues.size()]));
+                    mContentResolver.bulkInsert(UpdatedKeys.CONTENT_URI, checkpoint.getUpdatedKeysValues());
                 } else {
                     log.add(LogType.MSG_CON_REIMPORT_PUBLIC_SKIP, indent);
                 }
@@ -1389,6 +1735,7 @@ public class ProviderHelper {
                 log.add(LogType.MSG_CON_DELETE_PUBLIC, indent);
                 indent += 1;
                 cachePublic.delete();
+                ConsolidationEngine.Checkpoint.delete(mContext);
             } catch (IOException e) {
                 // doesn't /really/ matter
                 Log.e(Constants.TAG, "IOException during deletion of public cache", e);
@@ -1397,6 +1744,26 @@ public class ProviderHelper {
                 indent -= 1;
             }
 
+            // 6. Delete blobs of key rings which were deleted or replaced
+            {
+                HashSet<String> referencedHashes = new HashSet<>();
+                addReferencedBlobHashes(KeyRingData.buildPublicKeyRingUri(), referencedHashes);
+                addReferencedBlobHashes(KeyRingData.buildSecretKeyRingUri(), referencedHashes);
+                int deleted = mBlobStore.deleteUnreferenced(referencedHashes, startTime);
+                log.add(LogType.MSG_CON_DELETE_BLOBS, indent, referencedHashes.size(), deleted);
+            }
+
+            // the reimport went through the write-ahead log, fold it back into the database
+            KeychainDatabase localDatabase = getLocalDatabase();
+            if (localDatabase != null) {
+                try {
+                    localDatabase.checkpoint();
+                } catch (SQLiteException e) {
+                    // doesn't matter either, sqlite will checkpoint eventually
+                    Log.e(Constants.TAG, "SQLiteException during checkpoint", e);
+                }
+            }
+
             progress.setProgress(100, 100);
             log.add(LogType.MSG_CON_SUCCESS, indent);
 
@@ -1408,43 +1775,42 @@ public class ProviderHelper {
 
     }
 
-    /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
-     */
-    private ContentProviderOperation
-    buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, int verified)
-            throws IOException {
-        ContentValues values = new ContentValues();
-        values.put(Certs.MASTER_KEY_ID, masterKeyId);
-        values.put(Certs.RANK, rank);
-        values.put(Certs.KEY_ID_CERTIFIER, cert.getKeyId());
-        values.put(Certs.TYPE, cert.getSignatureType());
-        values.put(Certs.CREATION, cert.getCreationTime().getTime() / 1000);
-        values.put(Certs.VERIFIED, verified);
-        values.put(Certs.DATA, cert.getEncoded());
-
-        Uri uri = Certs.buildCertsUri(masterKeyId);
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    private void addReferencedBlobHashes(Uri uri, HashSet<String> hashes) {
+        Cursor cursor = mContentResolver.query(uri, new String[]{KeyRingData.KEY_RING_DATA_HASH},
+                KeyRingData.KEY_RING_DATA_HASH + " IS NOT NULL", null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                hashes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
-    /**
-     * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
-     */
-    private ContentProviderOperation
-    buildUserIdOperations(long masterKeyId, UserPacketItem item, int rank) {
-        ContentValues values = new ContentValues();
-        values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
-        values.put(UserPackets.TYPE, item.type);
-        values.put(UserPackets.USER_ID, item.userId);
-        values.put(UserPackets.ATTRIBUTE_DATA, item.attributeData);
-        values.put(UserPackets.IS_PRIMARY, item.isPrimary);
-        values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
-        values.put(UserPackets.RANK, rank);
-
-        Uri uri = UserPackets.buildUserIdsUri(masterKeyId);
+    private KeyRingRows.CertRow buildCertRow(int rank, WrappedSignature cert, int verified)
+            throws IOException {
+        KeyRingRows.CertRow row = new KeyRingRows.CertRow();
+        row.mRank = rank;
+        row.mKeyIdCertifier = cert.getKeyId();
+        row.mType = cert.getSignatureType();
+        row.mCreation = cert.getCreationTime().getTime() / 1000;
+        row.mVerified = verified;
+        row.mData = cert.getEncoded();
+        return row;
+    }
 
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    private KeyRingRows.UserPacketRow buildUserPacketRow(UserPacketItem item, int rank) {
+        KeyRingRows.UserPacketRow row = new KeyRingRows.UserPacketRow();
+        row.mType = item.type;
+        row.mUserId = item.userId;
+        row.mAttributeData = item.attributeData;
+        row.mIsPrimary = item.isPrimary;
+        row.mIsRevoked = item.selfRevocation != null;
+        row.mRank = rank;
+        return row;
     }
 
     private String getKeyRingAsArmoredString(byte[] data) throws IOException, PgpGeneralException {
@@ -1461,9 +1827,30 @@ public class ProviderHelper {
 
     public String getKeyRingAsArmoredString(Uri uri)
             throws NotFoundException, IOException, PgpGeneralException {
-        byte[] data = (byte[]) getGenericData(
-                uri, KeyRingData.KEY_RING_DATA, ProviderHelper.FIELD_TYPE_BLOB);
-        return getKeyRingAsArmoredString(data);
+        return getKeyRingAsArmoredString(getKeyRingData(uri));
+    }
+
+    /**
+     * Returns the encoded key ring for a KeyRingData uri, reading it from the blob store
+     * if necessary.
+     */
+    public byte[] getKeyRingData(Uri uri) throws NotFoundException, IOException {
+        Cursor cursor = mContentResolver.query(uri,
+                new String[]{KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA_HASH}, null, null, null);
+        try {
+            byte[] data = null;
+            if (cursor != null && cursor.moveToFirst()) {
+                data = mBlobStore.readKeyRingData(cursor, 0, 1);
+            }
+            if (data == null) {
+                throw new NotFoundException();
+            }
+            return data;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     public Uri renewKeyLastUpdatedTime(long masterKeyId, long time, TimeUnit timeUnit) {
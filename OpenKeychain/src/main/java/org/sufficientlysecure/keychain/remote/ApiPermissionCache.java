@@ -0,0 +1,86 @@
+package org.sufficientlysecure.keychain.remote;
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Remembers which calling uids were found to be allowed by ApiPermissionHelper.
+ * <p/>
+ * Checking a caller means loading all registered apps and comparing the package's signing
+ * certificates, which mail clients would otherwise pay for on every single message. Only
+ * positive results are kept, and only for CACHE_TTL. Everything is forgotten as soon as a
+ * package is replaced or removed, or the registered apps change. There is one instance per
+ * process, since the remote api runs in a process of its own.
+ */
+class ApiPermissionCache {
+
+    private static final long CACHE_TTL = 60 * 1000;
+
+    private static ApiPermissionCache sInstance;
+
+    /** Maps allowed uids to the time their entry expires, in elapsedRealtime. */
+    private final SparseArray<Long> mAllowedUntil = new SparseArray<>();
+
+    static synchronized ApiPermissionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApiPermissionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ApiPermissionCache(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Log.d(Constants.TAG, "package changed, invalidating api permission cache");
+                invalidate();
+            }
+        }, filter);
+
+        // registered apps are written in the main process, so observe them through the provider
+        context.getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        Log.d(Constants.TAG, "api apps changed, invalidating api permission cache");
+                        invalidate();
+                    }
+                });
+    }
+
+    synchronized boolean isAllowed(int uid) {
+        Long allowedUntil = mAllowedUntil.get(uid);
+        if (allowedUntil == null) {
+            return false;
+        }
+        if (allowedUntil < SystemClock.elapsedRealtime()) {
+            mAllowedUntil.remove(uid);
+            return false;
+        }
+        return true;
+    }
+
+    synchronized void setAllowed(int uid) {
+        mAllowedUntil.put(uid, SystemClock.elapsedRealtime() + CACHE_TTL);
+    }
+
+    synchronized void invalidate() {
+        mAllowedUntil.clear();
+    }
+
+}
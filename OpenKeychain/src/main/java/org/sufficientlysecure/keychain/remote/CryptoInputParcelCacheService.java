@@ -33,9 +33,9 @@ import org.openintents.openpgp.util.OpenPgpApi;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ParcelableCache;
 
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 
 public class CryptoInputParcelCacheService extends Service {
@@ -55,7 +55,30 @@ public class CryptoInputParcelCacheService extends Service {
 
     private static final UUID NULL_UUID = new UUID(0, 0);
 
-    private ConcurrentHashMap<UUID, CryptoInputParcel> mCache = new ConcurrentHashMap<>();
+    /** Input parcels should be picked up right after the user entered them */
+    private static final int MAX_CACHE_SIZE = 32;
+    private static final long MAX_CACHE_AGE = 5 * 60 * 1000;
+
+    private final ParcelableCache<CryptoInputParcel> mCache =
+            new ParcelableCache<CryptoInputParcel>(MAX_CACHE_SIZE, MAX_CACHE_AGE) {
+                @Override
+                protected void onEvicted(CryptoInputParcel inputParcel) {
+                    // nobody is going to pick this up anymore, don't keep the passphrase around
+                    if (inputParcel != null && inputParcel.hasPassphrase()) {
+                        inputParcel.getPassphrase().removeFromMemory();
+                    }
+                }
+            };
+
+    private final Handler mExpiryHandler = new Handler();
+    private final Runnable mExpiryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCache.evictExpired();
+            Log.d(Constants.TAG, "CryptoInputParcelCacheService: evicted expired entries, " + mCache.getMetrics());
+            stopIfEmpty();
+        }
+    };
 
     public static class InputParcelNotFound extends Exception {
         public InputParcelNotFound() {
@@ -174,6 +197,9 @@ public class CryptoInputParcelCacheService extends Service {
                 CryptoInputParcel inputParcel = intent.getParcelableExtra(EXTRA_CRYPTO_INPUT_PARCEL);
                 mCache.put(uuid, inputParcel);
 
+                // make sure the entry is evicted even if nobody asks for it anymore
+                mExpiryHandler.postDelayed(mExpiryRunnable, MAX_CACHE_AGE);
+
                 break;
             }
             case ACTION_GET: {
@@ -187,8 +213,7 @@ public class CryptoInputParcelCacheService extends Service {
                 if (NULL_UUID.compareTo(uuid) == 0) {
                     msg.what = MSG_GET_NOT_FOUND;
                 } else {
-                    CryptoInputParcel inputParcel = mCache.get(uuid);
-                    mCache.remove(uuid);
+                    CryptoInputParcel inputParcel = mCache.remove(uuid);
                     msg.what = MSG_GET_OKAY;
                     Bundle bundle = new Bundle();
                     bundle.putParcelable(EXTRA_CRYPTO_INPUT_PARCEL, inputParcel);
@@ -208,13 +233,17 @@ public class CryptoInputParcelCacheService extends Service {
             }
         }
 
+        stopIfEmpty();
+
+        return START_NOT_STICKY;
+    }
+
+    private void stopIfEmpty() {
         if (mCache.size() <= 0) {
             // stop whole service if cache is empty
             Log.d(Constants.TAG, "CryptoInputParcelCacheService: No passphrases remaining in memory, stopping service!");
             stopSelf();
         }
-
-        return START_NOT_STICKY;
     }
 
     @Override
@@ -227,6 +256,7 @@ public class CryptoInputParcelCacheService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mExpiryHandler.removeCallbacks(mExpiryRunnable);
         Log.d(Constants.TAG, "CryptoInputParcelCacheService, onDestroy()");
     }
 
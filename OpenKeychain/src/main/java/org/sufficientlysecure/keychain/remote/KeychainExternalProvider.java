@@ -19,8 +19,10 @@ package org.sufficientlysecure.keychain.remote;
 
 
 import java.security.AccessControlException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -39,17 +41,22 @@ import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserEmails;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract.EmailStatus;
+import org.sufficientlysecure.keychain.provider.KeychainExternalContract.KeyChanges;
+import org.sufficientlysecure.keychain.provider.KeychainProvider;
 import org.sufficientlysecure.keychain.provider.SimpleContentResolverInterface;
 import org.sufficientlysecure.keychain.util.Log;
 
 
 public class KeychainExternalProvider extends ContentProvider implements SimpleContentResolverInterface {
     private static final int EMAIL_STATUS = 101;
+    private static final int KEY_CHANGES = 102;
+    private static final int EMAIL_STATUS_BATCH = 103;
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
 
@@ -76,6 +83,25 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
          */
         matcher.addURI(authority, KeychainExternalContract.BASE_EMAIL_STATUS, EMAIL_STATUS);
 
+        /**
+         * email_status for many addresses at once
+         *
+         * <pre>
+         * email_status/batch
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainExternalContract.BASE_EMAIL_STATUS + "/"
+                + KeychainExternalContract.PATH_BATCH, EMAIL_STATUS_BATCH);
+
+        /**
+         * changes to keys since a sequence number
+         *
+         * <pre>
+         * key_changes/_
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainExternalContract.BASE_KEY_CHANGES + "/#", KEY_CHANGES);
+
         matcher.addURI(KeychainContract.CONTENT_AUTHORITY, KeychainContract.BASE_API_APPS, API_APPS);
         matcher.addURI(KeychainContract.CONTENT_AUTHORITY, KeychainContract.BASE_API_APPS + "/*", API_APPS_BY_PACKAGE_NAME);
 
@@ -92,9 +118,14 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
         return true;
     }
 
-    public KeychainDatabase getDb() {
-        if(mKeychainDatabase == null)
+    public synchronized KeychainDatabase getDb() {
+        if (mKeychainDatabase == null) {
+            // share the instance of KeychainProvider, which may be upgrading the database right now
+            mKeychainDatabase = KeychainProvider.getLocalDb(getContext().getContentResolver());
+        }
+        if (mKeychainDatabase == null) {
             mKeychainDatabase = new KeychainDatabase(getContext());
+        }
         return mKeychainDatabase;
     }
 
@@ -106,8 +137,12 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
         final int match = mUriMatcher.match(uri);
         switch (match) {
             case EMAIL_STATUS:
+            case EMAIL_STATUS_BATCH:
                 return EmailStatus.CONTENT_TYPE;
 
+            case KEY_CHANGES:
+                return KeyChanges.CONTENT_TYPE;
+
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
 
@@ -131,7 +166,21 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
 
         int match = mUriMatcher.match(uri);
 
+        if (match == KEY_CHANGES) {
+            boolean callerIsAllowed = mApiPermissionHelper.isAllowedIgnoreErrors();
+            if (!callerIsAllowed) {
+                throw new AccessControlException("An application must register before use of KeychainExternalProvider!");
+            }
+
+            // the columns of KeyChanges are the same as the internal ones
+            Cursor cursor = getDb().queryKeyRingChanges(projection, Long.parseLong(uri.getLastPathSegment()));
+            // uri to watch is all /key_rings/
+            cursor.setNotificationUri(getContext().getContentResolver(), KeyRings.CONTENT_URI);
+            return cursor;
+        }
+
         String groupBy = null;
+        String[] queryArgs = null;
 
         switch (match) {
             case EMAIL_STATUS: {
@@ -206,6 +255,56 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                 break;
             }
 
+            case EMAIL_STATUS_BATCH: {
+                boolean callerIsAllowed = mApiPermissionHelper.isAllowedIgnoreErrors();
+                if (!callerIsAllowed) {
+                    throw new AccessControlException("An application must register before use of KeychainExternalProvider!");
+                }
+
+                if (projection == null) {
+                    throw new IllegalArgumentException("Please provide a projection!");
+                }
+                if (selectionArgs == null || selectionArgs.length > EmailStatus.MAX_BATCH_SIZE) {
+                    throw new IllegalArgumentException("Please provide at most "
+                            + EmailStatus.MAX_BATCH_SIZE + " addresses as selectionArgs!");
+                }
+
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(EmailStatus._ID, UserEmails.EMAIL + " AS _id");
+                projectionMap.put(EmailStatus.EMAIL_ADDRESS, UserEmails.EMAIL + " AS " + EmailStatus.EMAIL_ADDRESS);
+                // same as above, but precomputed per key, and over all keys for each address
+                projectionMap.put(EmailStatus.EMAIL_STATUS, "CASE ( MIN (" + UserEmails.VERIFIED + " ) ) "
+                        + " WHEN " + Certs.VERIFIED_SELF + " THEN 1"
+                        + " WHEN " + Certs.VERIFIED_SECRET + " THEN 2"
+                        + " END AS " + EmailStatus.EMAIL_STATUS);
+                qb.setProjectionMap(projectionMap);
+                qb.setTables(Tables.USER_EMAILS);
+                groupBy = UserEmails.EMAIL;
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                // a single lookup in the index of user_emails, this ignores any selection
+                ArrayList<String> emails = new ArrayList<>(selectionArgs.length);
+                StringBuilder placeholders = new StringBuilder();
+                for (String email : selectionArgs) {
+                    if (TextUtils.isEmpty(email)) {
+                        continue;
+                    }
+                    placeholders.append(emails.isEmpty() ? "?" : ",?");
+                    emails.add(email.toLowerCase(Locale.ENGLISH));
+                }
+                if (emails.isEmpty()) {
+                    Log.e(Constants.TAG, "Malformed email status batch query!");
+                    selection = "0";
+                } else {
+                    selection = UserEmails.EMAIL + " IN (" + placeholders + ")";
+                    queryArgs = emails.toArray(new String[emails.size()]);
+                }
+
+                break;
+            }
+
             case API_APPS: {
                 qb.setTables(Tables.API_APPS);
 
@@ -236,7 +335,7 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
 
         SQLiteDatabase db = getDb().getReadableDatabase();
 
-        Cursor cursor = qb.query(db, projection, selection, null, groupBy, null, orderBy);
+        Cursor cursor = qb.query(db, projection, selection, queryArgs, groupBy, null, orderBy);
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -38,9 +38,12 @@ import org.sufficientlysecure.keychain.operations.BackupOperation;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.KeybaseVerificationOperation;
 import org.sufficientlysecure.keychain.operations.InputDataOperation;
+import org.sufficientlysecure.keychain.operations.MetricsRegistry;
 import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
 import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
+import org.sufficientlysecure.keychain.operations.TraceSpan;
+import org.sufficientlysecure.keychain.operations.Tracer;
 import org.sufficientlysecure.keychain.operations.UploadOperation;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
@@ -69,10 +72,8 @@ public class KeychainService extends Service implements Progressable {
 
     public static final String ACTION_CANCEL = "action_cancel";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
-
     ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
+    ThreadLocal<ProgressAggregator> mProgressAggregator = new ThreadLocal<>();
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -80,30 +81,40 @@ public class KeychainService extends Service implements Progressable {
     }
 
     /**
-     * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
+     * This is run on the main thread, the actual operation is scheduled to run on a worker
+     * thread of the OperationScheduler.
+     * <p/>
+     * A cancel intent cancels the operation which reports to its EXTRA_MESSENGER, or all of
+     * them if it has none.
      */
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
+        OperationScheduler scheduler = OperationScheduler.getInstance();
+
         if (intent.getAction() != null && intent.getAction().equals(ACTION_CANCEL)) {
-            mActionCanceled.set(true);
+            Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
+            if (messenger != null) {
+                scheduler.cancel(messenger);
+            } else {
+                scheduler.cancelAll();
+            }
             return START_NOT_STICKY;
         }
 
-        Runnable actionRunnable = new Runnable() {
-            @Override
-            public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
+        Bundle extras = intent.getExtras();
+        final Messenger messenger = extras.getParcelable(EXTRA_MESSENGER);
 
-                Bundle extras = intent.getExtras();
+        // Input
+        final Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
+        final CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
 
+        OperationScheduler.ScheduledOperation operation = new OperationScheduler.ScheduledOperation() {
+            @Override
+            public void run(AtomicBoolean cancelled) {
                 // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.<Messenger>getParcelable(EXTRA_MESSENGER));
-
-                // Input
-                Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
-                CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
+                mMessenger.set(messenger);
+                mProgressAggregator.set(new ProgressAggregator());
 
                 // Operation
                 BaseOperation op;
@@ -111,25 +122,25 @@ public class KeychainService extends Service implements Progressable {
                 // just for brevity
                 KeychainService outerThis = KeychainService.this;
                 if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
                 } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
                     op = new PgpDecryptVerifyOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
                 } else if (inputParcel instanceof RevokeKeyringParcel) {
                     op = new RevokeOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
                 } else if (inputParcel instanceof DeleteKeyringParcel) {
                     op = new DeleteOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
                 } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
                 } else if (inputParcel instanceof BackupKeyringParcel) {
-                    op = new BackupOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new BackupOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
                 } else if (inputParcel instanceof UploadKeyringParcel) {
-                    op = new UploadOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new UploadOperation(outerThis, new ProviderHelper(outerThis), outerThis, cancelled);
                 } else if (inputParcel instanceof ConsolidateInputParcel) {
                     op = new ConsolidateOperation(outerThis, new ProviderHelper(outerThis), outerThis);
                 } else if (inputParcel instanceof KeybaseVerificationParcel) {
@@ -142,19 +153,58 @@ public class KeychainService extends Service implements Progressable {
                     throw new AssertionError("Unrecognized input parcel in KeychainService!");
                 }
 
-                @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
-                OperationResult result = op.execute(inputParcel, cryptoInput);
-                sendMessageToHandler(MessageStatus.OKAY, result);
+                String operationName = op.getClass().getSimpleName();
+                MetricsRegistry.getInstance().increment(operationName);
+
+                try {
+                    // the root span, all spans begun by the operation on this thread are nested in it
+                    TraceSpan trace = Tracer.begin(operationName);
+                    OperationResult result;
+                    try {
+                        @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
+                        OperationResult executed = op.execute(inputParcel, cryptoInput);
+                        result = executed;
+                    } finally {
+                        Tracer.end(trace);
+                    }
+                    if (result != null) {
+                        result.setTrace(trace);
+                    }
+                    if (Constants.DEBUG) {
+                        Log.d(Constants.TAG, "operation trace:\n" + trace);
+                    }
+                    sendMessageToHandler(MessageStatus.OKAY, result);
+                } finally {
+                    // worker threads are reused, don't keep the messenger around
+                    mMessenger.remove();
+                    mProgressAggregator.remove();
+                }
 
             }
         };
 
-        Thread actionThread = new Thread(actionRunnable);
-        actionThread.start();
+        // consolidation rewrites the whole database, it must not run alongside anything else
+        boolean exclusive = inputParcel instanceof ConsolidateInputParcel;
+        scheduler.schedule(messenger, getPriority(inputParcel), exclusive, operation);
 
         return START_NOT_STICKY;
     }
 
+    private static OperationScheduler.Priority getPriority(Parcelable inputParcel) {
+        if (inputParcel instanceof SignEncryptParcel
+                || inputParcel instanceof PgpDecryptVerifyInputParcel
+                || inputParcel instanceof InputDataParcel) {
+            return OperationScheduler.Priority.INTERACTIVE;
+        }
+        if (inputParcel instanceof ImportKeyringParcel
+                || inputParcel instanceof ConsolidateInputParcel
+                || inputParcel instanceof UploadKeyringParcel
+                || inputParcel instanceof BenchmarkInputParcel) {
+            return OperationScheduler.Priority.BACKGROUND;
+        }
+        return OperationScheduler.Priority.NORMAL;
+    }
+
     private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
 
         Message msg = Message.obtain();
@@ -187,16 +237,32 @@ public class KeychainService extends Service implements Progressable {
     }
 
     /**
-     * Set progress of ProgressDialog by sending message to handler on UI thread
+     * Set progress of ProgressDialog by sending message to handler on UI thread. Updates
+     * are coalesced by the ProgressAggregator of the operation, and silently dropped on
+     * threads which don't run an operation of their own.
      */
     @Override
     public void setProgress(String message, int progress, int max) {
-        Log.d(Constants.TAG, "Send message by setProgress with progress=" + progress + ", max="
-                + max);
+        sendProgress(message, 0, progress, max);
+    }
+
+    @Override
+    public void setProgress(int resourceId, int progress, int max) {
+        // the resource is resolved by the receiving handler, and only if it is actually sent
+        sendProgress(null, resourceId, progress, max);
+    }
+
+    private void sendProgress(String message, int messageId, int progress, int max) {
+        ProgressAggregator aggregator = mProgressAggregator.get();
+        if (aggregator == null || !aggregator.update(message, messageId, progress, max)) {
+            return;
+        }
 
         Bundle data = new Bundle();
         if (message != null) {
             data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+        } else if (messageId != 0) {
+            data.putInt(ServiceProgressHandler.DATA_MESSAGE_ID, messageId);
         }
         data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
         data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
@@ -204,11 +270,6 @@ public class KeychainService extends Service implements Progressable {
         sendMessageToHandler(MessageStatus.UPDATE_PROGRESS, null, data);
     }
 
-    @Override
-    public void setProgress(int resourceId, int progress, int max) {
-        setProgress(getString(resourceId), progress, max);
-    }
-
     @Override
     public void setProgress(int progress, int max) {
         setProgress(null, progress, max);
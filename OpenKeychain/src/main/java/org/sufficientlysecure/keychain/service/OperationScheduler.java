@@ -0,0 +1,193 @@
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Runs the operations of KeychainService on a bounded pool of worker threads.
+ * <p/>
+ * Waiting operations are started by priority, and in order of arrival within the same
+ * priority, so a decrypt the user is waiting for doesn't queue up behind a large import.
+ * Every operation gets its own cancellation flag, which can be set through the tag it was
+ * scheduled with. Operations which need the database for themselves, like consolidation,
+ * are marked as exclusive and wait until all other operations are done, and vice versa.
+ */
+public class OperationScheduler {
+
+    public enum Priority {
+        /** Operations the user is actively waiting for, like decrypt and encrypt. */
+        INTERACTIVE,
+        NORMAL,
+        /** Long running operations on many keys, like import and consolidation. */
+        BACKGROUND
+    }
+
+    public interface ScheduledOperation {
+        /**
+         * Runs the operation on a worker thread.
+         *
+         * @param cancelled the cancellation flag of this operation, to be passed on to it
+         */
+        void run(AtomicBoolean cancelled);
+    }
+
+    private static final int MAX_THREADS = 3;
+
+    private static OperationScheduler sInstance;
+
+    public static synchronized OperationScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new OperationScheduler();
+        }
+        return sInstance;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    // fair, so a waiting exclusive operation isn't starved by the ones started after it
+    private final ReentrantReadWriteLock mDatabaseLock = new ReentrantReadWriteLock(true);
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final HashSet<Task> mActiveTasks = new HashSet<>();
+
+    private long mCompletedCount;
+    private long mTotalWaitTime;
+    private long mMaxWaitTime;
+
+    private OperationScheduler() {
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules an operation.
+     *
+     * @param tag identifies the operation for cancel(), may be shared by several of them
+     * @param exclusive if the operation must not run concurrently with any other one
+     */
+    public void schedule(Object tag, Priority priority, boolean exclusive, ScheduledOperation operation) {
+        Task task = new Task(tag, priority, exclusive, operation);
+        synchronized (mActiveTasks) {
+            mActiveTasks.add(task);
+        }
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Cancels all waiting and running operations with the given tag. Waiting operations are
+     * still started, but with their cancellation flag already set, so they return a cancelled
+     * result right away.
+     */
+    public void cancel(Object tag) {
+        synchronized (mActiveTasks) {
+            for (Task task : mActiveTasks) {
+                if (task.mTag != null && task.mTag.equals(tag)) {
+                    task.mCancelled.set(true);
+                }
+            }
+        }
+    }
+
+    /** Cancels all waiting and running operations. */
+    public void cancelAll() {
+        synchronized (mActiveTasks) {
+            for (Task task : mActiveTasks) {
+                task.mCancelled.set(true);
+            }
+        }
+    }
+
+    public Metrics getMetrics() {
+        synchronized (mActiveTasks) {
+            return new Metrics(mExecutor.getQueue().size(), mExecutor.getActiveCount(), mCompletedCount,
+                    mCompletedCount > 0 ? mTotalWaitTime / mCompletedCount : 0, mMaxWaitTime);
+        }
+    }
+
+    private void onTaskFinished(Task task, long waitTime) {
+        synchronized (mActiveTasks) {
+            mActiveTasks.remove(task);
+            mCompletedCount += 1;
+            mTotalWaitTime += waitTime;
+            mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+        }
+    }
+
+    /** A snapshot of the state of the scheduler, all times in milliseconds. */
+    public static class Metrics {
+        public final int mQueued;
+        public final int mRunning;
+        public final long mCompleted;
+        public final long mAverageWaitTime;
+        public final long mMaxWaitTime;
+
+        Metrics(int queued, int running, long completed, long averageWaitTime, long maxWaitTime) {
+            mQueued = queued;
+            mRunning = running;
+            mCompleted = completed;
+            mAverageWaitTime = averageWaitTime;
+            mMaxWaitTime = maxWaitTime;
+        }
+
+        @Override
+        public String toString() {
+            return "queued: " + mQueued + ", running: " + mRunning + ", completed: " + mCompleted
+                    + ", average wait: " + mAverageWaitTime + "ms, max wait: " + mMaxWaitTime + "ms";
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        final Object mTag;
+        final Priority mPriority;
+        final boolean mExclusive;
+        final ScheduledOperation mOperation;
+
+        final AtomicBoolean mCancelled = new AtomicBoolean(false);
+        final long mSequenceNumber = mSequence.getAndIncrement();
+        final long mScheduledTime = SystemClock.elapsedRealtime();
+
+        Task(Object tag, Priority priority, boolean exclusive, ScheduledOperation operation) {
+            mTag = tag;
+            mPriority = priority;
+            mExclusive = exclusive;
+            mOperation = operation;
+        }
+
+        @Override
+        public void run() {
+            Lock lock = mExclusive ? mDatabaseLock.writeLock() : mDatabaseLock.readLock();
+            lock.lock();
+            long waitTime = SystemClock.elapsedRealtime() - mScheduledTime;
+            try {
+                mOperation.run(mCancelled);
+            } finally {
+                lock.unlock();
+                onTaskFinished(this, waitTime);
+                Log.d(Constants.TAG, "operation finished after waiting " + waitTime + "ms, " + getMetrics());
+            }
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority.compareTo(another.mPriority);
+            }
+            return mSequenceNumber < another.mSequenceNumber ? -1
+                    : (mSequenceNumber == another.mSequenceNumber ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.sufficientlysecure.keychain.service;
+
+
+import android.os.SystemClock;
+
+
+/**
+ * Decides which progress updates of an operation are worth sending to the UI.
+ * <p/>
+ * Operations report progress far more often than it can be displayed, and every update
+ * sent from KeychainService costs a Bundle and a Messenger call. An update is only let
+ * through if its message changed, or if the percentage changed and at least
+ * MIN_UPDATE_INTERVAL passed since the last one. Everything in between is dropped, except
+ * for the final update, which is always sent so the UI doesn't get stuck before the end.
+ * Instances are meant to be used by a single operation, and are not thread safe.
+ */
+class ProgressAggregator {
+
+    private static final long MIN_UPDATE_INTERVAL = 100;
+
+    private String mLastMessage;
+    private int mLastMessageId;
+    private int mLastPercent = -1;
+    private long mLastUpdateTime;
+
+    /**
+     * Records a progress update, and returns if it should be sent.
+     *
+     * @param message the message to display, or null if it is given as resource id or unchanged
+     * @param messageId the resource id of the message to display, or 0
+     */
+    boolean update(String message, int messageId, int progress, int max) {
+        boolean messageChanged = false;
+        if (message != null && !message.equals(mLastMessage)) {
+            mLastMessage = message;
+            mLastMessageId = 0;
+            messageChanged = true;
+        } else if (messageId != 0 && messageId != mLastMessageId) {
+            mLastMessage = null;
+            mLastMessageId = messageId;
+            messageChanged = true;
+        }
+
+        int percent = max > 0 ? (int) (100L * progress / max) : 0;
+        boolean finished = max > 0 && progress >= max;
+        long now = SystemClock.elapsedRealtime();
+        if (!messageChanged && !finished
+                && (percent == mLastPercent || now - mLastUpdateTime < MIN_UPDATE_INTERVAL)) {
+            return false;
+        }
+
+        mLastPercent = percent;
+        mLastUpdateTime = now;
+        return true;
+    }
+
+}
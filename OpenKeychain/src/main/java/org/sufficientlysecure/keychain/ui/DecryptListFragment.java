@@ -631,8 +631,11 @@ public class DecryptListFragment
             return null;
         }
 
+        // the metadata pass decrypts into a temporary file if it has to, which is then reused
         PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
-                .setAllowSymmetricDecryption(true);
+                .setAllowSymmetricDecryption(true)
+                .setDecryptMetadataOnly(true)
+                .setDecryptMetadataSpill(true);
         return new InputDataParcel(mCurrentInputUri, decryptInput);
 
     }
@@ -627,6 +627,8 @@ public class EncryptFilesFragment
         if (mUseCompression) {
             data.setCompressionAlgorithm(
                     PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.USE_DEFAULT);
+            // files are often images, videos or archives which don't shrink any further
+            data.setAdaptiveCompression(true);
         } else {
             data.setCompressionAlgorithm(
                     PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
@@ -57,6 +57,7 @@ import com.getbase.floatingactionbutton.FloatingActionsMenu;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.MetricsRegistry;
 import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -307,7 +308,7 @@ public class KeyListFragment extends LoaderFragment
         // sample only has one Loader, so we don't care about the ID.
         Uri uri;
         if (!TextUtils.isEmpty(mQuery)) {
-            uri = KeyRings.buildUnifiedKeyRingsFindByUserIdUri(mQuery);
+            uri = KeyRings.buildUnifiedKeyRingsSearchUri(mQuery);
         } else {
             uri = KeyRings.buildUnifiedKeyRingsUri();
         }
@@ -406,6 +407,7 @@ public class KeyListFragment extends LoaderFragment
         if (Constants.DEBUG) {
             menu.findItem(R.id.menu_key_list_debug_cons).setVisible(true);
             menu.findItem(R.id.menu_key_list_debug_bench).setVisible(true);
+            menu.findItem(R.id.menu_key_list_debug_metrics).setVisible(true);
             menu.findItem(R.id.menu_key_list_debug_read).setVisible(true);
             menu.findItem(R.id.menu_key_list_debug_write).setVisible(true);
             menu.findItem(R.id.menu_key_list_debug_first_time).setVisible(true);
@@ -493,6 +495,11 @@ public class KeyListFragment extends LoaderFragment
                 benchmark();
                 return true;
 
+            case R.id.menu_key_list_debug_metrics:
+                Log.d(Constants.TAG, "metrics:\n" + MetricsRegistry.getInstance().dump());
+                Notify.create(getActivity(), "Metrics dumped to log", Notify.Style.OK).show();
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
         }
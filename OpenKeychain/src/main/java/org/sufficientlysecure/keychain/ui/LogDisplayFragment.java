@@ -39,7 +39,9 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.FoldedLogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
@@ -159,12 +161,19 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
         LogEntryParcel parcel = mAdapter.getItem(position);
-        if ( ! (parcel instanceof SubLogEntryParcel)) {
+        OperationResult subResult;
+        if (parcel instanceof SubLogEntryParcel) {
+            subResult = ((SubLogEntryParcel) parcel).getSubResult();
+        } else if (parcel instanceof FoldedLogEntryParcel) {
+            // folded entries are only unpacked here, once the user asks for them
+            subResult = new ImportKeyResult(OperationResult.RESULT_OK,
+                    ((FoldedLogEntryParcel) parcel).getFoldedLog());
+        } else {
             return;
         }
         Intent intent = new Intent(
                 getActivity(), LogDisplayActivity.class);
-        intent.putExtra(LogDisplayFragment.EXTRA_RESULT, ((SubLogEntryParcel) parcel).getSubResult());
+        intent.putExtra(LogDisplayFragment.EXTRA_RESULT, subResult);
         startActivity(intent);
     }
 
@@ -222,16 +231,7 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
                 LogEntryParcel subEntry = result.getLog().getLast();
                 if (subEntry != null) {
                     ih.mSecond.setVisibility(View.VISIBLE);
-                    // special case: first parameter may be a quantity
-                    if (subEntry.mParameters != null && subEntry.mParameters.length > 0
-                            && subEntry.mParameters[0] instanceof Integer) {
-                        ih.mSecondText.setText(getResources().getQuantityString(subEntry.mType.getMsgId(),
-                                (Integer) subEntry.mParameters[0],
-                                subEntry.mParameters));
-                    } else {
-                        ih.mSecondText.setText(getResources().getString(subEntry.mType.getMsgId(),
-                                subEntry.mParameters));
-                    }
+                    ih.mSecondText.setText(subEntry.getMessage(getResources()));
                     ih.mSecondText.setTextColor(subEntry.mType.mLevel == LogLevel.DEBUG ? Color.GRAY : mTextColor);
                     switch (subEntry.mType.mLevel) {
                         case DEBUG: ih.mSecondImg.setBackgroundColor(Color.GRAY); break;
@@ -246,22 +246,17 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
                     ih.mSecond.setVisibility(View.GONE);
                 }
 
+            } else if (entry instanceof FoldedLogEntryParcel) {
+                ih.mSub.setVisibility(View.VISIBLE);
+                ih.mSecond.setVisibility(View.GONE);
+                convertView.setClickable(false);
             } else {
                 ih.mSub.setVisibility(View.GONE);
                 ih.mSecond.setVisibility(View.GONE);
                 convertView.setClickable(true);
             }
 
-            // special case: first parameter may be a quantity
-            if (entry.mParameters != null && entry.mParameters.length > 0
-                    && entry.mParameters[0] instanceof Integer) {
-                ih.mText.setText(getResources().getQuantityString(entry.mType.getMsgId(),
-                        (Integer) entry.mParameters[0],
-                        entry.mParameters));
-            } else {
-                ih.mText.setText(getResources().getString(entry.mType.getMsgId(),
-                        entry.mParameters));
-            }
+            ih.mText.setText(entry.getMessage(getResources()));
             convertView.setPadding((entry.mIndent) * dipFactor, 0, 0, 0);
             ih.mText.setTextColor(entry.mType.mLevel == LogLevel.DEBUG ? Color.GRAY : mTextColor);
             switch (entry.mType.mLevel) {
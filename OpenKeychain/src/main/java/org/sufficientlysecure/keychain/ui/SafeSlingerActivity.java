@@ -29,6 +29,7 @@ import android.widget.NumberPicker;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
@@ -40,7 +41,6 @@ import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -103,8 +103,7 @@ public class SafeSlingerActivity extends BaseActivity
         // retrieve public key blob and start SafeSlinger
         Uri uri = KeychainContract.KeyRingData.buildPublicKeyRingUri(masterKeyId);
         try {
-            byte[] keyBlob = (byte[]) new ProviderHelper(this).getGenericData(
-                    uri, KeychainContract.KeyRingData.KEY_RING_DATA, ProviderHelper.FIELD_TYPE_BLOB);
+            byte[] keyBlob = new ProviderHelper(this).getKeyRingData(uri);
 
             Intent slingerIntent = new Intent(this, ExchangeActivity.class);
 
@@ -114,6 +113,8 @@ public class SafeSlingerActivity extends BaseActivity
             startActivityForResult(slingerIntent, REQUEST_CODE_SAFE_SLINGER);
         } catch (ProviderHelper.NotFoundException e) {
             Log.e(Constants.TAG, "personal key not found", e);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "personal key could not be read", e);
         }
     }
 
@@ -140,8 +141,7 @@ public class SafeSlingerActivity extends BaseActivity
 
                 // We parcel this iteratively into a file - anything we can
                 // display here, we should be able to import.
-                ParcelableFileCache<ParcelableKeyRing> cache =
-                        new ParcelableFileCache<>(this, "key_import.pcl");
+                KeyRingFileCache cache = new KeyRingFileCache(this, "key_import.pcl");
                 cache.writeCache(it.size(), it.iterator());
 
                 mOperationHelper =
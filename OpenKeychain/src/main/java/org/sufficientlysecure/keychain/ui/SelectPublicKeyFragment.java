@@ -252,7 +252,10 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
+        boolean isSearch = mQuery != null && !TextUtils.isEmpty(mQuery.trim());
+        Uri baseUri = isSearch
+                ? KeyRings.buildUnifiedKeyRingsSearchUri(mQuery)
+                : KeyRings.buildUnifiedKeyRingsUri();
 
         // These are the rows that we will retrieve.
         String[] projection = new String[]{
@@ -265,6 +268,7 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
                 KeyRings.VERIFIED,
                 KeyRings.HAS_DUPLICATE_USER_ID,
                 KeyRings.CREATION,
+                KeyRings.SEARCH_RANK,
         };
 
         String inMasterKeyList = null;
@@ -280,29 +284,17 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
         }
 
         String orderBy = KeyRings.USER_ID + " ASC";
+        if (isSearch) {
+            // best matches first
+            orderBy = KeyRings.SEARCH_RANK + " DESC, " + orderBy;
+        }
         if (inMasterKeyList != null) {
             // sort by selected master keys
             orderBy = inMasterKeyList + " DESC, " + orderBy;
         }
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
-        }
-
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, projection, where, whereArgs, orderBy);
+        return new CursorLoader(getActivity(), baseUri, projection, null, null, orderBy);
     }
 
     @Override
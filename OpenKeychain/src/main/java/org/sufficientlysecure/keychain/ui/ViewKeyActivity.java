@@ -915,7 +915,7 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
                             new AsyncTask<Long, Void, Bitmap>() {
                                 protected Bitmap doInBackground(Long... mMasterKeyId) {
                                     return new ContactHelper(ViewKeyActivity.this)
-                                            .loadPhotoByMasterKeyId(mMasterKeyId[0], true);
+                                            .getCachedPhotoByMasterKeyId(mMasterKeyId[0]);
                                 }
 
                                 protected void onPostExecute(Bitmap photo) {
@@ -0,0 +1,43 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+
+/**
+ * A cache of bitmaps, bounded by their size in bytes and evicting the least recently used.
+ * <p/>
+ * The size is given as a fraction of the memory available to the app, so the cache scales
+ * with the device. Caches are not trimmed automatically, onTrimMemory() has to be called
+ * from KeychainApplication.
+ */
+public class BitmapCache<K> extends LruCache<K, Bitmap> {
+
+    /**
+     * @param memoryFraction the cache may use 1/memoryFraction of the maximum heap size
+     */
+    public BitmapCache(int memoryFraction) {
+        super((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / memoryFraction));
+    }
+
+    @Override
+    protected int sizeOf(K key, Bitmap value) {
+        return value.getByteCount();
+    }
+
+    /**
+     * Frees memory according to a level passed to ComponentCallbacks2.onTrimMemory(). Once
+     * the UI is hidden, everything is thrown away, since it can easily be recreated. While
+     * running low on memory, half of the cache is kept.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxSize() / 2);
+        }
+    }
+
+}
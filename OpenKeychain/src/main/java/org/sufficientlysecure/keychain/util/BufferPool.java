@@ -0,0 +1,87 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** A bounded, thread-safe pool of byte buffers of a fixed size.
+ *
+ * The streaming loops of sign/encrypt and decrypt/verify operations each need
+ * several large buffers. Allocating these anew for every operation causes a lot
+ * of garbage under load, so they are obtained from here instead and recycled
+ * once the operation is done.
+ *
+ * Since these buffers are used for plaintext, they are zeroed before they go
+ * back into the pool. A buffer must not be used anymore after it was recycled.
+ */
+public class BufferPool {
+
+    /** Pool of 64 KiB buffers, used for stream buffers and copy loops. */
+    public static final BufferPool LARGE = new BufferPool(1 << 16, 16);
+    /** Pool of 8 KiB buffers, used for read buffers during decryption. */
+    public static final BufferPool SMALL = new BufferPool(1 << 13, 16);
+
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<byte[]> mPool;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mPool = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /** Returns a zeroed buffer of this pool's size, which should be recycled after use. */
+    public byte[] obtain() {
+        byte[] buffer = mPool.poll();
+        if (buffer != null) {
+            mHits.incrementAndGet();
+            return buffer;
+        }
+        mMisses.incrementAndGet();
+        return new byte[mBufferSize];
+    }
+
+    /** Zeroes a buffer and returns it to the pool. Null buffers are ignored. */
+    public void recycle(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize) {
+            return;
+        }
+        Arrays.fill(buffer, (byte) 0);
+        // if the pool is full, the buffer is simply left for garbage collection
+        mPool.offer(buffer);
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Returns the fraction of obtain() calls which were served from the pool. */
+    public double getHitRate() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int getPooledCount() {
+        return mPool.size();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool(" + mBufferSize + " bytes, " + getPooledCount() + " pooled, hits: "
+                + getHitCount() + ", misses: " + getMissCount() + ")";
+    }
+
+}
@@ -34,14 +34,19 @@ import android.provider.ContactsContract;
 import android.support.v4.content.ContextCompat;
 import android.util.Patterns;
 
+import org.bouncycastle.util.io.Streams;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingChanges;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -52,7 +57,8 @@ import java.util.regex.Matcher;
 
 public class ContactHelper {
 
-    private static final Map<Long, Bitmap> photoCache = new HashMap<>();
+    /** High resolution contact photos by master key id, shared by all instances */
+    private static final BitmapCache<Long> photoCache = new BitmapCache<>(16);
 
     private Context mContext;
     private ContentResolver mContentResolver;
@@ -264,7 +270,7 @@ public class ContactHelper {
             if (photoInputStream == null) {
                 return null;
             }
-            return BitmapFactory.decodeStream(photoInputStream);
+            return decodePhoto(photoInputStream, highRes);
         } catch (Throwable ignored) {
             return null;
         }
@@ -390,14 +396,26 @@ public class ContactHelper {
         return contactName;
     }
 
-    private Bitmap getCachedPhotoByMasterKeyId(long masterKeyId) {
+    /**
+     * Same as loadPhotoByMasterKeyId(masterKeyId, true), but cached
+     */
+    public Bitmap getCachedPhotoByMasterKeyId(long masterKeyId) {
         if (masterKeyId == -1) {
             return null;
         }
-        if (!photoCache.containsKey(masterKeyId)) {
-            photoCache.put(masterKeyId, loadPhotoByMasterKeyId(masterKeyId, false));
+        Bitmap photo = photoCache.get(masterKeyId);
+        if (photo == null) {
+            photo = loadPhotoByMasterKeyId(masterKeyId, true);
+            // keys without a photo are not cached, LruCache doesn't take null values
+            if (photo != null) {
+                photoCache.put(masterKeyId, photo);
+            }
         }
-        return photoCache.get(masterKeyId);
+        return photo;
+    }
+
+    public static void trimPhotoCache(int level) {
+        photoCache.onTrimMemory(level);
     }
 
     public Bitmap loadPhotoByMasterKeyId(long masterKeyId, boolean highRes) {
@@ -440,7 +458,46 @@ public class ContactHelper {
         if (photoInputStream == null) {
             return null;
         }
-        return BitmapFactory.decodeStream(photoInputStream);
+        try {
+            return decodePhoto(photoInputStream, highRes);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error reading contact photo", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a contact photo. High resolution photos can be a lot larger than the screen,
+     * those are downsampled while decoding to no less than the width of the screen.
+     *
+     * @return the decoded photo, or null if the data could not be decoded
+     */
+    Bitmap decodePhoto(InputStream photoInputStream, boolean highRes) throws IOException {
+        byte[] data;
+        try {
+            data = Streams.readAll(photoInputStream);
+        } finally {
+            photoInputStream.close();
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (highRes) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            int maxSize = mContext.getResources().getDisplayMetrics().widthPixels;
+            int smallerSide = Math.min(options.outWidth, options.outHeight);
+            // the decoder only samples down by powers of two
+            options.inSampleSize = 1;
+            while (smallerSide / (options.inSampleSize * 2) >= maxSize) {
+                options.inSampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
     }
 
     public static final String[] KEYS_TO_CONTACT_PROJECTION = new String[]{
@@ -460,17 +517,82 @@ public class ContactHelper {
     public static final int INDEX_HAS_SECRET = 5;
     public static final int INDEX_HAS_ANY_SECRET = 6;
 
+    /**
+     * Operations per applyBatch. The contacts provider refuses more than 500 operations per
+     * yield point, and every key starts a new one, so this just bounds the size of a batch.
+     */
+    private static final int BATCH_SIZE = 400;
+    /** Master key ids per delete operation, to stay below the limit of selection arguments. */
+    private static final int DELETE_CHUNK_SIZE = 400;
+    /** With more changed keys than this, a full sync is cheaper than selecting each of them. */
+    private static final int MAX_INCREMENTAL_KEYS = 500;
+    /** Expiry doesn't show up as a change, so a full sync is still done once in a while. */
+    private static final long FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000;
+
     /**
      * Write/Update the current OpenKeychain keys to the contact db
+     * <p/>
+     * Only keys which changed since the last sync are written, as told by the KeyRingChanges
+     * feed. Everything is synced again if the feed was reset, if there are too many changes,
+     * and after FULL_SYNC_INTERVAL.
      */
     public void writeKeysToContacts() {
+        Preferences preferences = Preferences.getPreferences(mContext);
+        long lastSequence = preferences.getContactSyncSequence();
+        long lastFullSync = preferences.getContactSyncFullTime();
+
         if (Constants.DEBUG_SYNC_REMOVE_CONTACTS) {
             deleteAllContacts();
+            lastSequence = -1;
+        }
+
+        // read the changes first, so anything changing during the sync is picked up next time
+        long sequence = lastSequence;
+        Set<Long> changedKeys = null;
+        Cursor changes = mContentResolver.query(
+                KeyRingChanges.buildChangesSinceUri(Math.max(lastSequence, 0)),
+                new String[]{
+                        KeyRingChanges.SEQUENCE, KeyRingChanges.MASTER_KEY_ID, KeyRingChanges.CHANGE_TYPE
+                }, null, null, null);
+        if (changes != null) try {
+            changedKeys = new HashSet<>();
+            while (changes.moveToNext()) {
+                sequence = changes.getLong(0);
+                if (changes.getInt(2) == KeyRingChanges.CHANGE_RESET) {
+                    lastSequence = -1;
+                } else {
+                    changedKeys.add(changes.getLong(1));
+                }
+            }
+        } finally {
+            changes.close();
         }
 
-        writeKeysToMainProfileContact();
+        long now = System.currentTimeMillis();
+        boolean fullSync = lastSequence < 0 || changedKeys == null
+                || changedKeys.size() > MAX_INCREMENTAL_KEYS
+                || now - lastFullSync > FULL_SYNC_INTERVAL || now < lastFullSync;
+        if (fullSync) {
+            Log.d(Constants.TAG, "Full contact sync");
+        } else {
+            Log.d(Constants.TAG, "Incremental contact sync of " + changedKeys.size() + " keys");
+        }
 
-        writeKeysToNormalContacts();
+        // null syncs all keys
+        boolean success = writeKeysToMainProfileContact(fullSync ? null : changedKeys);
+        success &= writeKeysToNormalContacts(fullSync ? null : changedKeys);
+
+        // keys which failed are written again by the next full sync. Starting over with a full
+        // sync right away would only fail on the same keys again, and never get back to syncing
+        // incrementally
+        if (!success) {
+            Log.w(Constants.TAG, "Writing some keys to contacts failed");
+        }
+        if (changes != null) {
+            preferences.setContactSyncState(sequence, fullSync ? now : lastFullSync);
+        } else {
+            preferences.setContactSyncState(-1, lastFullSync);
+        }
     }
 
     private boolean isContactsPermissionGranted() {
@@ -487,17 +609,31 @@ public class ContactHelper {
         return false;
     }
 
-    private void writeKeysToNormalContacts() {
-        // delete raw contacts flagged for deletion by user so they can be reinserted
+    /**
+     * @param changedKeys master key ids to sync, or null to sync all keys
+     * @return false if writing to the contact db failed
+     */
+    private boolean writeKeysToNormalContacts(Set<Long> changedKeys) {
+        Uri rawContactsUri = ContactsContract.RawContacts.CONTENT_URI;
+
+        // raw contacts flagged for deletion by user are deleted, so they can be reinserted
+        Set<Long> keys = null;
+        if (changedKeys != null) {
+            keys = new HashSet<>(changedKeys);
+            keys.addAll(getFlaggedMasterKeyIds(rawContactsUri));
+        }
         deleteFlaggedNormalRawContacts();
 
-        Set<Long> deletedKeys = getRawContactMasterKeyIds();
+        Map<Long, Long> rawContactIds = getRawContactIds(rawContactsUri, keys);
+        Set<Long> deletedKeys = new HashSet<>(rawContactIds.keySet());
+
+        ContactBatch batch = new ContactBatch();
 
         // Load all public Keys from OK
         // TODO: figure out why using selectionArgs does not work in this case
         Cursor cursor = mContentResolver.query(KeychainContract.KeyRings.buildUnifiedKeyRingsUri(),
                 KEYS_TO_CONTACT_PROJECTION,
-                KeychainContract.KeyRings.HAS_ANY_SECRET + "=0",
+                KeychainContract.KeyRings.HAS_ANY_SECRET + "=0" + buildMasterKeyIdSelection(keys),
                 null, null);
 
         if (cursor != null) {
@@ -510,68 +646,82 @@ public class ContactHelper {
 
                 Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
 
-                deletedKeys.remove(masterKeyId);
-
-                ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-
                 // Do not store expired or revoked or unverified keys in contact db - and
                 // remove them if they already exist. Secret keys do not reach this point
                 if (isExpired || isRevoked || !isVerified) {
                     Log.d(Constants.TAG, "Expired or revoked or unverified: Deleting masterKeyId "
                             + masterKeyId);
-                    if (masterKeyId != -1) {
-                        deleteRawContactByMasterKeyId(masterKeyId);
-                    }
-                } else if (userIdSplit.name != null) {
+                    continue;
+                }
+
+                deletedKeys.remove(masterKeyId);
 
+                if (userIdSplit.name != null) {
                     // get raw contact to this master key id
-                    long rawContactId = findRawContactId(masterKeyId);
+                    Long existingRawContactId = rawContactIds.get(masterKeyId);
+                    final long rawContactId = existingRawContactId != null ? existingRawContactId : -1;
+                    final long keyId = masterKeyId;
+                    final String name = userIdSplit.name;
+                    final List<String> emails = getContactEmails(masterKeyId);
                     Log.d(Constants.TAG, "rawContactId: " + rawContactId);
-
-                    // Create a new rawcontact with corresponding key if it does not exist yet
                     if (rawContactId == -1) {
                         Log.d(Constants.TAG, "Insert new raw contact with masterKeyId " + masterKeyId);
-
-                        insertContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, userIdSplit.name);
                     }
 
-                    // We always update the display name (which is derived from primary user id)
-                    // and email addresses from user id
-                    writeContactDisplayName(ops, rawContactId, userIdSplit.name);
-                    writeContactEmail(ops, rawContactId, masterKeyId);
-                    try {
-                        mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
-                    } catch (Exception e) {
-                        Log.w(Constants.TAG, e);
-                    }
+                    batch.add(new KeyOperations() {
+                        @Override
+                        public void addTo(ArrayList<ContentProviderOperation.Builder> ops, int backReference) {
+                            // Create a new rawcontact with corresponding key if it does not exist yet
+                            if (rawContactId == -1) {
+                                insertContact(ops, keyId);
+                                writeContactKey(ops, rawContactId, backReference, keyId, name);
+                            }
+
+                            // We always update the display name (which is derived from primary user id)
+                            // and email addresses from user id
+                            writeContactDisplayName(ops, rawContactId, backReference, name);
+                            writeContactEmail(ops, rawContactId, backReference, emails);
+                        }
+                    });
                 }
             }
             cursor.close();
         }
 
-        // Delete master key ids that are no longer present in OK
-        for (Long masterKeyId : deletedKeys) {
-            Log.d(Constants.TAG, "Delete raw contact with masterKeyId " + masterKeyId);
-            deleteRawContactByMasterKeyId(masterKeyId);
-        }
+        // Delete master key ids that are no longer present in OK, or can't be used anymore
+        deleteRawContactsByMasterKeyIds(batch, rawContactsUri, deletedKeys);
+
+        return batch.flush();
     }
 
     /**
      * Links all keys with secrets to the main ("me") contact
      * http://developer.android.com/reference/android/provider/ContactsContract.Profile.html
+     *
+     * @param changedKeys master key ids to sync, or null to sync all keys
+     * @return false if writing to the contact db failed
      */
-    private void writeKeysToMainProfileContact() {
+    private boolean writeKeysToMainProfileContact(Set<Long> changedKeys) {
+        Uri rawContactsUri = ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI;
+
         // deletes contacts hidden by the user so they can be reinserted if necessary
+        Set<Long> keys = null;
+        if (changedKeys != null) {
+            keys = new HashSet<>(changedKeys);
+            keys.addAll(getFlaggedMasterKeyIds(rawContactsUri));
+        }
         deleteFlaggedMainProfileRawContacts();
 
-        Set<Long> keysToDelete = getMainProfileMasterKeyIds();
+        Set<Long> existingKeys = getRawContactIds(rawContactsUri, keys).keySet();
+        Set<Long> keysToDelete = new HashSet<>(existingKeys);
+
+        ContactBatch batch = new ContactBatch();
 
         // get all keys which have associated secret keys
         // TODO: figure out why using selectionArgs does not work in this case
         Cursor cursor = mContentResolver.query(KeychainContract.KeyRings.buildUnifiedKeyRingsUri(),
                 KEYS_TO_CONTACT_PROJECTION,
-                KeychainContract.KeyRings.HAS_ANY_SECRET + "!=0",
+                KeychainContract.KeyRings.HAS_ANY_SECRET + "!=0" + buildMasterKeyIdSelection(keys),
                 null, null);
         if (cursor != null) try {
             while (cursor.moveToNext()) {
@@ -583,21 +733,22 @@ public class ContactHelper {
                 if (!isExpired && !isRevoked && userIdSplit.name != null) {
                     // if expired or revoked will not be removed from keysToDelete or inserted
                     // into main profile ("me" contact)
-                    boolean existsInMainProfile = keysToDelete.remove(masterKeyId);
+                    keysToDelete.remove(masterKeyId);
+                    boolean existsInMainProfile = existingKeys.contains(masterKeyId);
                     if (!existsInMainProfile) {
-                        long rawContactId = -1;//new raw contact
+                        final long keyId = masterKeyId;
+                        final String name = userIdSplit.name;
 
                         Log.d(Constants.TAG, "masterKeyId with secret " + masterKeyId);
 
-                        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-                        insertMainProfileRawContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, userIdSplit.name);
-
-                        try {
-                            mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
-                        } catch (Exception e) {
-                            Log.w(Constants.TAG, e);
-                        }
+                        batch.add(new KeyOperations() {
+                            @Override
+                            public void addTo(ArrayList<ContentProviderOperation.Builder> ops, int backReference) {
+                                long rawContactId = -1;//new raw contact
+                                insertMainProfileRawContact(ops, keyId);
+                                writeContactKey(ops, rawContactId, backReference, keyId, name);
+                            }
+                        });
                     }
                 }
             }
@@ -605,43 +756,21 @@ public class ContactHelper {
             cursor.close();
         }
 
-        for (long masterKeyId : keysToDelete) {
-            deleteMainProfileRawContactByMasterKeyId(masterKeyId);
-            Log.d(Constants.TAG, "Delete main profile raw contact with masterKeyId " + masterKeyId);
-        }
+        deleteRawContactsByMasterKeyIds(batch, rawContactsUri, keysToDelete);
+
+        return batch.flush();
     }
 
     /**
      * Inserts a raw contact into the table defined by ContactsContract.Profile
      * http://developer.android.com/reference/android/provider/ContactsContract.Profile.html
      */
-    private void insertMainProfileRawContact(ArrayList<ContentProviderOperation> ops,
+    private void insertMainProfileRawContact(ArrayList<ContentProviderOperation.Builder> ops,
                                              long masterKeyId) {
         ops.add(ContentProviderOperation.newInsert(ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, Constants.ACCOUNT_NAME)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE)
-                .withValue(ContactsContract.RawContacts.SOURCE_ID, Long.toString(masterKeyId))
-                .build());
-    }
-
-    /**
-     * deletes a raw contact from the main profile table ("me" contact)
-     * http://developer.android.com/reference/android/provider/ContactsContract.Profile.html
-     *
-     * @return number of rows deleted
-     */
-    private int deleteMainProfileRawContactByMasterKeyId(long masterKeyId) {
-        // CALLER_IS_SYNCADAPTER allows us to actually wipe the RawContact from the device, otherwise
-        // would be just flagged for deletion
-        Uri deleteUri = ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI.buildUpon().
-                appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
-
-        return mContentResolver.delete(deleteUri,
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " +
-                        ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                });
+                .withValue(ContactsContract.RawContacts.SOURCE_ID, Long.toString(masterKeyId)));
     }
 
     /**
@@ -678,6 +807,8 @@ public class ContactHelper {
                 appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
 
         Log.d(Constants.TAG, "Deleting all raw contacts associated to OK...");
+        // everything has to be written again on the next sync
+        Preferences.getPreferences(mContext).setContactSyncState(-1, 0);
         int delete = mContentResolver.delete(deleteUri,
                 ContactsContract.RawContacts.ACCOUNT_TYPE + "=?",
                 new String[]{
@@ -696,26 +827,6 @@ public class ContactHelper {
         return delete;
     }
 
-    /**
-     * Deletes raw contacts from ContactsContract.RawContacts based on masterKeyId. Does not
-     * delete contacts from the "me" contact defined in ContactsContract.Profile
-     *
-     * @return number of rows deleted
-     */
-    private int deleteRawContactByMasterKeyId(long masterKeyId) {
-        // CALLER_IS_SYNCADAPTER allows us to actually wipe the RawContact from the device, otherwise
-        // would be just flagged for deletion
-        Uri deleteUri = ContactsContract.RawContacts.CONTENT_URI.buildUpon().
-                appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
-
-        return mContentResolver.delete(deleteUri,
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " +
-                        ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                });
-    }
-
     private int deleteFlaggedNormalRawContacts() {
         // CALLER_IS_SYNCADAPTER allows us to actually wipe the RawContact from the device, otherwise
         // would be just flagged for deletion
@@ -732,39 +843,53 @@ public class ContactHelper {
     }
 
     /**
-     * @return a set of all key master key ids currently present in the contact db
+     * @param masterKeyIds master key ids to look for, or null for all
+     * @return raw contact ids of the given master key ids, as far as they are in the contact db
      */
-    private Set<Long> getRawContactMasterKeyIds() {
-        HashSet<Long> result = new HashSet<>();
-        Cursor masterKeyIds = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
+    private Map<Long, Long> getRawContactIds(Uri rawContactsUri, Set<Long> masterKeyIds) {
+        HashMap<Long, Long> result = new HashMap<>();
+        String selection = ContactsContract.RawContacts.ACCOUNT_TYPE + "=?";
+        if (masterKeyIds != null) {
+            StringBuilder sourceIds = new StringBuilder();
+            for (long masterKeyId : masterKeyIds) {
+                if (sourceIds.length() > 0) {
+                    sourceIds.append(",");
+                }
+                // source ids are strings, compare them as such
+                sourceIds.append("'").append(masterKeyId).append("'");
+            }
+            selection += " AND " + ContactsContract.RawContacts.SOURCE_ID + " IN (" + sourceIds + ")";
+        }
+        Cursor rawContacts = mContentResolver.query(rawContactsUri,
                 new String[]{
-                        ContactsContract.RawContacts.SOURCE_ID
+                        ContactsContract.RawContacts.SOURCE_ID, ContactsContract.RawContacts._ID
                 },
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=?",
+                selection,
                 new String[]{
                         Constants.ACCOUNT_TYPE
                 }, null);
-        if (masterKeyIds != null) {
-            while (masterKeyIds.moveToNext()) {
-                result.add(masterKeyIds.getLong(0));
+        if (rawContacts != null) {
+            while (rawContacts.moveToNext()) {
+                result.put(rawContacts.getLong(0), rawContacts.getLong(1));
             }
-            masterKeyIds.close();
+            rawContacts.close();
         }
         return result;
     }
 
     /**
-     * @return a set of all key master key ids currently present in the contact db
+     * @return master key ids of all raw contacts flagged for deletion by the user
      */
-    private Set<Long> getMainProfileMasterKeyIds() {
+    private Set<Long> getFlaggedMasterKeyIds(Uri rawContactsUri) {
         HashSet<Long> result = new HashSet<>();
-        Cursor masterKeyIds = mContentResolver.query(ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI,
+        Cursor masterKeyIds = mContentResolver.query(rawContactsUri,
                 new String[]{
                         ContactsContract.RawContacts.SOURCE_ID
                 },
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=?",
+                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " +
+                        ContactsContract.RawContacts.DELETED + "=?",
                 new String[]{
-                        Constants.ACCOUNT_TYPE
+                        Constants.ACCOUNT_TYPE, "1"
                 }, null);
         if (masterKeyIds != null) {
             while (masterKeyIds.moveToNext()) {
@@ -776,38 +901,166 @@ public class ContactHelper {
     }
 
     /**
-     * This will search the contact db for a raw contact with a given master key id
-     *
-     * @return raw contact id or -1 if not found
+     * @return a selection restricting a unified key ring query to the given master key ids,
+     * or an empty string if masterKeyIds is null
      */
-    private long findRawContactId(long masterKeyId) {
-        long rawContactId = -1;
-        Cursor raw = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
-                new String[]{
-                        ContactsContract.RawContacts._ID
-                },
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " + ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                }, null);
-        if (raw != null) {
-            if (raw.moveToNext()) {
-                rawContactId = raw.getLong(0);
+    private static String buildMasterKeyIdSelection(Set<Long> masterKeyIds) {
+        if (masterKeyIds == null) {
+            return "";
+        }
+        StringBuilder selection = new StringBuilder(" AND " + Tables.KEYS + "."
+                + KeychainContract.KeyRings.MASTER_KEY_ID + " IN (");
+        boolean first = true;
+        for (long masterKeyId : masterKeyIds) {
+            if (!first) {
+                selection.append(",");
             }
-            raw.close();
+            selection.append(masterKeyId);
+            first = false;
+        }
+        return selection.append(")").toString();
+    }
+
+    /**
+     * Adds operations which delete the raw contacts of the given master key ids
+     */
+    private void deleteRawContactsByMasterKeyIds(ContactBatch batch,
+                                                 Uri rawContactsUri, Set<Long> masterKeyIds) {
+        // CALLER_IS_SYNCADAPTER allows us to actually wipe the RawContact from the device, otherwise
+        // would be just flagged for deletion
+        final Uri deleteUri = rawContactsUri.buildUpon().
+                appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
+        ArrayList<String> selectionArgs = new ArrayList<>();
+        Iterator<Long> it = masterKeyIds.iterator();
+        while (it.hasNext()) {
+            long masterKeyId = it.next();
+            Log.d(Constants.TAG, "Delete raw contact with masterKeyId " + masterKeyId);
+            selectionArgs.add(Long.toString(masterKeyId));
+            if (selectionArgs.size() < DELETE_CHUNK_SIZE && it.hasNext()) {
+                continue;
+            }
+
+            StringBuilder placeholders = new StringBuilder("?");
+            for (int i = 1; i < selectionArgs.size(); i++) {
+                placeholders.append(",?");
+            }
+            selectionArgs.add(0, Constants.ACCOUNT_TYPE);
+            final String selection = ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " +
+                    ContactsContract.RawContacts.SOURCE_ID + " IN (" + placeholders + ")";
+            final String[] args = selectionArgs.toArray(new String[selectionArgs.size()]);
+            batch.add(new KeyOperations() {
+                @Override
+                public void addTo(ArrayList<ContentProviderOperation.Builder> ops, int backReference) {
+                    ops.add(ContentProviderOperation.newDelete(deleteUri).withSelection(selection, args));
+                }
+            });
+            selectionArgs.clear();
+        }
+    }
+
+    /**
+     * Operations on the contact db which belong to one key, or one chunk of deleted keys
+     */
+    private interface KeyOperations {
+        /**
+         * @param backReference index in the batch of the first operation added here
+         */
+        void addTo(ArrayList<ContentProviderOperation.Builder> ops, int backReference);
+    }
+
+    /**
+     * Operations of several keys, applied together on the contact db
+     * <p/>
+     * The operations of a key are never split between batches, since they refer to the raw
+     * contact inserted by the first of them. Each key starts a new yield point, and a batch is
+     * applied before adding a key would grow it beyond BATCH_SIZE. If a batch fails, its keys
+     * are applied again one by one, so a bad key only fails itself.
+     */
+    private class ContactBatch {
+        private final ArrayList<KeyOperations> mKeys = new ArrayList<>();
+        private int mSize;
+        private boolean mSuccess = true;
+
+        void add(KeyOperations key) {
+            ArrayList<ContentProviderOperation.Builder> ops = new ArrayList<>();
+            key.addTo(ops, 0);
+            if (mSize + ops.size() > BATCH_SIZE) {
+                flush();
+            }
+            mKeys.add(key);
+            mSize += ops.size();
+        }
+
+        /**
+         * Applies all keys added so far
+         *
+         * @return false if the operations of any key added to this batch failed
+         */
+        boolean flush() {
+            if (mKeys.isEmpty()) {
+                return mSuccess;
+            }
+            boolean applied = applyBatch(buildOperations(mKeys));
+            if (!applied && mKeys.size() > 1) {
+                Log.w(Constants.TAG, "Contact batch failed, applying its keys one by one");
+                for (KeyOperations key : mKeys) {
+                    mSuccess &= applyBatch(buildOperations(Collections.singletonList(key)));
+                }
+            } else {
+                mSuccess &= applied;
+            }
+            mKeys.clear();
+            mSize = 0;
+            return mSuccess;
+        }
+
+        private ArrayList<ContentProviderOperation> buildOperations(List<KeyOperations> keys) {
+            ArrayList<ContentProviderOperation> result = new ArrayList<>();
+            ArrayList<ContentProviderOperation.Builder> ops = new ArrayList<>();
+            for (KeyOperations key : keys) {
+                ops.clear();
+                key.addTo(ops, result.size());
+                if (ops.isEmpty()) {
+                    continue;
+                }
+                ops.get(0).withYieldAllowed(true);
+                for (ContentProviderOperation.Builder op : ops) {
+                    result.add(op.build());
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Applies and clears a batch of operations on the contact db
+     *
+     * @return false if the batch failed
+     */
+    private boolean applyBatch(ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) {
+            return true;
+        }
+        try {
+            mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+            return true;
+        } catch (Exception e) {
+            Log.w(Constants.TAG, e);
+            return false;
+        } finally {
+            ops.clear();
         }
-        return rawContactId;
     }
 
     /**
      * Creates a empty raw contact with a given masterKeyId
      */
-    private void insertContact(ArrayList<ContentProviderOperation> ops, long masterKeyId) {
+    private void insertContact(ArrayList<ContentProviderOperation.Builder> ops, long masterKeyId) {
         ops.add(ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, Constants.ACCOUNT_NAME)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE)
-                .withValue(ContactsContract.RawContacts.SOURCE_ID, Long.toString(masterKeyId))
-                .build());
+                .withValue(ContactsContract.RawContacts.SOURCE_ID, Long.toString(masterKeyId)));
     }
 
     /**
@@ -815,23 +1068,20 @@ public class ContactHelper {
      * <p/>
      * This creates the link to OK in contact details
      */
-    private void writeContactKey(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                 long masterKeyId, String keyName) {
-        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI), rawContactId)
+    private void writeContactKey(ArrayList<ContentProviderOperation.Builder> ops, long rawContactId,
+                                 int backReference, long masterKeyId, String keyName) {
+        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
+                rawContactId, backReference)
                 .withValue(ContactsContract.Data.MIMETYPE, Constants.CUSTOM_CONTACT_DATA_MIME_TYPE)
                 .withValue(ContactsContract.Data.DATA1, mContext.getString(R.string.contact_show_key, keyName))
-                .withValue(ContactsContract.Data.DATA2, masterKeyId)
-                .build());
+                .withValue(ContactsContract.Data.DATA2, masterKeyId));
     }
 
     /**
-     * Write all known email addresses of a key (derived from user ids) to a given raw contact
+     * @return all known email addresses of a key (derived from user ids)
      */
-    private void writeContactEmail(ArrayList<ContentProviderOperation> ops,
-                                   long rawContactId, long masterKeyId) {
-        ops.add(selectByRawContactAndItemType(
-                ContentProviderOperation.newDelete(ContactsContract.Data.CONTENT_URI),
-                rawContactId, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE).build());
+    private List<String> getContactEmails(long masterKeyId) {
+        ArrayList<String> emails = new ArrayList<>();
         Cursor ids = mContentResolver.query(UserPackets.buildUserIdsUri(masterKeyId),
                 new String[]{
                         UserPackets.USER_ID
@@ -842,40 +1092,55 @@ public class ContactHelper {
             while (ids.moveToNext()) {
                 KeyRing.UserId userId = KeyRing.splitUserId(ids.getString(0));
                 if (userId.email != null) {
-                    ops.add(referenceRawContact(
-                            ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
-                            rawContactId)
-                            .withValue(ContactsContract.Data.MIMETYPE,
-                                    ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
-                            .withValue(ContactsContract.CommonDataKinds.Email.DATA, userId.email)
-                            .build());
+                    emails.add(userId.email);
                 }
             }
             ids.close();
         }
+        return emails;
     }
 
-    private void writeContactDisplayName(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                         String displayName) {
+    /**
+     * Write the email addresses of a key to a given raw contact, replacing the old ones
+     */
+    private void writeContactEmail(ArrayList<ContentProviderOperation.Builder> ops,
+                                   long rawContactId, int backReference, List<String> emails) {
+        ops.add(selectByRawContactAndItemType(
+                ContentProviderOperation.newDelete(ContactsContract.Data.CONTENT_URI),
+                rawContactId, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE));
+        for (String email : emails) {
+            ops.add(referenceRawContact(
+                    ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
+                    rawContactId, backReference)
+                    .withValue(ContactsContract.Data.MIMETYPE,
+                            ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
+                    .withValue(ContactsContract.CommonDataKinds.Email.DATA, email));
+        }
+    }
+
+    private void writeContactDisplayName(ArrayList<ContentProviderOperation.Builder> ops, long rawContactId,
+                                         int backReference, String displayName) {
         if (displayName != null) {
-            ops.add(insertOrUpdateForRawContact(ContactsContract.Data.CONTENT_URI, rawContactId,
+            ops.add(insertOrUpdateForRawContact(ContactsContract.Data.CONTENT_URI, rawContactId, backReference,
                     ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
-                    .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, displayName)
-                    .build());
+                    .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, displayName));
         }
     }
 
+    /**
+     * @param backReference index of the operation inserting the raw contact, if rawContactId is -1
+     */
     private ContentProviderOperation.Builder referenceRawContact(ContentProviderOperation.Builder builder,
-                                                                 long rawContactId) {
+                                                                 long rawContactId, int backReference) {
         return rawContactId == -1 ?
-                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0) :
+                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, backReference) :
                 builder.withValue(ContactsContract.Data.RAW_CONTACT_ID, rawContactId);
     }
 
     private ContentProviderOperation.Builder insertOrUpdateForRawContact(Uri uri, long rawContactId,
-                                                                         String itemType) {
+                                                                         int backReference, String itemType) {
         if (rawContactId == -1) {
-            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId).withValue(
+            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId, backReference).withValue(
                     ContactsContract.Data.MIMETYPE, itemType);
         } else {
             return selectByRawContactAndItemType(ContentProviderOperation.newUpdate(uri), rawContactId, itemType);
@@ -39,6 +39,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 
 /**
@@ -128,12 +129,11 @@ public class NfcHelper {
                                 try {
                                     Uri blobUri =
                                             KeychainContract.KeyRingData.buildPublicKeyRingUri(dataUri);
-                                    mNfcKeyringBytes = (byte[]) mProviderHelper.getGenericData(
-                                            blobUri,
-                                            KeychainContract.KeyRingData.KEY_RING_DATA,
-                                            ProviderHelper.FIELD_TYPE_BLOB);
+                                    mNfcKeyringBytes = mProviderHelper.getKeyRingData(blobUri);
                                 } catch (ProviderHelper.NotFoundException e) {
                                     Log.e(Constants.TAG, "key not found!", e);
+                                } catch (IOException e) {
+                                    Log.e(Constants.TAG, "key could not be read!", e);
                                 }
 
                                 // no AsyncTask return (Void)
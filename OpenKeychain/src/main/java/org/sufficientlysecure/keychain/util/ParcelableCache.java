@@ -18,26 +18,58 @@
 package org.sufficientlysecure.keychain.util;
 
 import android.os.Parcel;
+import android.os.SystemClock;
 
+import org.sufficientlysecure.keychain.Constants;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * If Parcelables are above 1 MB, Android OS fails to send them via the Binder IPC:
  * JavaBinder  E  !!! FAILED BINDER TRANSACTION !!!
  * To overcome this issue this class allows to cache Parcelables, mapped by unique UUIDs,
  * which are written to the parcel instead of the whole Parcelable.
+ * <p/>
+ * Entries are normally removed when the parcel is read back. Parcels which are never read,
+ * e.g. because the receiving activity was killed, would stay in memory forever, so the cache
+ * is bounded in size and entries expire after a maximum age, oldest first. Subclasses can
+ * override onEvicted() to clean up evicted entries.
  */
 public class ParcelableCache<E> {
 
+    public static final int DEFAULT_MAX_SIZE = 64;
+    public static final long DEFAULT_MAX_AGE = 30 * 60 * 1000;
+
     private static final UUID NULL_UUID = new UUID(0, 0);
 
+    private final int mMaxSize;
+    private final long mMaxAge;
+
     /**
-     * A HashMap of UUID:Object
+     * A map of UUID:Object, in order of insertion.
      * This is used such that when we become parceled, we are
      * well below the 1 MB boundary that is specified.
      */
-    private ConcurrentHashMap<UUID, E> objectCache = new ConcurrentHashMap<>();
+    private final LinkedHashMap<UUID, CacheEntry<E>> objectCache = new LinkedHashMap<>();
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    public ParcelableCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param maxAge maximum age of an entry in milliseconds, after which it is evicted
+     */
+    public ParcelableCache(int maxSize, long maxAge) {
+        mMaxSize = maxSize;
+        mMaxAge = maxAge;
+    }
 
     /**
      * Dehydrate a Parcelable (such that it is available after deparcelization)
@@ -51,7 +83,7 @@ public class ParcelableCache<E> {
             return NULL_UUID;
         } else {
             UUID uuid = UUID.randomUUID();
-            objectCache.put(uuid, parcelable);
+            put(uuid, parcelable);
             return uuid;
         }
     }
@@ -69,9 +101,7 @@ public class ParcelableCache<E> {
         if (NULL_UUID.compareTo(uuid) == 0) {
             return null;
         } else {
-            E parcelable = objectCache.get(uuid);
-            objectCache.remove(uuid);
-            return parcelable;
+            return remove(uuid);
         }
     }
 
@@ -91,4 +121,110 @@ public class ParcelableCache<E> {
         dest.writeLong(mTicket.getLeastSignificantBits());
     }
 
+    /** Adds an entry, evicting expired entries and the oldest ones if the cache is full. */
+    public void put(UUID uuid, E value) {
+        synchronized (objectCache) {
+            objectCache.put(uuid, new CacheEntry<>(value, SystemClock.elapsedRealtime()));
+            evictExpired();
+            Iterator<CacheEntry<E>> it = objectCache.values().iterator();
+            while (objectCache.size() > mMaxSize && it.hasNext()) {
+                evict(it);
+            }
+        }
+    }
+
+    /** Removes and returns an entry, or returns null if it wasn't found or has expired. */
+    public E remove(UUID uuid) {
+        synchronized (objectCache) {
+            evictExpired();
+            CacheEntry<E> entry = objectCache.remove(uuid);
+            if (entry == null) {
+                mMissCount += 1;
+                Log.w(Constants.TAG, "parcelable cache miss, " + getMetrics());
+                return null;
+            }
+            mHitCount += 1;
+            return entry.mValue;
+        }
+    }
+
+    /** Evicts all entries which are older than the maximum age. */
+    public void evictExpired() {
+        synchronized (objectCache) {
+            long expiredBefore = SystemClock.elapsedRealtime() - mMaxAge;
+            Iterator<CacheEntry<E>> it = objectCache.values().iterator();
+            // entries are in order of insertion, so we can stop at the first one which is still fresh
+            while (it.hasNext()) {
+                if (!evictIfBefore(it, expiredBefore)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (objectCache) {
+            return objectCache.size();
+        }
+    }
+
+    public Metrics getMetrics() {
+        synchronized (objectCache) {
+            return new Metrics(objectCache.size(), mHitCount, mMissCount, mEvictionCount);
+        }
+    }
+
+    /**
+     * Called for every entry which is evicted before it was read back. Called with the
+     * cache's lock held, so this must not call back into the cache.
+     */
+    protected void onEvicted(E value) {
+    }
+
+    private boolean evictIfBefore(Iterator<CacheEntry<E>> it, long expiredBefore) {
+        CacheEntry<E> entry = it.next();
+        if (entry.mCreationTime >= expiredBefore) {
+            return false;
+        }
+        it.remove();
+        mEvictionCount += 1;
+        onEvicted(entry.mValue);
+        return true;
+    }
+
+    private void evict(Iterator<CacheEntry<E>> it) {
+        evictIfBefore(it, Long.MAX_VALUE);
+    }
+
+    private static class CacheEntry<E> {
+        final E mValue;
+        final long mCreationTime;
+
+        CacheEntry(E value, long creationTime) {
+            mValue = value;
+            mCreationTime = creationTime;
+        }
+    }
+
+    /** A snapshot of the state of a cache. */
+    public static class Metrics {
+        public final int mSize;
+        public final long mHits;
+        public final long mMisses;
+        public final long mEvictions;
+
+        Metrics(int size, long hits, long misses, long evictions) {
+            mSize = size;
+            mHits = hits;
+            mMisses = misses;
+            mEvictions = evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "size: " + mSize + ", hits: " + mHits + ", misses: " + mMisses
+                    + ", evictions: " + mEvictions;
+        }
+    }
+
 }
@@ -24,6 +24,8 @@ import android.os.Parcelable;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -43,6 +45,8 @@ import java.util.Iterator;
  */
 public class ParcelableFileCache<E extends Parcelable> {
 
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
     private Context mContext;
 
     private final String mFilename;
@@ -58,16 +62,10 @@ public class ParcelableFileCache<E extends Parcelable> {
 
     public void writeCache(int numEntries, Iterator<E> it) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
-
-        File tempFile = new File(mContext.getCacheDir(), mFilename);
-
+        File tempFile = getCacheFile();
 
-        DataOutputStream oos = new DataOutputStream(new FileOutputStream(tempFile));
+        DataOutputStream oos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
 
         try {
             oos.writeInt(numEntries);
@@ -104,16 +102,10 @@ public class ParcelableFileCache<E extends Parcelable> {
      */
     public IteratorWithSize<E> readCache(final boolean deleteAfterRead) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
-
-        final File tempFile = new File(cacheDir, mFilename);
+        final File tempFile = getCacheFile();
         final DataInputStream ois;
         try {
-            ois = new DataInputStream(new FileInputStream(tempFile));
+            ois = new DataInputStream(new BufferedInputStream(new FileInputStream(tempFile), BUFFER_SIZE));
         } catch (FileNotFoundException e) {
             Log.e(Constants.TAG, "parcel import file not existing", e);
             throw new IOException(e);
@@ -139,8 +131,8 @@ public class ParcelableFileCache<E extends Parcelable> {
                 try {
 
                     int length = ois.readInt();
-                    while (buf.length < length) {
-                        buf = new byte[buf.length * 2];
+                    if (buf.length < length) {
+                        buf = new byte[Math.max(length, buf.length * 2)];
                     }
                     ois.readFully(buf, 0, length);
 
@@ -205,15 +197,17 @@ public class ParcelableFileCache<E extends Parcelable> {
     }
 
     public boolean delete() throws IOException {
+        return getCacheFile().delete();
+    }
 
+    protected File getCacheFile() throws IOException {
         File cacheDir = mContext.getCacheDir();
         if (cacheDir == null) {
             // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
             throw new IOException("cache dir is null!");
         }
 
-        final File tempFile = new File(cacheDir, mFilename);
-        return tempFile.delete();
+        return new File(cacheDir, mFilename);
     }
 
     /** As the name implies, this is an extended iterator interface, which
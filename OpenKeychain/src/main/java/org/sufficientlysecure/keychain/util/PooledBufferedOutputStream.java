@@ -0,0 +1,48 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/** A BufferedOutputStream which takes its buffer from a BufferPool.
+ *
+ * The buffer is recycled when the stream is closed, or explicitly with release()
+ * for streams whose underlying stream is closed by other means. The stream must
+ * not be written to after either of those.
+ */
+public class PooledBufferedOutputStream extends BufferedOutputStream {
+
+    private final BufferPool mPool;
+    private byte[] mPooledBuffer;
+
+    public PooledBufferedOutputStream(OutputStream out, BufferPool pool) {
+        // the buffer allocated by the superclass is replaced right away
+        super(out, 1);
+        mPool = pool;
+        mPooledBuffer = pool.obtain();
+        buf = mPooledBuffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    /** Recycles the buffer. Anything not flushed at this point is discarded. */
+    public synchronized void release() {
+        if (mPooledBuffer == null) {
+            return;
+        }
+        mPool.recycle(mPooledBuffer);
+        mPooledBuffer = null;
+        buf = null;
+        count = 0;
+    }
+
+}
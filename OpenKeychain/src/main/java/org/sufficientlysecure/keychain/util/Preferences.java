@@ -424,6 +424,27 @@ public class Preferences {
         };
     }
 
+    // contact sync state
+
+    /**
+     * @return sequence number of the last key ring change synced to contacts, or -1 if the
+     * next sync should be a full one
+     */
+    public long getContactSyncSequence() {
+        return mSharedPreferences.getLong(Pref.CONTACT_SYNC_SEQUENCE, -1);
+    }
+
+    public long getContactSyncFullTime() {
+        return mSharedPreferences.getLong(Pref.CONTACT_SYNC_FULL_TIME, 0);
+    }
+
+    public void setContactSyncState(long sequence, long fullSyncTime) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putLong(Pref.CONTACT_SYNC_SEQUENCE, sequence);
+        editor.putLong(Pref.CONTACT_SYNC_FULL_TIME, fullSyncTime);
+        editor.commit();
+    }
+
     // experimental prefs
 
     public boolean getExperimentalEnableWordConfirm() {
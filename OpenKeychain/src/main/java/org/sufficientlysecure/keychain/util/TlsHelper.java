@@ -49,27 +49,44 @@ public class TlsHelper {
         }
     }
 
-    private static Map<String, byte[]> sPinnedCertificates = new HashMap<>();
+    private static AssetManager sAssetManager;
+    private static final Map<String, String> sPinnedCertificateFiles = new HashMap<>();
+    private static final Map<String, byte[]> sPinnedCertificates = new HashMap<>();
 
     /**
-     * Add certificate from assets to pinned certificate map.
+     * Add certificate from assets to pinned certificate map. The certificate is only read
+     * once a connection to the host is made, so this is cheap to call at startup.
      */
-    public static void addPinnedCertificate(String host, AssetManager assetManager, String cerFilename) {
+    public static synchronized void addPinnedCertificate(String host, AssetManager assetManager, String cerFilename) {
+        sAssetManager = assetManager;
+        sPinnedCertificateFiles.put(host, cerFilename);
+    }
+
+    private static synchronized byte[] getPinnedCertificate(String host) {
+        byte[] certificate = sPinnedCertificates.get(host);
+        if (certificate != null) {
+            return certificate;
+        }
+
         try {
-            InputStream is = assetManager.open(cerFilename);
+            InputStream is = sAssetManager.open(sPinnedCertificateFiles.get(host));
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int reads = is.read();
+            byte[] buf = new byte[4096];
+            int reads = is.read(buf);
 
             while (reads != -1) {
-                baos.write(reads);
-                reads = is.read();
+                baos.write(buf, 0, reads);
+                reads = is.read(buf);
             }
 
             is.close();
 
-            sPinnedCertificates.put(host, baos.toByteArray());
+            certificate = baos.toByteArray();
+            sPinnedCertificates.put(host, certificate);
+            return certificate;
         } catch (IOException e) {
             Log.w(Constants.TAG, e);
+            return null;
         }
     }
 
@@ -83,9 +100,19 @@ public class TlsHelper {
     public static boolean usePinnedCertificateIfAvailable(OkHttpClient client, URL url) throws TlsHelperException, IOException {
         if (url.getProtocol().equals("https")) {
             // use certificate PIN from assets if we have one
-            for (String host : sPinnedCertificates.keySet()) {
-                if (url.getHost().endsWith(host)) {
-                    pinCertificate(sPinnedCertificates.get(host), client);
+            String pinnedHost = null;
+            synchronized (TlsHelper.class) {
+                for (String host : sPinnedCertificateFiles.keySet()) {
+                    if (url.getHost().endsWith(host)) {
+                        pinnedHost = host;
+                        break;
+                    }
+                }
+            }
+            if (pinnedHost != null) {
+                byte[] certificate = getPinnedCertificate(pinnedHost);
+                if (certificate != null) {
+                    pinCertificate(certificate, client);
                     return true;
                 }
             }
@@ -0,0 +1,125 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.util.Date;
+import java.util.HashMap;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Creates the keys used by the benchmarks. Key generation takes far longer than anything
+ * measured, so every key is only created once per JVM, and shared between all trials.
+ * All keys have an empty passphrase, so unlocking doesn't depend on the S2K settings.
+ */
+class BenchmarkKeys {
+
+    static final String RSA_2048 = "RSA_2048";
+    static final String ECC_P256 = "ECC_P256";
+
+    static final String NORMAL = "normal";
+    static final String FLOODED = "flooded";
+
+    /** Number of third-party certifications on a flooded key. */
+    static final int FLOOD_CERTIFICATIONS = 2000;
+    private static final int FLOOD_SIGNERS = 4;
+
+    private static final HashMap<String, UncachedKeyRing> sKeys = new HashMap<>();
+
+    /** Returns a secret key ring with a certification, a signing and an encryption subkey. */
+    static synchronized UncachedKeyRing getSecretKey(String algorithm) {
+        UncachedKeyRing ring = sKeys.get(algorithm);
+        if (ring == null) {
+            ring = createKey(algorithm, algorithm.toLowerCase());
+            sKeys.put(algorithm, ring);
+        }
+        return ring;
+    }
+
+    /**
+     * Returns a public key ring, which in the flooded case carries FLOOD_CERTIFICATIONS
+     * certifications on its user id, made by a few signers at different times.
+     */
+    static synchronized UncachedKeyRing getPublicKey(String type) throws Exception {
+        UncachedKeyRing ring = sKeys.get(type);
+        if (ring == null) {
+            ring = getSecretKey(ECC_P256).extractPublicKeyRing();
+            if (FLOODED.equals(type)) {
+                ring = flood(ring);
+            }
+            sKeys.put(type, ring);
+        }
+        return ring;
+    }
+
+    private static UncachedKeyRing createKey(String algorithm, String userId) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        if (RSA_2048.equals(algorithm)) {
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 2048, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 2048, null, KeyFlags.SIGN_DATA, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 2048, null, KeyFlags.ENCRYPT_COMMS, 0L));
+        } else {
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.ECDH, 0, Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        }
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        if (!result.success()) {
+            throw new AssertionError("benchmark key creation failed");
+        }
+        return result.getRing();
+    }
+
+    private static UncachedKeyRing flood(UncachedKeyRing ring) throws Exception {
+        PgpCertifyOperation op = new PgpCertifyOperation();
+        long now = System.currentTimeMillis();
+
+        CanonicalizedPublicKeyRing publicRing = new CanonicalizedPublicKeyRing(ring.getEncoded(), 0);
+        CertifyAction action = new CertifyAction(ring.getMasterKeyId(),
+                publicRing.getPublicKey().getUnorderedUserIds(), null);
+
+        for (int signer = 0; signer < FLOOD_SIGNERS; signer++) {
+            CanonicalizedSecretKey secretKey = new CanonicalizedSecretKeyRing(
+                    createKey(ECC_P256, "flooder " + signer).getEncoded(), false, 0).getSecretKey();
+            secretKey.unlock(new Passphrase());
+
+            for (int i = 0; i < FLOOD_CERTIFICATIONS / FLOOD_SIGNERS; i++) {
+                // signature timestamps have a resolution of seconds, so make sure they differ
+                Date creationTime = new Date(now - (i + 1) * 1000L);
+                PgpCertifyResult result = op.certify(secretKey, publicRing, new OperationLog(), 0,
+                        action, null, creationTime);
+                if (!result.success()) {
+                    throw new AssertionError("benchmark key certification failed");
+                }
+                publicRing = new CanonicalizedPublicKeyRing(result.getCertifiedRing().getEncoded(), 0);
+            }
+        }
+
+        return UncachedKeyRing.decodeFromData(publicRing.getEncoded());
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+
+
+/**
+ * Benchmarks of canonicalization, merging and armoring of public key rings, both for a
+ * normal key and for a key flooded with third-party certifications.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KeyRingBenchmark {
+
+    @Param({ BenchmarkKeys.NORMAL, BenchmarkKeys.FLOODED })
+    public String mKeyType;
+
+    private UncachedKeyRing mRing;
+    private UncachedKeyRing mBaseRing;
+    private byte[] mEncoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        mRing = BenchmarkKeys.getPublicKey(mKeyType);
+        mBaseRing = BenchmarkKeys.getPublicKey(BenchmarkKeys.NORMAL);
+        mEncoded = mRing.getEncoded();
+    }
+
+    @Benchmark
+    public CanonicalizedKeyRing canonicalize() {
+        return mRing.canonicalize(new OperationLog(), 0);
+    }
+
+    /** Merges the key into a copy of itself without certifications, as on import. */
+    @Benchmark
+    public UncachedKeyRing merge() {
+        return mBaseRing.merge(mRing, new OperationLog(), 0);
+    }
+
+    /** Merges the key into itself, which is the common case of refreshing from a keyserver. */
+    @Benchmark
+    public UncachedKeyRing mergeUnchanged() {
+        return mRing.merge(mRing, new OperationLog(), 0);
+    }
+
+    @Benchmark
+    public UncachedKeyRing decode() throws Exception {
+        return UncachedKeyRing.decodeFromData(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] encodeArmored() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mEncoded.length * 2);
+        mRing.encodeArmored(out, null);
+        return out.toByteArray();
+    }
+
+}
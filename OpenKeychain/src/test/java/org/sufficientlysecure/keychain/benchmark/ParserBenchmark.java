@@ -0,0 +1,83 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.util.CharsetVerifier;
+
+
+/**
+ * Benchmarks of the parsers which run over untrusted input of arbitrary size: the charset
+ * check of decrypted text, and the parser of keyserver search results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParserBenchmark {
+
+    // same size as the buffers used while decrypting
+    private static final int CHUNK_SIZE = 8192;
+
+    /** Number of keys in the keyserver index, and kilobytes of text for the charset check. */
+    @Param({ "10", "1000" })
+    public int mSize;
+
+    private byte[] mText;
+    private byte[] mChunk;
+    private String mIndex;
+    private HkpKeyserver mKeyserver;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < mSize * 1024) {
+            // only ascii, multi-byte characters split between chunks would end the check early
+            text.append("dies ist ein plaintext, der nur aus ascii besteht\n");
+        }
+        mText = text.toString().getBytes("utf-8");
+        mChunk = new byte[CHUNK_SIZE];
+
+        StringBuilder index = new StringBuilder();
+        index.append("info:1:").append(mSize).append('\n');
+        for (int i = 0; i < mSize; i++) {
+            index.append(String.format(Locale.ENGLISH,
+                    "pub:%040x:1:2048:1400000000::\n", i + 1));
+            index.append("uid:Universit%C3%A4t ").append(i).append(" %3Cuser").append(i)
+                    .append("@example.com%3E:1400000000::\n");
+            index.append("uid:Second Identity ").append(i).append(":1400000000::r\n");
+        }
+        mIndex = index.toString();
+        mKeyserver = new HkpKeyserver("keyserver.example.com", Proxy.NO_PROXY);
+    }
+
+    /** Checks the text chunk by chunk, the way PgpDecryptVerifyOperation feeds it. */
+    @Benchmark
+    public boolean charsetVerifier() {
+        CharsetVerifier verifier = new CharsetVerifier(mChunk, "text/plain", null);
+        for (int pos = 0; pos < mText.length; pos += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, mText.length - pos);
+            System.arraycopy(mText, pos, mChunk, 0, length);
+            verifier.readBytesFromBuffer(0, length);
+        }
+        return verifier.isCharsetFaulty();
+    }
+
+    @Benchmark
+    public ArrayList<ImportKeysListEntry> hkpIndex() {
+        return mKeyserver.parseIndex(mIndex, "example.com");
+    }
+
+}
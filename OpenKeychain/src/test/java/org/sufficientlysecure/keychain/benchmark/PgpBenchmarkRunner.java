@@ -0,0 +1,72 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.File;
+import java.io.PrintStream;
+import java.security.Security;
+import java.util.Collection;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+
+/**
+ * Runs the JMH benchmarks of this package, and writes their results as json.
+ * <p/>
+ * The benchmarks need the Robolectric environment for the database and the Android classes
+ * used throughout the pgp package, so they are run from within this test, in the same JVM
+ * (forks = 0), rather than by the JMH launcher. They only run when the benchmark.output system
+ * property is set, which build.gradle does when the benchmark project property is given.
+ * The value of that property is a regular expression selecting the benchmarks to run.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PgpBenchmarkRunner {
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        String output = System.getProperty("benchmark.output");
+        Assume.assumeNotNull(output);
+
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        // operations log a lot, which would end up in the measurements
+        PrintStream oldShadowStream = ShadowLog.stream;
+        ShadowLog.stream = null;
+
+        String include = System.getProperty("benchmark.include", "");
+        File outputFile = new File(output);
+        outputFile.getParentFile().mkdirs();
+
+        Options options = new OptionsBuilder()
+                .include(PgpBenchmarkRunner.class.getPackage().getName() + ".*" + include + ".*")
+                .forks(0)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                .resultFormat(ResultFormatType.JSON)
+                .result(outputFile.getAbsolutePath())
+                .build();
+
+        try {
+            Collection<RunResult> results = new Runner(options).run();
+            Assert.assertFalse("benchmarks matching '" + include + "' must exist", results.isEmpty());
+        } finally {
+            ShadowLog.stream = oldShadowStream;
+        }
+    }
+
+}
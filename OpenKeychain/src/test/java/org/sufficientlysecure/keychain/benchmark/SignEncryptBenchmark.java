@@ -0,0 +1,111 @@
+package org.sufficientlysecure.keychain.benchmark;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+/**
+ * Benchmarks of PgpSignEncryptOperation and PgpDecryptVerifyOperation, signing and encrypting
+ * to the same key, for the main key algorithms, with binary and armored output.
+ * <p/>
+ * Both operations run against the Robolectric database, so key lookups are included in the
+ * measured time, as they are on the device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignEncryptBenchmark {
+
+    @Param({ BenchmarkKeys.RSA_2048, BenchmarkKeys.ECC_P256 })
+    public String mAlgorithm;
+
+    @Param({ "1024", "1048576" })
+    public int mSize;
+
+    @Param({ "false", "true" })
+    public boolean mArmor;
+
+    private ProviderHelper mProviderHelper;
+    private PgpSignEncryptInputParcel mSignEncryptInput;
+    private byte[] mPlaintext;
+    private byte[] mCiphertext;
+
+    @Setup
+    public void setUp() throws Exception {
+        UncachedKeyRing ring = BenchmarkKeys.getSecretKey(mAlgorithm);
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mProviderHelper.saveSecretKeyRing(ring, new ProgressScaler());
+
+        mSignEncryptInput = new PgpSignEncryptInputParcel();
+        mSignEncryptInput.setSignatureMasterKeyId(ring.getMasterKeyId());
+        mSignEncryptInput.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(ring, 1));
+        mSignEncryptInput.setEncryptionMasterKeyIds(new long[] { ring.getMasterKeyId() });
+        mSignEncryptInput.setEnableAsciiArmorOutput(mArmor);
+
+        // fixed seed, so every run encrypts the same data
+        mPlaintext = new byte[mSize];
+        new Random(mSize).nextBytes(mPlaintext);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!signEncrypt(out).success()) {
+            throw new AssertionError("benchmark encryption failed");
+        }
+        mCiphertext = out.toByteArray();
+        if (!decryptVerify(new ByteArrayOutputStream()).success()) {
+            throw new AssertionError("benchmark decryption failed");
+        }
+    }
+
+    @Benchmark
+    public PgpSignEncryptResult signEncrypt() {
+        return signEncrypt(new ByteArrayOutputStream(mSize + 1024));
+    }
+
+    @Benchmark
+    public DecryptVerifyResult decryptVerify() {
+        return decryptVerify(new ByteArrayOutputStream(mSize));
+    }
+
+    private PgpSignEncryptResult signEncrypt(ByteArrayOutputStream out) {
+        ByteArrayInputStream in = new ByteArrayInputStream(mPlaintext);
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                mProviderHelper, null);
+        return op.execute(mSignEncryptInput, new CryptoInputParcel(new Date()),
+                new InputData(in, mPlaintext.length), out);
+    }
+
+    private DecryptVerifyResult decryptVerify(ByteArrayOutputStream out) {
+        ByteArrayInputStream in = new ByteArrayInputStream(mCiphertext);
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                mProviderHelper, null);
+        return op.execute(new PgpDecryptVerifyInputParcel(), new CryptoInputParcel(),
+                new InputData(in, mCiphertext.length), out);
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyRingFileCacheTest {
+
+    @Test
+    public void testMappedRandomAccess() throws Exception {
+        KeyRingFileCache cache = new KeyRingFileCache(RuntimeEnvironment.application, "test.pcl");
+        ArrayList<ParcelableKeyRing> rings = createRings();
+        cache.writeCache(rings.size(), rings.iterator());
+
+        KeyRingFileCache.MappedReader reader = cache.openMapped(false);
+        Assert.assertEquals("number of entries must be correct", rings.size(), reader.getSize());
+        assertRingEquals(rings.get(7), reader.get(7));
+        assertRingEquals(rings.get(2), reader.get(2));
+
+        assertAllEqual(rings, cache.readCache());
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        KeyRingFileCache cache = new KeyRingFileCache(RuntimeEnvironment.application, "test.pcl", true);
+        ArrayList<ParcelableKeyRing> rings = createRings();
+        cache.writeCache(rings.size(), rings.iterator());
+
+        assertAllEqual(rings, cache.readCache());
+    }
+
+    private static ArrayList<ParcelableKeyRing> createRings() {
+        ArrayList<ParcelableKeyRing> rings = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            if (i % 2 == 0) {
+                rings.add(new ParcelableKeyRing("fingerprint" + i, new byte[] { 1, 2, (byte) i }, false));
+            } else {
+                rings.add(new ParcelableKeyRing(null, "keyid" + i, "keybase" + i, null));
+            }
+        }
+        return rings;
+    }
+
+    private static void assertAllEqual(ArrayList<ParcelableKeyRing> expected,
+                                       IteratorWithSize<ParcelableKeyRing> it) {
+        Assert.assertEquals("number of entries must be correct", expected.size(), it.getSize());
+        for (ParcelableKeyRing ring : expected) {
+            Assert.assertTrue("all entries should be read back", it.hasNext());
+            assertRingEquals(ring, it.next());
+        }
+        Assert.assertFalse("no more entries should be read back", it.hasNext());
+    }
+
+    private static void assertRingEquals(ParcelableKeyRing expected, ParcelableKeyRing actual) {
+        Assert.assertArrayEquals(expected.mBytes, actual.mBytes);
+        Assert.assertEquals(expected.mExpectedFingerprint, actual.mExpectedFingerprint);
+        Assert.assertEquals(expected.mKeyIdHex, actual.mKeyIdHex);
+        Assert.assertEquals(expected.mKeybaseName, actual.mKeybaseName);
+        Assert.assertEquals(expected.mFbUsername, actual.mFbUsername);
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.sufficientlysecure.keychain.operations;
+
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class TracerTest {
+
+    @Test
+    public void testNesting() throws Exception {
+        TraceSpan root = Tracer.begin("root");
+        TraceSpan first = Tracer.begin(Tracer.KEY_LOOKUP);
+        Tracer.end(first);
+        TraceSpan second = Tracer.begin(Tracer.UNLOCK);
+        TraceSpan nested = Tracer.begin(Tracer.PKESK_DECRYPT);
+        Tracer.end(nested);
+        Tracer.end(second);
+        Tracer.end(root);
+
+        Assert.assertEquals("root span should have two children", 2, root.getChildren().size());
+        Assert.assertSame(first, root.getChildren().get(0));
+        Assert.assertSame(second, root.getChildren().get(1));
+        Assert.assertSame(nested, second.getChildren().get(0));
+        Assert.assertTrue("ended spans must have a duration", nested.getDuration() >= 0);
+
+        // after the root span ended, a new span must be a root again
+        TraceSpan next = Tracer.begin("next");
+        Tracer.end(next);
+        Assert.assertTrue("root span must not get further children", root.getChildren().size() == 2);
+    }
+
+    @Test
+    public void testFolding() throws Exception {
+        TraceSpan root = Tracer.begin("root");
+        for (int i = 0; i < 1000; i++) {
+            TraceSpan save = Tracer.begin(Tracer.DATABASE_SAVE);
+            Tracer.end(Tracer.begin(Tracer.KEY_LOOKUP));
+            Tracer.end(save);
+        }
+        Tracer.end(root);
+
+        Assert.assertEquals("repeated spans must be folded", 1, root.getChildren().size());
+        TraceSpan save = root.getChildren().get(0);
+        Assert.assertEquals("folded span must count all spans", 1000, save.getCount());
+        Assert.assertEquals("children of folded spans must be folded", 1, save.getChildren().size());
+        Assert.assertEquals("children of folded spans must be counted",
+                1000, save.getChildren().get(0).getCount());
+    }
+
+    @Test
+    public void testParcel() throws Exception {
+        TraceSpan root = Tracer.begin("root");
+        Tracer.end(Tracer.begin(Tracer.SIGNATURE_VERIFY));
+        Tracer.end(root);
+
+        Parcel parcel = Parcel.obtain();
+        parcel.writeParcelable(root, 0);
+        parcel.setDataPosition(0);
+        TraceSpan restored = parcel.readParcelable(TraceSpan.class.getClassLoader());
+        parcel.recycle();
+
+        Assert.assertEquals("trace must survive parceling", root.toString(), restored.toString());
+        Assert.assertEquals(Tracer.SIGNATURE_VERIFY, restored.getChildren().get(0).mName);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.reset();
+        metrics.increment("op");
+        metrics.increment("op");
+        metrics.recordTime(Tracer.KEY_LOOKUP, 3);
+
+        String dump = metrics.dump();
+        Assert.assertTrue("counter must be dumped", dump.contains("op: 2"));
+        Assert.assertTrue("histogram must be dumped", dump.contains(Tracer.KEY_LOOKUP + ": count 1"));
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import android.os.Parcel;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.FoldedLogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogFolder;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationLogTest {
+
+    @Test
+    public void testRepeatedEntriesAreFolded() throws Exception {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IP_UID_CERT_GOOD, 2, "0x1234");
+        log.add(LogType.MSG_IP_UID_CERT_GOOD, 2, "0x1234");
+        log.add(LogType.MSG_IP_UID_CERT_GOOD, 2, "0x5678");
+        log.add(LogType.MSG_IP_UID_CERT_GOOD, 3, "0x5678");
+
+        assertEquals("identical entries in a row should be folded", 3, log.toList().size());
+        assertEquals("folded entry should count repeats", 2, log.getFirst().mRepeat);
+        assertEquals("different entries should not be folded", 1, log.getLast().mRepeat);
+    }
+
+    @Test
+    public void testEntryParcelRoundTrip() throws Exception {
+        LogEntryParcel entry = new LogEntryParcel(LogType.MSG_IP_UID_CERT_GOOD, 1, 42, 0x1234L, "test");
+
+        LogEntryParcel copy = writeAndRead(entry);
+
+        assertEquals(entry.mType, copy.mType);
+        assertEquals(entry.mIndent, copy.mIndent);
+        assertArrayEquals("parameters should keep their types", entry.mParameters, copy.mParameters);
+
+        copy = writeAndRead(new LogEntryParcel(LogType.MSG_IP_SUCCESS, 0));
+        assertNull("missing parameters should stay null", copy.mParameters);
+    }
+
+    @Test
+    public void testLogFolder() throws Exception {
+        LogFolder folder = new LogFolder();
+        for (int i = 0; i < 3; i++) {
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_IP, 0);
+            log.add(LogType.MSG_IP_SUCCESS, 1);
+            folder.fold(log);
+        }
+        FoldedLogEntryParcel entry = folder.finish(LogType.MSG_IMPORT_FOLDED, 0, folder.getFoldedCount());
+
+        assertEquals("summary entry should hold the folded count", 3, entry.mParameters[0]);
+        assertEquals("all folded entries should be unpacked", 6, entry.getFoldedLog().toList().size());
+
+        FoldedLogEntryParcel copy = (FoldedLogEntryParcel) writeAndRead(entry);
+        assertEquals("folded entries should survive parceling", 6, copy.getFoldedLog().toList().size());
+        assertEquals(LogType.MSG_IP_SUCCESS, copy.getFoldedLog().getLast().mType);
+    }
+
+    private static LogEntryParcel writeAndRead(LogEntryParcel entry) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            entry.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return LogEntryParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.pgp.PgpCompressionAdvisor.CompressionMode;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PgpCompressionAdvisorTest {
+
+    @Test
+    public void testMagicBytes() throws Exception {
+        byte[] jpeg = new byte[PgpCompressionAdvisor.SNIFF_SIZE];
+        jpeg[0] = (byte) 0xff;
+        jpeg[1] = (byte) 0xd8;
+        jpeg[2] = (byte) 0xff;
+
+        PgpCompressionAdvisor advisor = PgpCompressionAdvisor.evaluate(jpeg, jpeg.length);
+        Assert.assertEquals("jpeg data should not be compressed", CompressionMode.SKIP, advisor.getMode());
+        Assert.assertEquals("jpeg format should be detected", "jpeg", advisor.getDetectedFormat());
+
+        byte[] mp4 = new byte[] { 0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2' };
+        advisor = PgpCompressionAdvisor.evaluate(mp4, mp4.length);
+        Assert.assertEquals("mp4 format should be detected", "mp4", advisor.getDetectedFormat());
+    }
+
+    @Test
+    public void testText() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < PgpCompressionAdvisor.SNIFF_SIZE) {
+            builder.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        byte[] text = builder.toString().getBytes("utf-8");
+
+        PgpCompressionAdvisor advisor = PgpCompressionAdvisor.evaluate(text, PgpCompressionAdvisor.SNIFF_SIZE);
+        Assert.assertEquals("text should be compressed normally", CompressionMode.DEFAULT, advisor.getMode());
+    }
+
+    @Test
+    public void testRandomData() throws Exception {
+        byte[] random = new byte[PgpCompressionAdvisor.SNIFF_SIZE];
+        new Random(42).nextBytes(random);
+        // make sure this isn't accidentally detected by magic bytes
+        random[0] = 0;
+
+        PgpCompressionAdvisor advisor = PgpCompressionAdvisor.evaluate(random, random.length);
+        Assert.assertEquals("random data should not be compressed", CompressionMode.SKIP, advisor.getMode());
+        Assert.assertNull("no format should be detected for random data", advisor.getDetectedFormat());
+        Assert.assertTrue("random data should have high entropy",
+                advisor.getEntropy() > PgpCompressionAdvisor.ENTROPY_SKIP_THRESHOLD);
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.jcajce.JcaSkipMarkerPGPObjectFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PgpLiteralDataLengthIndexTest {
+
+    @Test
+    public void testDefiniteLength() throws Exception {
+        byte[] data = new byte[12345];
+        byte[] packet = literalPacket(data, false);
+
+        BufferedInputStream in = PgpLiteralDataLengthIndex.wrap(new ByteArrayInputStream(packet));
+        Long length = PgpLiteralDataLengthIndex.findLiteralDataLength(in);
+
+        Assert.assertNotNull("length of definite length packet should be indexed", length);
+        Assert.assertEquals("indexed length should match data length", data.length, (long) length);
+
+        // stream must still be usable after indexing
+        Object obj = new JcaSkipMarkerPGPObjectFactory(in).nextObject();
+        Assert.assertTrue("stream should be reset after indexing", obj instanceof PGPLiteralData);
+        Assert.assertEquals("filename should be read normally after indexing",
+                "test.bin", ((PGPLiteralData) obj).getFileName());
+    }
+
+    @Test
+    public void testPartialLength() throws Exception {
+        byte[] data = new byte[12345];
+        byte[] packet = literalPacket(data, true);
+
+        BufferedInputStream in = PgpLiteralDataLengthIndex.wrap(new ByteArrayInputStream(packet));
+        Long length = PgpLiteralDataLengthIndex.findLiteralDataLength(in);
+
+        Assert.assertNull("length of partial length packet can't be indexed", length);
+    }
+
+    @Test
+    public void testNoPgpData() throws Exception {
+        byte[] data = "hello world".getBytes();
+
+        BufferedInputStream in = PgpLiteralDataLengthIndex.wrap(new ByteArrayInputStream(data));
+        Long length = PgpLiteralDataLengthIndex.findLiteralDataLength(in);
+
+        Assert.assertNull("non-pgp data should not be indexed", length);
+        Assert.assertEquals("stream should be reset after indexing", 'h', in.read());
+    }
+
+    private static byte[] literalPacket(byte[] data, boolean partial) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut;
+        if (partial) {
+            literalOut = literalGen.open(out, PGPLiteralData.BINARY, "test.bin", new Date(), new byte[1 << 10]);
+        } else {
+            literalOut = literalGen.open(out, PGPLiteralData.BINARY, "test.bin", data.length, new Date());
+        }
+        literalOut.write(data);
+        literalGen.close();
+        return out.toByteArray();
+    }
+
+}
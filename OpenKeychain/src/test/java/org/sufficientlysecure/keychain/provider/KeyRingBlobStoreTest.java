@@ -0,0 +1,83 @@
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyRingBlobStoreTest {
+
+    @Test
+    public void testPutAndRead() throws Exception {
+        KeyRingBlobStore store = new KeyRingBlobStore(RuntimeEnvironment.application);
+
+        byte[] data = new byte[KeyRingBlobStore.INLINE_LIMIT + 1];
+        new Random(42).nextBytes(data);
+        Assert.assertTrue("data above the limit should be stored", KeyRingBlobStore.shouldStore(data));
+        Assert.assertFalse("data at the limit should stay inline",
+                KeyRingBlobStore.shouldStore(new byte[KeyRingBlobStore.INLINE_LIMIT]));
+
+        String hash = store.put(data);
+        Assert.assertEquals("same data should give the same hash", hash, store.put(data));
+        Assert.assertArrayEquals("data should be read back unchanged", data, store.read(hash));
+    }
+
+    @Test
+    public void testDeleteUnreferenced() throws Exception {
+        KeyRingBlobStore store = new KeyRingBlobStore(RuntimeEnvironment.application);
+
+        String kept = store.put(new byte[] { 1, 2, 3 });
+        String dropped = store.put(new byte[] { 4, 5, 6 });
+
+        // file times may have a resolution of seconds, so be sure they are before this
+        long storedBefore = System.currentTimeMillis() + 2000;
+        int deleted = store.deleteUnreferenced(new HashSet<>(Collections.singleton(kept)), storedBefore);
+        Assert.assertEquals("one blob should be deleted", 1, deleted);
+        Assert.assertArrayEquals("referenced blob should be kept",
+                new byte[] { 1, 2, 3 }, store.read(kept));
+
+        try {
+            store.read(dropped);
+            Assert.fail("unreferenced blob should be gone");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDeleteUnreferencedKeepsConcurrentWrites() throws Exception {
+        KeyRingBlobStore store = new KeyRingBlobStore(RuntimeEnvironment.application);
+        long consolidationStart = System.currentTimeMillis() - 10000;
+
+        // stored by another process, whose row isn't committed yet
+        String stored = store.put(new byte[] { 7, 8, 9 });
+        // written by another process right now
+        File tempFile = new File(new File(RuntimeEnvironment.application.getFilesDir(), "keyring_blobs"),
+                stored + "123.tmp");
+        Assert.assertTrue(tempFile.createNewFile());
+
+        int deleted = store.deleteUnreferenced(new HashSet<String>(), consolidationStart);
+        Assert.assertEquals("nothing stored after the start should be deleted", 0, deleted);
+        Assert.assertTrue("temporary file of a write in progress should be kept", tempFile.exists());
+        Assert.assertArrayEquals("blob stored after the start should be kept",
+                new byte[] { 7, 8, 9 }, store.read(stored));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidHash() throws Exception {
+        new KeyRingBlobStore(RuntimeEnvironment.application).read("../../databases/openkeychain.db");
+    }
+
+}
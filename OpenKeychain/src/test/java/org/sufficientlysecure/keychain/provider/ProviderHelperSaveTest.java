@@ -18,6 +18,8 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -26,7 +28,9 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
 import org.robolectric.shadows.ShadowLog;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.util.encoders.Hex;
@@ -36,14 +40,28 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
@@ -249,6 +267,251 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testConsolidate() throws Exception {
+
+        UncachedKeyRing sec = readRingFromResource("/test-keys/stripped_flags.asc");
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+
+        Assert.assertTrue("import of secret keyring should succeed",
+                mProviderHelper.saveSecretKeyRing(sec, new ProgressScaler()).success());
+        Assert.assertTrue("import of public keyring should succeed",
+                mProviderHelper.savePublicKeyRing(pub).success());
+
+        ConsolidateResult result = mProviderHelper.consolidateDatabaseStep1(new ProgressScaler());
+        Assert.assertTrue("consolidation should succeed", result.success());
+
+        Assert.assertNotNull("secret keyring should be available after consolidation",
+                mProviderHelper.getCanonicalizedSecretKeyRing(sec.getMasterKeyId()));
+        Assert.assertNotNull("public keyring should be available after consolidation",
+                mProviderHelper.getCanonicalizedPublicKeyRing(pub.getMasterKeyId()));
+        Assert.assertNull("checkpoint should be deleted after consolidation",
+                ConsolidationEngine.Checkpoint.read(RuntimeEnvironment.application));
+
+    }
+
+    @Test public void testSearchIndex() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long keyId = pub.getMasterKeyId();
+        Assert.assertTrue("import of public keyring should succeed",
+                mProviderHelper.savePublicKeyRing(pub).success());
+
+        String userId = pub.getPublicKey().getPrimaryUserIdWithFallback();
+        String firstWord = KeychainProvider.getSearchTerms(userId)[0];
+        String shortKeyId = "0x" + String.format("%016x", keyId).substring(8);
+
+        Assert.assertEquals("key should be found by prefix of its user id",
+                keyId, searchSingle(firstWord.substring(0, 2)));
+        Assert.assertEquals("key should be found by its short key id",
+                keyId, searchSingle(shortKeyId.toUpperCase()));
+        Cursor unrelated = search("zzzzqqqq");
+        try {
+            Assert.assertEquals("unrelated term should not match anything", 0, unrelated.getCount());
+        } finally {
+            unrelated.close();
+        }
+
+        mProviderHelper.getContentResolver().delete(
+                KeychainContract.KeyRingData.buildPublicKeyRingUri(keyId), null, null);
+        Cursor removed = search(firstWord);
+        try {
+            Assert.assertEquals("deleted key should be removed from the index", 0, removed.getCount());
+        } finally {
+            removed.close();
+        }
+
+    }
+
+    @Test public void testKeyRingChanges() throws Exception {
+
+        long sequence = getLatestChangeSequence(0);
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long keyId = pub.getMasterKeyId();
+        Assert.assertTrue("import of public keyring should succeed",
+                mProviderHelper.savePublicKeyRing(pub).success());
+        assertSingleChange(sequence, keyId, KeychainContract.KeyRingChanges.CHANGE_INSERT);
+        sequence = getLatestChangeSequence(sequence);
+
+        // re-importing the identical keyring doesn't write anything
+        Assert.assertTrue("re-import of public keyring should succeed",
+                mProviderHelper.savePublicKeyRing(pub).success());
+        Assert.assertEquals("identical keyring should not be logged as a change",
+                sequence, getLatestChangeSequence(sequence));
+
+        Assert.assertTrue("import of certified public keyring should succeed",
+                mProviderHelper.savePublicKeyRing(certifyUserIds(pub)).success());
+        assertSingleChange(sequence, keyId, KeychainContract.KeyRingChanges.CHANGE_UPDATE);
+        sequence = getLatestChangeSequence(sequence);
+
+        mProviderHelper.getContentResolver().delete(
+                KeychainContract.KeyRingData.buildPublicKeyRingUri(keyId), null, null);
+        assertSingleChange(sequence, keyId, KeychainContract.KeyRingChanges.CHANGE_DELETE);
+        sequence = getLatestChangeSequence(sequence);
+
+        Cursor cursor = queryChanges(sequence);
+        Assert.assertEquals("there should be no changes after the latest one", 0, cursor.getCount());
+        cursor.close();
+
+        cursor = queryChanges(sequence + 1000);
+        Assert.assertTrue(cursor.moveToFirst());
+        Assert.assertEquals("a sequence from the future should give a reset",
+                KeychainContract.KeyRingChanges.CHANGE_RESET, cursor.getInt(2));
+        cursor.close();
+
+    }
+
+    @Test public void testUserEmails() throws Exception {
+
+        Assert.assertEquals("email should be taken from the end of the user id", "alice@example.com",
+                KeyRingRows.getEmailFromUserId("Alice (work <a>) <Alice@Example.com>"));
+        Assert.assertNull("user id without email should have none",
+                KeyRingRows.getEmailFromUserId("Alice"));
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        Assert.assertTrue("import of public keyring should succeed",
+                mProviderHelper.savePublicKeyRing(pub).success());
+
+        String email = KeyRingRows.getEmailFromUserId(pub.getPublicKey().getPrimaryUserIdWithFallback());
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase().query(
+                KeychainDatabase.Tables.USER_EMAILS,
+                new String[] { KeychainContract.UserEmails.MASTER_KEY_ID, KeychainContract.UserEmails.VERIFIED },
+                KeychainContract.UserEmails.EMAIL + " = ?", new String[] { email }, null, null, null);
+        try {
+            Assert.assertTrue("email of the primary user id should be in the table", cursor.moveToFirst());
+            Assert.assertEquals("email should belong to the saved key", pub.getMasterKeyId(), cursor.getLong(0));
+            Assert.assertEquals("email should be self-certified",
+                    KeychainContract.Certs.VERIFIED_SELF, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    @Test public void testDeletePublicKeyRings() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/stripped_flags.asc").extractPublicKeyRing();
+        Assert.assertTrue("import of first keyring should succeed",
+                mProviderHelper.savePublicKeyRing(first).success());
+        Assert.assertTrue("import of second keyring should succeed",
+                mProviderHelper.savePublicKeyRing(second).success());
+
+        long missingKeyId = 0x1234567890abcdefL;
+        Set<Long> deleted = mProviderHelper.deletePublicKeyRings(new long[] {
+                first.getMasterKeyId(), missingKeyId, second.getMasterKeyId() });
+
+        Assert.assertEquals("both existing keyrings should be deleted",
+                new HashSet<>(Arrays.asList(first.getMasterKeyId(), second.getMasterKeyId())), deleted);
+        for (long keyId : new long[] { first.getMasterKeyId(), second.getMasterKeyId() }) {
+            try {
+                mProviderHelper.getCanonicalizedPublicKeyRing(keyId);
+                Assert.fail("deleted keyring should not be found");
+            } catch (ProviderHelper.NotFoundException e) {
+                // expected
+            }
+        }
+
+    }
+
+    @Test public void testSavePublicKeyRings() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/stripped_flags.asc").extractPublicKeyRing();
+        ShadowContentResolver resolver = Shadows.shadowOf(mProviderHelper.getContentResolver());
+        resolver.getNotifiedUris().clear();
+
+        List<SaveKeyringResult> results = mProviderHelper.savePublicKeyRings(Arrays.asList(first, second));
+        Assert.assertEquals("there should be one result per keyring", 2, results.size());
+        Assert.assertTrue("import of first keyring should succeed", results.get(0).success());
+        Assert.assertTrue("import of second keyring should succeed", results.get(1).success());
+        Assert.assertNotNull("first keyring should be saved",
+                mProviderHelper.getCanonicalizedPublicKeyRing(first.getMasterKeyId()));
+        Assert.assertNotNull("second keyring should be saved",
+                mProviderHelper.getCanonicalizedPublicKeyRing(second.getMasterKeyId()));
+
+        int notifications = 0;
+        for (ShadowContentResolver.NotifiedUri notified : resolver.getNotifiedUris()) {
+            if (KeychainContract.KeyRings.CONTENT_URI.equals(notified.uri)) {
+                notifications += 1;
+            }
+        }
+        Assert.assertEquals("observers should be notified once for the whole batch", 1, notifications);
+
+    }
+
+    /** Returns the keyring with all its user ids certified by a newly created key. */
+    private UncachedKeyRing certifyUserIds(UncachedKeyRing ring) throws Exception {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("certifier");
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+        PgpEditKeyResult keyResult = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("certifier key creation must succeed", keyResult.success());
+
+        CanonicalizedSecretKey secretKey = new CanonicalizedSecretKeyRing(
+                keyResult.getRing().getEncoded(), false, 0).getSecretKey();
+        secretKey.unlock(new Passphrase());
+
+        CanonicalizedPublicKeyRing publicRing = new CanonicalizedPublicKeyRing(ring.getEncoded(), 0);
+        CertifyAction action = new CertifyAction(ring.getMasterKeyId(),
+                publicRing.getPublicKey().getUnorderedUserIds(), null);
+        PgpCertifyResult result = new PgpCertifyOperation().certify(
+                secretKey, publicRing, new OperationLog(), 0, action, null, new Date());
+        Assert.assertTrue("certification must succeed", result.success());
+        return result.getCertifiedRing();
+    }
+
+    private Cursor queryChanges(long sequence) {
+        return mProviderHelper.getContentResolver().query(
+                KeychainContract.KeyRingChanges.buildChangesSinceUri(sequence),
+                new String[] {
+                        KeychainContract.KeyRingChanges.SEQUENCE,
+                        KeychainContract.KeyRingChanges.MASTER_KEY_ID,
+                        KeychainContract.KeyRingChanges.CHANGE_TYPE
+                }, null, null, null);
+    }
+
+    private long getLatestChangeSequence(long sequence) {
+        Cursor cursor = queryChanges(sequence);
+        try {
+            return cursor.moveToLast() ? cursor.getLong(0) : sequence;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertSingleChange(long sequence, long keyId, int changeType) {
+        Cursor cursor = queryChanges(sequence);
+        try {
+            Assert.assertEquals("there should be exactly one change", 1, cursor.getCount());
+            cursor.moveToFirst();
+            Assert.assertEquals("change should be for the saved key", keyId, cursor.getLong(1));
+            Assert.assertEquals("change should be of the right type", changeType, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor search(String query) {
+        return mProviderHelper.getContentResolver().query(
+                KeychainContract.KeyRings.buildUnifiedKeyRingsSearchUri(query),
+                new String[] { KeychainContract.KeyRings.MASTER_KEY_ID, KeychainContract.KeyRings.SEARCH_RANK },
+                null, null, null);
+    }
+
+    private long searchSingle(String query) {
+        Cursor cursor = search(query);
+        try {
+            Assert.assertEquals("search should find exactly one key", 1, cursor.getCount());
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
@@ -0,0 +1,63 @@
+package org.sufficientlysecure.keychain.service;
+
+
+import android.os.SystemClock;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ProgressAggregatorTest {
+
+    // robolectric's clock only advances on sleep, so updates without it happen at the same time
+
+    @Test
+    public void testPercentChanges() throws Exception {
+        ProgressAggregator aggregator = new ProgressAggregator();
+
+        Assert.assertTrue("first update should be sent", aggregator.update("message", 0, 0, 1000));
+        SystemClock.sleep(200);
+        Assert.assertFalse("update with the same percentage should be dropped",
+                aggregator.update(null, 0, 5, 1000));
+        Assert.assertTrue("update with a new percentage should be sent",
+                aggregator.update(null, 0, 10, 1000));
+    }
+
+    @Test
+    public void testInterval() throws Exception {
+        ProgressAggregator aggregator = new ProgressAggregator();
+
+        Assert.assertTrue(aggregator.update("message", 0, 0, 100));
+        Assert.assertFalse("update right after the last one should be dropped",
+                aggregator.update(null, 0, 50, 100));
+        SystemClock.sleep(200);
+        Assert.assertTrue("update after the interval should be sent",
+                aggregator.update(null, 0, 60, 100));
+    }
+
+    @Test
+    public void testMessageChanges() throws Exception {
+        ProgressAggregator aggregator = new ProgressAggregator();
+
+        Assert.assertTrue(aggregator.update("first", 0, 10, 100));
+        Assert.assertTrue("new message should always be sent", aggregator.update("second", 0, 10, 100));
+        Assert.assertFalse("same message should be dropped", aggregator.update("second", 0, 10, 100));
+        Assert.assertTrue("new message id should always be sent", aggregator.update(null, 42, 10, 100));
+        Assert.assertFalse("same message id should be dropped", aggregator.update(null, 42, 10, 100));
+    }
+
+    @Test
+    public void testFinalUpdate() throws Exception {
+        ProgressAggregator aggregator = new ProgressAggregator();
+
+        Assert.assertTrue(aggregator.update("message", 0, 0, 100));
+        Assert.assertTrue("final update should be sent even right after the last one",
+                aggregator.update(null, 0, 100, 100));
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class BufferPoolTest {
+
+    @Test
+    public void testRecycledBufferIsZeroed() throws Exception {
+        BufferPool pool = new BufferPool(16, 2);
+
+        byte[] buffer = pool.obtain();
+        Arrays.fill(buffer, (byte) 42);
+        pool.recycle(buffer);
+
+        byte[] reused = pool.obtain();
+        assertSame("recycled buffer should be reused", buffer, reused);
+        assertArrayEquals("recycled buffer should be zeroed", new byte[16], reused);
+        assertEquals("one obtain should have been a hit", 1, pool.getHitCount());
+        assertEquals("one obtain should have been a miss", 1, pool.getMissCount());
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        BufferPool pool = new BufferPool(16, 2);
+
+        pool.recycle(new byte[16]);
+        pool.recycle(new byte[16]);
+        pool.recycle(new byte[16]);
+        assertEquals("pool should not hold more than its limit", 2, pool.getPooledCount());
+
+        pool.recycle(new byte[8]);
+        pool.recycle(null);
+        assertEquals("buffers of wrong size should be ignored", 2, pool.getPooledCount());
+    }
+
+    @Test
+    public void testPooledBufferedOutputStream() throws Exception {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+
+        PooledBufferedOutputStream out = new PooledBufferedOutputStream(byteOut, pool);
+        byte[] data = "some data which is longer than the buffer".getBytes("utf-8");
+        out.write(data);
+        out.close();
+
+        assertArrayEquals("data should be written through", data, byteOut.toByteArray());
+        assertEquals("buffer should be returned to the pool on close", 1, pool.getPooledCount());
+
+        byte[] buffer = pool.obtain();
+        assertArrayEquals("buffer should be zeroed after use", new byte[16], buffer);
+        assertTrue("hit rate should be counted", pool.getHitRate() > 0);
+    }
+
+}
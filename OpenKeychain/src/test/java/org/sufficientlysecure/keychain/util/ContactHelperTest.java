@@ -0,0 +1,194 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.ContactsContract;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBitmapFactory;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ContactHelperTest {
+
+    @Test
+    public void testDecodeHighResPhoto() throws Exception {
+        // robolectric doesn't decode images, the size of the "photo" is looked up by its content
+        String photo = "high resolution contact photo";
+        ShadowBitmapFactory.provideWidthAndHeightHints(photo, 4000, 3000);
+
+        ContactHelper contactHelper = new ContactHelper(RuntimeEnvironment.application);
+        Bitmap bitmap = contactHelper.decodePhoto(new ByteArrayInputStream(photo.getBytes()), true);
+
+        Assert.assertNotNull("high resolution photo must be decoded", bitmap);
+        int screenWidth = RuntimeEnvironment.application.getResources().getDisplayMetrics().widthPixels;
+        Assert.assertTrue("photo must not be downsampled below the screen width",
+                Math.min(bitmap.getWidth(), bitmap.getHeight()) >= screenWidth);
+    }
+
+    @Test
+    public void testDecodeLowResPhoto() throws Exception {
+        String photo = "thumbnail contact photo";
+        ShadowBitmapFactory.provideWidthAndHeightHints(photo, 96, 96);
+
+        ContactHelper contactHelper = new ContactHelper(RuntimeEnvironment.application);
+        Bitmap bitmap = contactHelper.decodePhoto(new ByteArrayInputStream(photo.getBytes()), false);
+
+        Assert.assertNotNull("thumbnail must be decoded", bitmap);
+        Assert.assertEquals("thumbnail must not be downsampled", 96, bitmap.getWidth());
+    }
+
+    @Test
+    public void testIncrementalSync() throws Exception {
+        FakeProfileProvider contacts = new FakeProfileProvider();
+        ShadowContentResolver.registerProvider(ContactsContract.AUTHORITY, contacts);
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        ContactHelper contactHelper = new ContactHelper(RuntimeEnvironment.application);
+
+        UncachedKeyRing kept = createSecretKey("Kept <kept@example.com>");
+        UncachedKeyRing deleted = createSecretKey("Deleted <deleted@example.com>");
+        Assert.assertTrue(providerHelper.saveSecretKeyRing(kept, new ProgressScaler()).success());
+        Assert.assertTrue(providerHelper.saveSecretKeyRing(deleted, new ProgressScaler()).success());
+
+        contactHelper.writeKeysToContacts();
+        Assert.assertEquals("first sync should write all keys",
+                new HashSet<>(Arrays.asList(kept.getMasterKeyId(), deleted.getMasterKeyId())),
+                contacts.mRawContacts.keySet());
+        Assert.assertTrue("first sync should be a full one", contacts.mUnfilteredQueries > 0);
+        long keptRawContactId = contacts.mRawContacts.get(kept.getMasterKeyId());
+
+        providerHelper.deletePublicKeyRings(new long[] { deleted.getMasterKeyId() });
+        UncachedKeyRing added = createSecretKey("Added <added@example.com>");
+        Assert.assertTrue(providerHelper.saveSecretKeyRing(added, new ProgressScaler()).success());
+
+        contacts.mUnfilteredQueries = 0;
+        contactHelper.writeKeysToContacts();
+        Assert.assertEquals("second sync should only query the changed keys", 0, contacts.mUnfilteredQueries);
+        Assert.assertEquals("changed keys should be written, deleted keys removed",
+                new HashSet<>(Arrays.asList(kept.getMasterKeyId(), added.getMasterKeyId())),
+                contacts.mRawContacts.keySet());
+        Assert.assertEquals("unchanged key should not be written again",
+                keptRawContactId, (long) contacts.mRawContacts.get(kept.getMasterKeyId()));
+        Assert.assertTrue("sync state should be kept for the next incremental sync",
+                Preferences.getPreferences(RuntimeEnvironment.application).getContactSyncSequence() >= 0);
+    }
+
+    private static UncachedKeyRing createSecretKey(String userId) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    /**
+     * Keeps the raw contacts of the main profile, which are the only ones written for secret
+     * keys. Other raw contacts are empty, and all other operations simply succeed.
+     */
+    private static class FakeProfileProvider extends ContentProvider {
+
+        /** Raw contact ids by master key id */
+        final HashMap<Long, Long> mRawContacts = new HashMap<>();
+        /** Number of queries for all raw contacts, which only a full sync does */
+        int mUnfilteredQueries;
+        private long mNextId = 1;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (!isProfile(uri) || selection.contains(ContactsContract.RawContacts.DELETED)) {
+                return cursor;
+            }
+
+            HashSet<String> sourceIds = null;
+            int in = selection.indexOf(" IN (");
+            if (in < 0) {
+                mUnfilteredQueries += 1;
+            } else {
+                String ids = selection.substring(in + 5, selection.indexOf(')', in));
+                sourceIds = new HashSet<>(Arrays.asList(ids.replace("'", "").split(",")));
+            }
+            for (Long masterKeyId : mRawContacts.keySet()) {
+                if (sourceIds == null || sourceIds.contains(Long.toString(masterKeyId))) {
+                    cursor.addRow(new Object[] { Long.toString(masterKeyId), mRawContacts.get(masterKeyId) });
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            long id = mNextId++;
+            if (isProfile(uri)) {
+                mRawContacts.put(Long.parseLong(values.getAsString(ContactsContract.RawContacts.SOURCE_ID)), id);
+            }
+            return ContentUris.withAppendedId(uri, id);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            if (!isProfile(uri) || selection.contains(ContactsContract.RawContacts.DELETED)) {
+                return 0;
+            }
+            int count = 0;
+            // the first argument is the account type, followed by the source ids
+            for (int i = 1; i < selectionArgs.length; i++) {
+                if (mRawContacts.remove(Long.parseLong(selectionArgs[i])) != null) {
+                    count += 1;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        private static boolean isProfile(Uri uri) {
+            return uri.getPath().startsWith(ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI.getPath());
+        }
+
+    }
+
+}
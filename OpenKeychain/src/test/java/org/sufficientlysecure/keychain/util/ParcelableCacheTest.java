@@ -0,0 +1,62 @@
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ParcelableCacheTest {
+
+    @Test
+    public void testCacheIsBounded() throws Exception {
+        final ArrayList<String> evicted = new ArrayList<>();
+        ParcelableCache<String> cache = new ParcelableCache<String>(2, 60 * 1000) {
+            @Override
+            protected void onEvicted(String value) {
+                evicted.add(value);
+            }
+        };
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        cache.put(first, "first");
+        cache.put(second, "second");
+        cache.put(third, "third");
+
+        assertEquals("cache should not grow above its maximum size", 2, cache.size());
+        assertEquals("oldest entry should have been evicted", "first", evicted.get(0));
+        assertNull("evicted entry should be gone", cache.remove(first));
+        assertEquals("second", cache.remove(second));
+
+        ParcelableCache.Metrics metrics = cache.getMetrics();
+        assertEquals(1, metrics.mHits);
+        assertEquals(1, metrics.mMisses);
+        assertEquals(1, metrics.mEvictions);
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(10, 1000);
+
+        UUID uuid = UUID.randomUUID();
+        cache.put(uuid, "value");
+        SystemClock.sleep(1001);
+
+        assertNull("expired entry should not be returned", cache.remove(uuid));
+        assertEquals(0, cache.size());
+    }
+
+}